@@ -0,0 +1,25 @@
+package tw.idv.palatis.ble.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * marks a value class whose {@link GattField}s lay out a characteristic value, a codec class with
+ * static {@code decode()} and {@code encode()} methods, and a static getter per field, is
+ * generated next to it.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface GattCharacteristic {
+    String DEFAULT_CLASS_NAME_SUFFIX = "Codec";
+
+    /**
+     * @return the fully qualified name of the generated codec, the value class name followed by
+     * {@link #DEFAULT_CLASS_NAME_SUFFIX} in the same package by default
+     */
+    String value() default "";
+
+    String codecClass() default "";
+}
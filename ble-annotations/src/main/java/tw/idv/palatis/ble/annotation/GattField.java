@@ -0,0 +1,38 @@
+package tw.idv.palatis.ble.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * a field of a {@link GattCharacteristic} value class, with its format and offset in the value.
+ * <p>
+ * the formats take the values of the {@code android.bluetooth.BluetoothGattCharacteristic}
+ * {@code FORMAT_*} constants, plus the 24-bit integers and UTF-8 strings. integer fields are
+ * {@code int} or {@code long} ({@code long} for {@link #FORMAT_UINT32}), float fields
+ * {@code float} or {@code double}, and string fields {@link String}, running to the end of the
+ * value, so a string is the last field.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.FIELD)
+public @interface GattField {
+    int FORMAT_UINT8 = 0x11;
+    int FORMAT_UINT16 = 0x12;
+    int FORMAT_UINT24 = 0x13;
+    int FORMAT_UINT32 = 0x14;
+    int FORMAT_SINT8 = 0x21;
+    int FORMAT_SINT16 = 0x22;
+    int FORMAT_SINT24 = 0x23;
+    int FORMAT_SINT32 = 0x24;
+    int FORMAT_SFLOAT = 0x32;
+    int FORMAT_FLOAT = 0x34;
+    int FORMAT_UTF8S = 0x100;
+
+    int format();
+
+    /**
+     * @return the offset of the field in the value, in bytes
+     */
+    int offset();
+}
@@ -0,0 +1,318 @@
+package tw.idv.palatis.ble.annotation.processor;
+
+import android.support.annotation.NonNull;
+
+import com.google.auto.service.AutoService;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.JavaFile;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic;
+
+import tw.idv.palatis.ble.annotation.GattCharacteristic;
+import tw.idv.palatis.ble.annotation.GattField;
+
+/**
+ * generates a codec for every {@link GattCharacteristic} value class: one straight-line statement
+ * per {@link GattField} through {@code tw.idv.palatis.ble.GattFormat}, no reflection.
+ * {@code decode()} fills an instance given by the caller, and a static getter per field reads a
+ * single field without any instance.
+ */
+@AutoService(Processor.class)
+public class GattCharacteristicCodecProcessor extends AbstractProcessor {
+    private static final ClassName GATT_FORMAT = ClassName.bestGuess("tw.idv.palatis.ble.GattFormat");
+
+    private Elements mElementUtils;
+    private Messager mMessager;
+
+    @Override
+    public synchronized void init(ProcessingEnvironment env) {
+        super.init(env);
+        mMessager = env.getMessager();
+        mElementUtils = env.getElementUtils();
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(GattCharacteristic.class.getCanonicalName());
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        final Set<? extends Element> elements = roundEnv.getElementsAnnotatedWith(GattCharacteristic.class);
+        if (elements.isEmpty())
+            return false;
+
+        for (final Element element : elements) {
+            if (element.getKind() != ElementKind.CLASS) {
+                mMessager.printMessage(Diagnostic.Kind.ERROR, "@GattCharacteristic only applies to classes.", element);
+                continue;
+            }
+            processCodec((TypeElement) element);
+        }
+
+        return true;
+    }
+
+    private void processCodec(final TypeElement valueClass) {
+        final ArrayList<VariableElement> fields = new ArrayList<>();
+        for (final Element member : valueClass.getEnclosedElements())
+            if (member.getKind() == ElementKind.FIELD && member.getAnnotation(GattField.class) != null)
+                fields.add((VariableElement) member);
+        if (fields.isEmpty()) {
+            mMessager.printMessage(Diagnostic.Kind.WARNING, "@GattCharacteristic class without any @GattField.", valueClass);
+            return;
+        }
+
+        // the fixed part of the value, a string runs from its offset to the end.
+        int length = 0;
+        VariableElement string = null;
+        for (final VariableElement field : fields) {
+            if (!validate(field))
+                return;
+            final GattField annotation = field.getAnnotation(GattField.class);
+            if (annotation.format() == GattField.FORMAT_UTF8S) {
+                if (string != null) {
+                    mMessager.printMessage(Diagnostic.Kind.ERROR, "only one FORMAT_UTF8S field is allowed, it runs to the end of the value.", field);
+                    return;
+                }
+                string = field;
+            }
+            length = Math.max(length, annotation.offset() + sizeOf(annotation.format()));
+        }
+
+        // a byte claimed by two fields would be overwritten by the codec as it encodes them.
+        final ArrayList<VariableElement> byOffset = new ArrayList<>(fields);
+        Collections.sort(byOffset, (lhs, rhs) -> Integer.compare(lhs.getAnnotation(GattField.class).offset(), rhs.getAnnotation(GattField.class).offset()));
+        for (int i = 1; i < byOffset.size(); ++i) {
+            final GattField previous = byOffset.get(i - 1).getAnnotation(GattField.class);
+            if (byOffset.get(i).getAnnotation(GattField.class).offset() < previous.offset() + sizeOf(previous.format())) {
+                mMessager.printMessage(Diagnostic.Kind.ERROR, "the field overlaps " + byOffset.get(i - 1).getSimpleName() + ".", byOffset.get(i));
+                return;
+            }
+        }
+        if (string != null && string.getAnnotation(GattField.class).offset() != length) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "the FORMAT_UTF8S field must come after all the other fields.", string);
+            return;
+        }
+
+        final String codecClass = getCodecClass(valueClass);
+        final String codecPackageName = codecClass.substring(0, codecClass.lastIndexOf('.'));
+        final String codecClassName = codecClass.substring(codecClass.lastIndexOf('.') + 1);
+        final ClassName valueClassName = ClassName.get(valueClass);
+
+        final MethodSpec.Builder decodeBuilder = MethodSpec.methodBuilder("decode")
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+                .addParameter(ParameterSpec.builder(byte[].class, "value", Modifier.FINAL).addAnnotation(NonNull.class).build())
+                .addParameter(ParameterSpec.builder(valueClassName, "out", Modifier.FINAL).addAnnotation(NonNull.class).build());
+        final MethodSpec.Builder encodeBuilder = MethodSpec.methodBuilder("encode")
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+                .returns(TypeName.INT)
+                .addParameter(ParameterSpec.builder(valueClassName, "in", Modifier.FINAL).addAnnotation(NonNull.class).build())
+                .addParameter(ParameterSpec.builder(byte[].class, "out", Modifier.FINAL).addAnnotation(NonNull.class).build());
+        final MethodSpec.Builder getLengthBuilder = MethodSpec.methodBuilder("getLength")
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+                .returns(TypeName.INT)
+                .addParameter(ParameterSpec.builder(valueClassName, "in", Modifier.FINAL).addAnnotation(NonNull.class).build());
+
+        final ArrayList<MethodSpec> fieldGetters = new ArrayList<>(fields.size());
+        for (final VariableElement field : fields) {
+            final GattField annotation = field.getAnnotation(GattField.class);
+            final String name = field.getSimpleName().toString();
+            final int offset = annotation.offset();
+            final TypeKind kind = field.asType().getKind();
+            final String getter;
+            switch (annotation.format()) {
+                case GattField.FORMAT_UINT8:
+                    getter = "getUint8";
+                    encodeBuilder.addStatement("$T.setInt8(out, $L, $L)", GATT_FORMAT, offset, narrowed(kind, name));
+                    break;
+                case GattField.FORMAT_SINT8:
+                    getter = "getSint8";
+                    encodeBuilder.addStatement("$T.setInt8(out, $L, $L)", GATT_FORMAT, offset, narrowed(kind, name));
+                    break;
+                case GattField.FORMAT_UINT16:
+                    getter = "getUint16";
+                    encodeBuilder.addStatement("$T.setInt16(out, $L, $L)", GATT_FORMAT, offset, narrowed(kind, name));
+                    break;
+                case GattField.FORMAT_SINT16:
+                    getter = "getSint16";
+                    encodeBuilder.addStatement("$T.setInt16(out, $L, $L)", GATT_FORMAT, offset, narrowed(kind, name));
+                    break;
+                case GattField.FORMAT_UINT24:
+                    getter = "getUint24";
+                    encodeBuilder.addStatement("$T.setInt24(out, $L, $L)", GATT_FORMAT, offset, narrowed(kind, name));
+                    break;
+                case GattField.FORMAT_SINT24:
+                    getter = "getSint24";
+                    encodeBuilder.addStatement("$T.setInt24(out, $L, $L)", GATT_FORMAT, offset, narrowed(kind, name));
+                    break;
+                case GattField.FORMAT_UINT32:
+                    getter = "getUint32";
+                    encodeBuilder.addStatement("$T.setInt32(out, $L, in.$N)", GATT_FORMAT, offset, name);
+                    break;
+                case GattField.FORMAT_SINT32:
+                    getter = "getSint32";
+                    encodeBuilder.addStatement("$T.setInt32(out, $L, in.$N)", GATT_FORMAT, offset, name);
+                    break;
+                case GattField.FORMAT_SFLOAT:
+                    getter = "getSfloat";
+                    encodeBuilder.addStatement("$T.setSfloat(out, $L, $L)", GATT_FORMAT, offset, narrowed(kind, name));
+                    break;
+                case GattField.FORMAT_FLOAT:
+                    getter = "getFloat";
+                    encodeBuilder.addStatement("$T.setFloat(out, $L, $L)", GATT_FORMAT, offset, narrowed(kind, name));
+                    break;
+                case GattField.FORMAT_UTF8S:
+                default:
+                    getter = "getString";
+                    break;
+            }
+            decodeBuilder.addStatement("out.$N = $T.$N(value, $L)", name, GATT_FORMAT, getter, offset);
+            fieldGetters.add(MethodSpec.methodBuilder("get" + Character.toUpperCase(name.charAt(0)) + name.substring(1))
+                    .addJavadoc("read {@code $N} straight out of the value, without an instance\n", name)
+                    .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+                    .returns(TypeName.get(field.asType()))
+                    .addParameter(ParameterSpec.builder(byte[].class, "value", Modifier.FINAL).addAnnotation(NonNull.class).build())
+                    .addStatement("return $T.$N(value, $L)", GATT_FORMAT, getter, offset)
+                    .build());
+        }
+
+        if (string != null) {
+            final String name = string.getSimpleName().toString();
+            encodeBuilder.addStatement("return $T.setString(out, $L, in.$N)", GATT_FORMAT, length, name);
+            getLengthBuilder.addStatement("return $N + $T.getUtf8Length(in.$N)", "LENGTH", GATT_FORMAT, name);
+        } else {
+            encodeBuilder.addStatement("return $N", "LENGTH");
+            getLengthBuilder.addStatement("return $N", "LENGTH");
+        }
+
+        final TypeSpec.Builder classBuilder = TypeSpec.classBuilder(codecClassName)
+                .addModifiers(Modifier.FINAL)
+                .addField(FieldSpec.builder(TypeName.INT, "LENGTH", Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+                        .addJavadoc("length of the value without the string, the shortest value {@code decode()} accepts\n")
+                        .initializer("$L", length)
+                        .build())
+                .addMethod(MethodSpec.constructorBuilder().addModifiers(Modifier.PRIVATE).build())
+                .addMethod(decodeBuilder.build())
+                .addMethods(fieldGetters)
+                .addMethod(getLengthBuilder.build())
+                .addMethod(encodeBuilder.build())
+                .addMethod(MethodSpec.methodBuilder("encode")
+                        .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+                        .addAnnotation(NonNull.class)
+                        .returns(byte[].class)
+                        .addParameter(ParameterSpec.builder(valueClassName, "in", Modifier.FINAL).addAnnotation(NonNull.class).build())
+                        .addStatement("final byte[] out = new byte[getLength(in)]")
+                        .addStatement("encode(in, out)")
+                        .addStatement("return out")
+                        .build());
+        // the codec is as visible as the value class it takes.
+        if (valueClass.getModifiers().contains(Modifier.PUBLIC))
+            classBuilder.addModifiers(Modifier.PUBLIC);
+
+        try {
+            JavaFile.builder(codecPackageName, classBuilder.build())
+                    .addFileComment("Generated code from annotation compiler. Do not modify!")
+                    .build().writeTo(processingEnv.getFiler());
+        } catch (IOException e) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, String.format("Unable to write codec %s", e.getMessage()), valueClass);
+        }
+    }
+
+    private String getCodecClass(final TypeElement valueClass) {
+        final GattCharacteristic annotation = valueClass.getAnnotation(GattCharacteristic.class);
+        final String preferredCodecClass = TextUtils.isEmpty(annotation.codecClass()) ? annotation.value() : annotation.codecClass();
+        if (!TextUtils.isEmpty(preferredCodecClass))
+            return preferredCodecClass;
+        return mElementUtils.getPackageOf(valueClass).getQualifiedName() + "." +
+                valueClass.getSimpleName() + GattCharacteristic.DEFAULT_CLASS_NAME_SUFFIX;
+    }
+
+    private boolean validate(final VariableElement field) {
+        final Set<Modifier> modifiers = field.getModifiers();
+        if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.FINAL)) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "@GattField must be a non-private, non-static, non-final field.", field);
+            return false;
+        }
+
+        final GattField annotation = field.getAnnotation(GattField.class);
+        if (annotation.offset() < 0) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "negative offset " + annotation.offset(), field);
+            return false;
+        }
+
+        final TypeKind kind = field.asType().getKind();
+        final boolean valid;
+        switch (annotation.format()) {
+            case GattField.FORMAT_UINT8:
+            case GattField.FORMAT_SINT8:
+            case GattField.FORMAT_UINT16:
+            case GattField.FORMAT_SINT16:
+            case GattField.FORMAT_UINT24:
+            case GattField.FORMAT_SINT24:
+            case GattField.FORMAT_SINT32:
+                valid = kind == TypeKind.INT || kind == TypeKind.LONG;
+                break;
+            case GattField.FORMAT_UINT32:
+                valid = kind == TypeKind.LONG;
+                break;
+            case GattField.FORMAT_SFLOAT:
+            case GattField.FORMAT_FLOAT:
+                valid = kind == TypeKind.FLOAT || kind == TypeKind.DOUBLE;
+                break;
+            case GattField.FORMAT_UTF8S:
+                valid = String.class.getCanonicalName().equals(field.asType().toString());
+                break;
+            default:
+                mMessager.printMessage(Diagnostic.Kind.ERROR, "unknown format " + annotation.format(), field);
+                return false;
+        }
+        if (!valid)
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "a " + field.asType() + " field can't hold format " + annotation.format(), field);
+        return valid;
+    }
+
+    private static int sizeOf(final int format) {
+        // the low nibble of the FORMAT_* constants is the size, the string has no fixed size.
+        return format == GattField.FORMAT_UTF8S ? 0 : format & 0xf;
+    }
+
+    private static String narrowed(final TypeKind kind, final String name) {
+        switch (kind) {
+            case LONG:
+                return "(int) in." + name;
+            case DOUBLE:
+                return "(float) in." + name;
+            default:
+                return "in." + name;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package tw.idv.palatis.ble.annotation.processor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the layouts {@link GattCharacteristicCodecProcessor} refuses, run over sources compiled in
+ * memory. only the errors in the value class count, the generated codecs need the ble module and
+ * are checked by its unit tests.
+ */
+public class GattCharacteristicCodecProcessorTest {
+    // the generated codecs go here instead of the working directory
+    @Rule
+    public final TemporaryFolder mGenerated = new TemporaryFolder();
+
+    @Test
+    public void validLayout_compiles() {
+        assertEquals(Collections.emptyList(), errorsOf(
+                "@GattField(format = GattField.FORMAT_UINT16, offset = 0) int a;",
+                "@GattField(format = GattField.FORMAT_UINT8, offset = 2) int b;",
+                "@GattField(format = GattField.FORMAT_UTF8S, offset = 3) String c;"
+        ));
+    }
+
+    @Test
+    public void overlappingFields_areErrors() {
+        final List<String> errors = errorsOf(
+                "@GattField(format = GattField.FORMAT_UINT16, offset = 0) int a;",
+                "@GattField(format = GattField.FORMAT_UINT8, offset = 1) int b;"
+        );
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0), errors.get(0).contains("overlaps a"));
+    }
+
+    @Test
+    public void overlappingFields_areErrors_inAnyOrder() {
+        final List<String> errors = errorsOf(
+                "@GattField(format = GattField.FORMAT_SINT32, offset = 2) int a;",
+                "@GattField(format = GattField.FORMAT_SFLOAT, offset = 1) float b;"
+        );
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0), errors.get(0).contains("overlaps b"));
+    }
+
+    @Test
+    public void negativeOffset_isAnError() {
+        final List<String> errors = errorsOf("@GattField(format = GattField.FORMAT_UINT8, offset = -1) int a;");
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0), errors.get(0).contains("negative offset"));
+    }
+
+    @Test
+    public void stringBeforeOtherFields_isAnError() {
+        final List<String> errors = errorsOf(
+                "@GattField(format = GattField.FORMAT_UTF8S, offset = 0) String a;",
+                "@GattField(format = GattField.FORMAT_UINT8, offset = 4) int b;"
+        );
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0), errors.get(0).contains("must come after all the other fields"));
+    }
+
+    @Test
+    public void mismatchedFieldType_isAnError() {
+        final List<String> errors = errorsOf("@GattField(format = GattField.FORMAT_UINT32, offset = 0) int a;");
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0), errors.get(0).contains("can't hold format"));
+    }
+
+    private List<String> errorsOf(String... fields) {
+        final String source = "package test;\n" +
+                "import tw.idv.palatis.ble.annotation.GattCharacteristic;\n" +
+                "import tw.idv.palatis.ble.annotation.GattField;\n" +
+                "@GattCharacteristic\n" +
+                "class Value {\n" +
+                String.join("\n", fields) + "\n" +
+                "}\n";
+        final JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///test/Value.java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        final JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics,
+                Arrays.asList("-proc:only", "-s", mGenerated.getRoot().getPath(), "-classpath", System.getProperty("java.class.path")),
+                null, Collections.singletonList(file));
+        task.setProcessors(Collections.singletonList(new GattCharacteristicCodecProcessor()));
+        task.call();
+
+        final List<String> errors = new ArrayList<>();
+        for (final Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics())
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR && diagnostic.getSource() == file)
+                errors.add(diagnostic.getMessage(null));
+        return errors;
+    }
+}
@@ -8,6 +8,7 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.support.annotation.CallSuper;
@@ -15,15 +16,19 @@ import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
+import android.util.SparseArray;
 
 import java.lang.annotation.Retention;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import tw.idv.palatis.ble.database.HandlerObserver;
 import tw.idv.palatis.ble.database.Observable;
@@ -36,6 +41,19 @@ public class BluetoothLeDevice {
     private static final String TAG = "BluetoothLeDevice";
 
     private static final UUID UUID_DESCRIPTOR_CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_SERVICE_GENERIC_ATTRIBUTE = UUID.fromString("00001801-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_CHARACTERISTIC_SERVICE_CHANGED = UUID.fromString("00002a05-0000-1000-8000-00805f9b34fb");
+
+    /**
+     * the ATT MTU every connection starts with
+     */
+    public static final int DEFAULT_MTU = 23;
+    /**
+     * the largest ATT MTU, the stack settles on what both sides support
+     */
+    public static final int MAX_MTU = 517;
+    // ATT write request header: opcode + attribute handle
+    private static final int ATT_WRITE_HEADER_SIZE = 3;
 
     private static BluetoothManager sBtMgr;
 
@@ -51,6 +69,41 @@ public class BluetoothLeDevice {
     public @interface ConnectionState {
     }
 
+    /**
+     * no stage has completed yet, the device is not connected
+     */
+    public static final int STAGE_NONE = -1;
+    /**
+     * the link layer connection is up
+     */
+    public static final int STAGE_LINK_UP = 0;
+    /**
+     * the ATT MTU has been negotiated (or the platform can't negotiate it)
+     */
+    public static final int STAGE_MTU = 1;
+    /**
+     * the attribute table has been discovered and the services have been resolved
+     */
+    public static final int STAGE_DISCOVERY = 2;
+    /**
+     * the notifications enabled in an earlier connection have been enabled again
+     */
+    public static final int STAGE_SUBSCRIPTIONS_RESTORED = 3;
+    /**
+     * the device is ready for use
+     */
+    public static final int STAGE_READY = 4;
+
+    static final int NUM_STAGES = 5;
+
+    @Retention(SOURCE)
+    @IntDef({
+            STAGE_NONE, STAGE_LINK_UP, STAGE_MTU, STAGE_DISCOVERY, STAGE_SUBSCRIPTIONS_RESTORED,
+            STAGE_READY
+    })
+    public @interface ReadinessStage {
+    }
+
     public static long deviceIdFromAddress(String bdAddress) {
         return Long.parseLong(bdAddress.replace(":", ""), 16);
     }
@@ -74,17 +127,49 @@ public class BluetoothLeDevice {
     private BluetoothDevice mNativeDevice;
     private BluetoothGatt mGatt = null;
     private int mRssi = -127;
-    private final Object mGattLock = new Object();
+    private volatile int mMtu = DEFAULT_MTU;
 
-    private ExecutorService mGattExecutor = Executors.newSingleThreadExecutor();
+    private final GattScheduler.Lane mGattLane = GattScheduler.getInstance().newLane();
+    private final GattRttEstimator mRttEstimator = new GattRttEstimator();
+    private final GattMetrics mMetrics = new GattMetrics();
+    private final GattValuePool mValuePool = new GattValuePool();
+    private final GattOperationQueue mOperationQueue = new GattOperationQueue(this, mGattLane, mHandler, mRttEstimator);
 
     private final OnErrorObservable mOnErrorObservable = new OnErrorObservable();
     private final OnConnectionStateChangedObservable mOnConnectionStateChangedObservable = new OnConnectionStateChangedObservable();
     private final OnServiceDiscoveredObservable mOnServiceDiscoveredObservable = new OnServiceDiscoveredObservable();
+    private final OnConnectionParametersChangedObservable mOnConnectionParametersChangedObservable = new OnConnectionParametersChangedObservable();
+    private final OnReadyObservable mOnReadyObservable = new OnReadyObservable();
+    private final OnServicesChangedObservable mOnServicesChangedObservable = new OnServicesChangedObservable();
+
+    private final GattReadiness mReadiness = new GattReadiness();
+    private final GattTrace mTrace = GattTrace.getDefault();
+    private final ArrayList<Subscription> mSubscriptions = new ArrayList<>();
+
+    private GattConnectionPolicy mConnectionPolicy = null;
+    private GattReconnectPolicy mReconnectPolicy = null;
+    // the user asked to disconnect, don't reconnect
+    private volatile boolean mDisconnectRequested = false;
+    private boolean mReconnecting = false;
 
     private BluetoothGattServiceFactory mServiceFactory = DEFAULT_SERVICE_FACTORY;
 
     private final ArrayList<BluetoothGattService> mGattServices = new ArrayList<>();
+    // a snapshot of mGattServices for the readers, replaced whenever it changes
+    private volatile GattServiceIndex mServiceIndex = GattServiceIndex.EMPTY;
+    // guarded by mGattServices, characteristic as given => sink
+    private final IdentityHashMap<BluetoothGattCharacteristic, GattNotificationSink> mSinks = new IdentityHashMap<>();
+    // characteristic instance ID => sink, replaced whenever the sinks or the services change
+    private volatile SparseArray<GattNotificationSink> mSinkRoutes = new SparseArray<>();
+
+    private GattAttributeCache mAttributeCache = null;
+    // the table the services have been set up from, until discovery confirms it
+    private List<GattAttributeCache.Service> mProvisionalLayout = null;
+    private List<android.bluetooth.BluetoothGattService> mProvisionalServices = null;
+    // the handle range a Service Changed indication invalidated, while rediscovering it
+    private int[] mChangedRange = null;
+    // cached or replaced attribute => discovered attribute
+    private final IdentityHashMap<Object, Object> mResolvedAttributes = new IdentityHashMap<>();
 
     public BluetoothLeDevice(@NonNull String address) {
         mDeviceAddress = address;
@@ -118,6 +203,57 @@ public class BluetoothLeDevice {
         mServiceFactory = factory == null ? DEFAULT_SERVICE_FACTORY : factory;
     }
 
+    /**
+     * remember the attribute table of the device, on the next connection the services are set up
+     * from the cache right away, and discovery confirms them in the background.
+     *
+     * <p>
+     * the native services behind services set up from the cache are detached copies, their
+     * instance IDs read {@code 0} until discovery confirms them.
+     *
+     * @param cache the cache, {@code null} to always wait for discovery
+     */
+    public void setAttributeCache(@Nullable GattAttributeCache cache) {
+        synchronized (mGattServices) {
+            mAttributeCache = cache;
+        }
+    }
+
+    /**
+     * attach a policy that adapts the connection priority and PHY to the load of the operation
+     * queue, {@code null} to leave the connection parameters alone.
+     *
+     * @param policy the policy, can't be shared between devices
+     */
+    public void setConnectionPolicy(@Nullable GattConnectionPolicy policy) {
+        synchronized (this) {
+            if (mConnectionPolicy == policy)
+                return;
+            if (mConnectionPolicy != null)
+                mConnectionPolicy.detach();
+            if (policy != null)
+                policy.attach(this);
+            mConnectionPolicy = policy;
+        }
+        mOperationQueue.setPolicy(policy);
+    }
+
+    /**
+     * reconnect automatically when the link is lost without {@link #disconnect()} or
+     * {@link #close()} being called, {@code null} to stay disconnected.
+     *
+     * @param policy the policy, can't be shared between devices
+     */
+    public void setReconnectPolicy(@Nullable GattReconnectPolicy policy) {
+        synchronized (this) {
+            mReconnectPolicy = policy;
+            if (policy == null)
+                mReconnecting = false;
+        }
+        if (policy == null)
+            mHandler.removeCallbacks(mReconnectRunnable);
+    }
+
     /**
      * @return {@link #getAddress()} expressed in long
      */
@@ -160,6 +296,85 @@ public class BluetoothLeDevice {
         mRssi = rssi;
     }
 
+    /**
+     * @return the negotiated ATT MTU, {@link #DEFAULT_MTU} until the negotiation completes.
+     */
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * @return the max value length that fits in a single ATT write with the current MTU
+     */
+    public int getMaxPayloadSize() {
+        return mMtu - ATT_WRITE_HEADER_SIZE;
+    }
+
+    /**
+     * the round-trip estimator of this device, the timeout of every operation is derived from
+     * it. use {@link GattRttEstimator#setBounds(long, long)} to configure the floor and ceiling.
+     *
+     * @return the round-trip estimator
+     */
+    @NonNull
+    public GattRttEstimator getRttEstimator() {
+        return mRttEstimator;
+    }
+
+    /**
+     * the latency and throughput counters of this device, merge the snapshots of several devices
+     * for a global view.
+     *
+     * @return the metrics
+     */
+    @NonNull
+    public GattMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * the buffers behind {@link BluetoothGattService#obtainValue(BluetoothGattCharacteristic)}
+     *
+     * @return the pool
+     */
+    @NonNull
+    public GattValuePool getValuePool() {
+        return mValuePool;
+    }
+
+    /**
+     * @return number of characteristic reads saved by coalescing them with a pending read
+     */
+    public long getCoalescedReadCount() {
+        return mOperationQueue.getCoalescedReadCount();
+    }
+
+    /**
+     * @return the last stage of the connect-to-ready pipeline that has completed, one of the
+     * {@code STAGE_*} constants.
+     */
+    @ReadinessStage
+    public int getReadinessStage() {
+        return mReadiness.getStage();
+    }
+
+    /**
+     * @return {@code true} if the device is connected, its services are resolved, and the
+     * notifications have been restored.
+     */
+    public boolean isReady() {
+        return mReadiness.getStage() == STAGE_READY;
+    }
+
+    /**
+     * @param stage one of the {@code STAGE_*} constants
+     * @return how long the stage took in the current connection, in milliseconds, {@code -1} if
+     * it hasn't completed.
+     */
+    public long getStageDurationMillis(@ReadinessStage int stage) {
+        return mReadiness.getDuration(stage);
+    }
+
     public int getBondState() {
         return getNativeDevice().getBondState();
     }
@@ -188,6 +403,7 @@ public class BluetoothLeDevice {
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
         public void onConnectionStateChange(final BluetoothGatt gatt, int status, @ConnectionState int newState) {
+            mTrace.record(mId, GattTrace.EVENT_CONNECTION_STATE, newState, status, 0);
             if (status != BluetoothGatt.GATT_SUCCESS) {
                 Log.e(TAG, "onConnectionStateChange(): Failed! device = " + getAddress() + ", status = " + status + ", newState = " + newState);
                 mOnErrorObservable.dispatchGattError(status);
@@ -195,11 +411,9 @@ public class BluetoothLeDevice {
                 synchronized (this) {
                     gatt.close();
                     if (mGatt == gatt) {
-                        if (mGattExecutor != null) {
-                            mGattExecutor.shutdownNow();
-                            mGattExecutor = null;
-                        }
-                        mGattServices.clear();
+                        mReadiness.reset();
+                        mOperationQueue.drain();
+                        forgetServices();
                         mGatt = null;
                     }
                 }
@@ -218,29 +432,29 @@ public class BluetoothLeDevice {
                     mHandler.removeCallbacks(mDisconnectRunnable);
                     mHandler.removeCallbacks(mCloseRunnable);
                     mHandler.removeCallbacks(mConnectRunnable);
-                    mGattExecutor = Executors.newSingleThreadExecutor();
-                    mGattExecutor.execute(() -> {
-                        try {
-                            Thread.sleep(500);
-                            if (mGatt != null && sBtMgr.getConnectionState(getNativeDevice(), BluetoothProfile.GATT) == BluetoothProfile.STATE_CONNECTED)
-                                mGatt.discoverServices();
-                        } catch (InterruptedException ex) {
-                            Log.v(TAG, "onConnectionStateChanged(): gat.discoverServices() interrupted.");
-                        }
-                    });
+                    mMtu = DEFAULT_MTU;
+                    mRttEstimator.reset();
+                    synchronized (BluetoothLeDevice.this) {
+                        if (mConnectionPolicy != null)
+                            mConnectionPolicy.onConnected();
+                    }
+                    onReconnected();
+                    onLinkUp();
                     break;
                 case BluetoothProfile.STATE_DISCONNECTED:
                     Log.d(TAG, "onConnectionStateChanged(): gatt conn closed.");
                     synchronized (this) {
-                        close();
+                        closeGatt();
                         mGatt = null;
                     }
+                    if (!mDisconnectRequested)
+                        mMetrics.onLinkLost();
+                    onLinkLost();
                 case BluetoothProfile.STATE_DISCONNECTING:
-                    if (mGattExecutor != null) {
-                        mGattExecutor.shutdownNow();
-                        mGattExecutor = null;
-                    }
-                    mGattServices.clear();
+                    mReadiness.reset();
+                    mOperationQueue.drain();
+                    mMtu = DEFAULT_MTU;
+                    forgetServices();
                 case BluetoothProfile.STATE_CONNECTING:
                     break;
                 default:
@@ -253,26 +467,21 @@ public class BluetoothLeDevice {
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            mTrace.record(mId, GattTrace.EVENT_SERVICES_DISCOVERED, status == BluetoothGatt.GATT_SUCCESS ? gatt.getServices().size() : 0, status, 0);
             if (status != BluetoothGatt.GATT_SUCCESS) {
                 Log.e(TAG, "onServiceDiscovered(): Failed! device = " + getAddress() + ", status = " + status);
                 mOnErrorObservable.dispatchGattError(status);
-                return;
-            }
-
-            synchronized (this) {
-                final List<android.bluetooth.BluetoothGattService> services = gatt.getServices();
-                for (final android.bluetooth.BluetoothGattService nativeService : services) {
-                    BluetoothGattService service = mServiceFactory.newInstance(BluetoothLeDevice.this, nativeService);
-                    if (service == null)
-                        service = new BluetoothGattService(BluetoothLeDevice.this, nativeService);
-                    mGattServices.add(service);
+                synchronized (mGattServices) {
+                    mProvisionalLayout = null;
+                    mProvisionalServices = null;
+                    mChangedRange = null;
                 }
+            } else {
+                onServicesResolved(gatt.getServices());
             }
 
-            mHandler.postDelayed(() -> {
-                for (final BluetoothGattService service : mGattServices)
-                    mOnServiceDiscoveredObservable.notifyServiceDiscovered(service);
-            }, 250);
+            mOperationQueue.setHeld(false);
+            mOperationQueue.onServicesDiscovered(status);
         }
 
         @Override
@@ -284,18 +493,15 @@ public class BluetoothLeDevice {
                         ", status = " + status
                 );
                 mOnErrorObservable.dispatchGattError(status);
-                return;
+            } else if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "onCharacteristicRead(): device = " + getAddress() +
+                        ", service = " + characteristic.getService().getUuid() +
+                        ", characteristic = " + characteristic.getUuid() +
+                        ", data = " + Arrays.toString(characteristic.getValue())
+                );
             }
 
-            Log.v(TAG, "onCharacteristicRead(): device = " + getAddress() +
-                    ", service = " + characteristic.getService().getUuid() +
-                    ", characteristic = " + characteristic.getUuid() +
-                    ", data = " + Arrays.toString(characteristic.getValue())
-            );
-
-            synchronized (mGattLock) {
-                mGattLock.notify();
-            }
+            mOperationQueue.onCharacteristicRead(characteristic, status);
         }
 
         @Override
@@ -307,23 +513,41 @@ public class BluetoothLeDevice {
                         ", status = " + status
                 );
                 mOnErrorObservable.dispatchGattError(status);
-                return;
+            } else if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "onCharacteristicWrite(): device = " + getAddress() +
+                        ", service = " + characteristic.getService().getUuid() +
+                        ", characteristic = " + characteristic.getUuid() +
+                        ", data = " + Arrays.toString(characteristic.getValue())
+                );
             }
 
-            Log.v(TAG, "onCharacteristicWrite(): device = " + getAddress() +
-                    ", service = " + characteristic.getService().getUuid() +
-                    ", characteristic = " + characteristic.getUuid() +
-                    ", data = " + Arrays.toString(characteristic.getValue())
-            );
-
-            synchronized (mGattLock) {
-                mGattLock.notify();
-            }
+            mOperationQueue.onCharacteristicWrite(characteristic, status);
         }
 
+        /**
+         * the hot path, may run a few hundred times a second per device. routes by the instance
+         * ID of the characteristic through the service index, which also tells apart services
+         * sharing a UUID, and formats nothing unless verbose logging is enabled.
+         */
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            final BluetoothGattService service = getService(characteristic.getService().getUuid());
+            final byte[] value = characteristic.getValue();
+            mTrace.record(mId, GattTrace.EVENT_NOTIFICATION, characteristic.getInstanceId(), value == null ? 0 : value.length, 0);
+            mMetrics.onNotification();
+
+            if (UUID_CHARACTERISTIC_SERVICE_CHANGED.equals(characteristic.getUuid())) {
+                onServiceChanged(characteristic.getValue());
+                return;
+            }
+
+            final GattNotificationSink sink = mSinkRoutes.get(characteristic.getInstanceId());
+            if (sink != null) {
+                if (value != null)
+                    sink.onNotification(value);
+                return;
+            }
+
+            final BluetoothGattService service = mServiceIndex.getServiceOf(characteristic);
             if (service == null) {
                 Log.e(TAG, "onCharacteristicChanged(): unregistered service! device = " + getAddress() +
                         ", service = " + characteristic.getService().getUuid() +
@@ -332,11 +556,12 @@ public class BluetoothLeDevice {
                 return;
             }
 
-            Log.v(TAG, "onCharacteristicChanged(): device = " + getAddress() +
-                    ", service = " + characteristic.getService().getUuid() +
-                    ", characteristic = " + characteristic.getUuid() +
-                    ", data = " + Arrays.toString(characteristic.getValue())
-            );
+            if (Log.isLoggable(TAG, Log.VERBOSE))
+                Log.v(TAG, "onCharacteristicChanged(): device = " + getAddress() +
+                        ", service = " + service.getUuid() +
+                        ", characteristic = " + characteristic.getUuid() +
+                        ", data = " + Arrays.toString(characteristic.getValue())
+                );
 
             service.onCharacteristicChanged(characteristic);
         }
@@ -351,19 +576,16 @@ public class BluetoothLeDevice {
                         ", status = " + status
                 );
                 mOnErrorObservable.dispatchGattError(status);
-                return;
+            } else if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "onDescriptorRead(): device = " + getAddress() +
+                        ", service = " + descriptor.getCharacteristic().getService().getUuid() +
+                        ", characteristic = " + descriptor.getCharacteristic().getUuid() +
+                        ", descriptor = " + descriptor.getUuid() +
+                        ", data = " + Arrays.toString(descriptor.getValue())
+                );
             }
 
-            Log.v(TAG, "onDescriptorRead(): device = " + getAddress() +
-                    ", service = " + descriptor.getCharacteristic().getService().getUuid() +
-                    ", characteristic = " + descriptor.getCharacteristic().getUuid() +
-                    ", descriptor = " + descriptor.getUuid() +
-                    ", data = " + Arrays.toString(descriptor.getValue())
-            );
-
-            synchronized (mGattLock) {
-                mGattLock.notify();
-            }
+            mOperationQueue.onDescriptorRead(descriptor, status);
         }
 
         @Override
@@ -376,296 +598,1018 @@ public class BluetoothLeDevice {
                         ", status = " + status
                 );
                 mOnErrorObservable.dispatchGattError(status);
+            } else if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "onDescriptorWrite(): device = " + getAddress() +
+                        ", service = " + descriptor.getCharacteristic().getService().getUuid() +
+                        ", characteristic = " + descriptor.getCharacteristic().getUuid() +
+                        ", descriptor = " + descriptor.getUuid() +
+                        ", data = " + Arrays.toString(descriptor.getValue())
+                );
+            }
+
+            mOperationQueue.onDescriptorWrite(descriptor, status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.e(TAG, "onMtuChanged(): Failed! device = " + getAddress() + ", status = " + status);
+            } else {
+                Log.v(TAG, "onMtuChanged(): device = " + getAddress() + ", mtu = " + mtu);
+                mMtu = mtu;
+            }
+
+            mOperationQueue.onMtuChanged(mtu, status);
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.e(TAG, "onPhyUpdate(): Failed! device = " + getAddress() + ", status = " + status);
                 return;
             }
 
-            Log.v(TAG, "onDescriptorWrite(): device = " + getAddress() +
-                    ", service = " + descriptor.getCharacteristic().getService().getUuid() +
-                    ", characteristic = " + descriptor.getCharacteristic().getUuid() +
-                    ", descriptor = " + descriptor.getUuid() +
-                    ", data = " + Arrays.toString(descriptor.getValue())
-            );
+            Log.v(TAG, "onPhyUpdate(): device = " + getAddress() + ", tx = " + txPhy + ", rx = " + rxPhy);
+            mOnConnectionParametersChangedObservable.notifyPhyChanged(txPhy, rxPhy);
+        }
 
-            synchronized (mGattLock) {
-                mGattLock.notify();
+        @Override
+        public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.e(TAG, "onReliableWriteCompleted(): Failed! device = " + getAddress() + ", status = " + status);
+                mOnErrorObservable.dispatchGattError(status);
+            } else {
+                Log.v(TAG, "onReliableWriteCompleted(): device = " + getAddress());
             }
+
+            mOperationQueue.onReliableWriteCompleted(status);
         }
     };
 
     /**
-     * connect to the device
-     *
-     * @param context the application's {@link Context}
+     * the link is up, negotiate the MTU and discover the services right away, each stage starts
+     * as soon as the previous one completes.
      */
-    public void connect(@NonNull Context context) {
-        mHandler.removeCallbacks(mConnectRunnable);
-        mHandler.post(mConnectRunnable.setContext(context));
+    private void onLinkUp() {
+        final int generation = mReadiness.getGeneration();
+        if (!completeStage(generation, STAGE_LINK_UP))
+            return;
+
+        // the cache is read from disk on the lane, not on the binder thread. the queue issues on
+        // the lane too, so the services are set up before the discovery queued below goes out.
+        mGattLane.execute(() -> setUpServicesFromCache(generation));
+
+        // both go to the front of the queue, the queue issues them back to back.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mOperationQueue.enqueue(new GattOperation.RequestMtu(MAX_MTU).setPriority(GattOperation.PRIORITY_INTERACTIVE))
+                    .addOnCompleteListener(operation -> completeStage(generation, STAGE_MTU));
+        } else {
+            completeStage(generation, STAGE_MTU);
+        }
+
+        mOperationQueue.enqueue(new GattOperation.DiscoverServices().setPriority(GattOperation.PRIORITY_INTERACTIVE))
+                .addOnCompleteListener(operation -> {
+                    if (!operation.isSuccess()) {
+                        Log.e(TAG, "onLinkUp(): service discovery failed, device = " + getAddress() + ", status = " + operation.getStatus());
+                        return;
+                    }
+                    if (completeStage(generation, STAGE_DISCOVERY)) {
+                        subscribeServiceChanged();
+                        restoreSubscriptions(generation);
+                    }
+                });
     }
 
-    private final ConnectRunnable mConnectRunnable = new ConnectRunnable();
+    /**
+     * called on the lane, set the services up from the attribute cache, operations queued for
+     * them are held back until discovery has confirmed the table.
+     *
+     * @param generation the connection the services are for, nothing is set up if it's gone
+     */
+    private void setUpServicesFromCache(int generation) {
+        final GattAttributeCache cache;
+        synchronized (mGattServices) {
+            cache = mAttributeCache;
+        }
+        final List<GattAttributeCache.Service> layout = cache == null ? null : cache.load(mId);
+        if (layout == null || mReadiness.getGeneration() != generation)
+            return;
 
-    private final class ConnectRunnable implements Runnable {
-        private Context mContext;
+        final ArrayList<android.bluetooth.BluetoothGattService> nativeServices = new ArrayList<>(layout.size());
+        final ArrayList<BluetoothGattService> services = new ArrayList<>(layout.size());
+        for (final GattAttributeCache.Service cached : layout) {
+            final android.bluetooth.BluetoothGattService nativeService = cached.toNative();
+            nativeServices.add(nativeService);
+            services.add(newService(nativeService, cached.mClassName));
+        }
 
-        public synchronized ConnectRunnable setContext(Context context) {
-            mContext = context.getApplicationContext();
-            return this;
+        mOperationQueue.setHeld(true);
+        synchronized (mGattServices) {
+            mProvisionalLayout = layout;
+            mProvisionalServices = nativeServices;
+            setServices(services);
         }
+        Log.d(TAG, "setUpServicesFromCache(): device = " + getAddress() + ", " + services.size() + " services.");
 
-        @Override
-        public synchronized void run() {
-            if (mContext == null)
-                return;
+        for (final BluetoothGattService service : services)
+            mOnServiceDiscoveredObservable.notifyServiceDiscovered(service);
+    }
 
-            synchronized (this) {
-                if (mGatt != null) {
-                    if (getConnectionState() == BluetoothProfile.STATE_DISCONNECTED) {
-                        close();
-                        mHandler.postDelayed(this, 1500);
-                        return;
-                    } else {
-                        mOnConnectionStateChangedObservable.notifyConnectionStateChanged(getConnectionState());
-                        return;
-                    }
-                }
-                if (mNativeDevice == null) {
-                    mOnConnectionStateChangedObservable.notifyConnectionStateChanged(getConnectionState());
-                    return;
-                }
-                Log.d(TAG, "connect(): " + getAddress() + " issued.");
-                mGatt = mNativeDevice.connectGatt(mContext, false, mGattCallback);
+    /**
+     * @param className the class the service resolved to last time, skips the factory if it's
+     *                  still around.
+     */
+    @NonNull
+    private BluetoothGattService newService(@NonNull android.bluetooth.BluetoothGattService nativeService, @Nullable String className) {
+        if (className != null && !className.isEmpty()) {
+            try {
+                final Class<?> klass = Class.forName(className);
+                if (BluetoothGattService.class.isAssignableFrom(klass))
+                    return (BluetoothGattService) klass.getConstructor(BluetoothLeDevice.class, android.bluetooth.BluetoothGattService.class).newInstance(this, nativeService);
+            } catch (ReflectiveOperationException ex) {
+                Log.v(TAG, "newService(): " + className + " is not usable anymore, " + ex.getMessage());
             }
         }
-    }
 
-    public void disconnect() {
-        mHandler.removeCallbacks(mDisconnectRunnable);
-        mHandler.post(mDisconnectRunnable);
+        final BluetoothGattService service = mServiceFactory.newInstance(this, nativeService);
+        return service == null ? new BluetoothGattService(this, nativeService) : service;
     }
 
-    private final Runnable mDisconnectRunnable = () -> {
-        synchronized (this) {
-            if (mGatt == null)
-                return;
-            Log.d(TAG, "disconnect(): " + getAddress() + " issued.");
-            mGatt.disconnect();
-            mOnConnectionStateChangedObservable.notifyConnectionStateChanged(getConnectionState());
+    /**
+     * discovery has completed, confirm the services set up from the cache, or set them up now.
+     */
+    private void onServicesResolved(@NonNull List<android.bluetooth.BluetoothGattService> nativeServices) {
+        final GattAttributeCache cache;
+        final List<GattAttributeCache.Service> provisionalLayout;
+        final List<android.bluetooth.BluetoothGattService> provisionalServices;
+        final int[] changedRange;
+        synchronized (mGattServices) {
+            cache = mAttributeCache;
+            provisionalLayout = mProvisionalLayout;
+            provisionalServices = mProvisionalServices;
+            changedRange = mChangedRange;
+            mProvisionalLayout = null;
+            mProvisionalServices = null;
+            mChangedRange = null;
         }
-    };
 
-    public void close() {
-        mHandler.removeCallbacks(mCloseRunnable);
-        mHandler.postDelayed(mCloseRunnable, 1000);
-    }
+        if (changedRange != null && provisionalLayout == null) {
+            onServicesChanged(nativeServices, changedRange[0], changedRange[1], cache);
+            return;
+        }
 
-    private final Runnable mCloseRunnable = () -> {
-        synchronized (this) {
-            if (mGatt == null)
-                return;
-            Log.d(TAG, "close(): gatt connection closed.");
-            mGatt.close();
-            mGatt = null;
-            mOnConnectionStateChangedObservable.notifyConnectionStateChanged(getConnectionState());
+        if (provisionalLayout != null && GattAttributeCache.sameLayout(provisionalLayout, GattAttributeCache.layoutOf(nativeServices, null))) {
+            // same table, keep the services (and their listeners), and rebind them.
+            synchronized (mResolvedAttributes) {
+                for (int i = 0; i < nativeServices.size(); ++i)
+                    mapAttributes(provisionalServices.get(i), nativeServices.get(i));
+            }
+            synchronized (mGattServices) {
+                for (int i = 0; i < nativeServices.size(); ++i)
+                    mGattServices.get(i).setNativeService(nativeServices.get(i));
+                // the instance IDs are known now.
+                setServices(new ArrayList<>(mGattServices));
+            }
+            Log.d(TAG, "onServicesResolved(): cached table confirmed, device = " + getAddress());
+            return;
         }
-    };
+
+        if (provisionalLayout != null)
+            Log.d(TAG, "onServicesResolved(): cached table is stale, device = " + getAddress());
+
+        final ArrayList<BluetoothGattService> services = new ArrayList<>(nativeServices.size());
+        for (final android.bluetooth.BluetoothGattService nativeService : nativeServices)
+            services.add(newService(nativeService, null));
+        synchronized (mGattServices) {
+            setServices(services);
+        }
+
+        for (final BluetoothGattService service : services)
+            mOnServiceDiscoveredObservable.notifyServiceDiscovered(service);
+
+        if (cache != null) {
+            final List<GattAttributeCache.Service> layout = GattAttributeCache.layoutOf(nativeServices, services);
+            mGattLane.execute(() -> cache.store(mId, layout));
+        }
+    }
 
     /**
-     * get a service with specific service {@link UUID} and instance ID equals to 0.
-     *
-     * @param uuid the UUID of the service
-     * @return the {@link BluetoothGattService}, {@code null} if not found.
+     * must hold {@link #mResolvedAttributes}, map the attributes of two services with the same
+     * layout by their position.
      */
-    @Nullable
-    public BluetoothGattService getService(@NonNull UUID uuid) {
-        for (final BluetoothGattService service : mGattServices)
-            if (service.getUuid().equals(uuid))
-                return service;
-        return null;
+    private void mapAttributes(@NonNull android.bluetooth.BluetoothGattService cached, @NonNull android.bluetooth.BluetoothGattService discovered) {
+        final List<BluetoothGattCharacteristic> cachedCharacteristics = cached.getCharacteristics();
+        final List<BluetoothGattCharacteristic> discoveredCharacteristics = discovered.getCharacteristics();
+        for (int i = 0; i < cachedCharacteristics.size(); ++i) {
+            final BluetoothGattCharacteristic characteristic = cachedCharacteristics.get(i);
+            mResolvedAttributes.put(characteristic, discoveredCharacteristics.get(i));
+
+            final List<BluetoothGattDescriptor> cachedDescriptors = characteristic.getDescriptors();
+            final List<BluetoothGattDescriptor> discoveredDescriptors = discoveredCharacteristics.get(i).getDescriptors();
+            for (int j = 0; j < cachedDescriptors.size(); ++j)
+                mResolvedAttributes.put(cachedDescriptors.get(j), discoveredDescriptors.get(j));
+        }
     }
 
-    @Nullable
-    public BluetoothGattService getService(Class<? extends BluetoothGattService> klass) {
-        for (final BluetoothGattService service : mGattServices)
-            if (klass.isAssignableFrom(service.getClass()))
-                return service;
-        return null;
+    /**
+     * must hold {@link #mGattServices}, replace the services and publish a new index of them.
+     */
+    private void setServices(@NonNull List<BluetoothGattService> services) {
+        mGattServices.clear();
+        mGattServices.addAll(services);
+        mServiceIndex = new GattServiceIndex(services);
+        routeSinks();
     }
 
     /**
-     * get a service with specific service {@link UUID} and instance ID
-     *
-     * @param uuid       the {@link UUID} of the service
-     * @param instanceId the instance ID
-     * @return the {@link BluetoothGattService}, {@code null} if not found.
+     * must hold {@link #mGattServices}, route the sinks by the instance IDs of the
+     * characteristics as they are now.
      */
-    @Nullable
-    public BluetoothGattService getService(@NonNull UUID uuid, int instanceId) {
-        for (final BluetoothGattService service : mGattServices)
-            if (service.getUuid().equals(uuid) && service.getInstanceId() == instanceId)
-                return service;
-        return null;
+    private void routeSinks() {
+        final SparseArray<GattNotificationSink> routes = new SparseArray<>(mSinks.size());
+        for (final Map.Entry<BluetoothGattCharacteristic, GattNotificationSink> entry : mSinks.entrySet())
+            routes.put(resolve(entry.getKey()).getInstanceId(), entry.getValue());
+        mSinkRoutes = routes;
     }
 
     /**
-     * get all services discovered specific {@link UUID}
+     * buffer the notifications of a characteristic in a channel, instead of handing them to
+     * {@link BluetoothGattService#onCharacteristicChanged(BluetoothGattCharacteristic)} on the
+     * binder thread. enabling the notifications is still up to the caller.
      *
-     * @param uuid the UUID of the service
-     * @return an {@link ArrayList<BluetoothGattService>} containing all services found
+     * @param characteristic the characteristic
+     * @param channel        the channel, {@code null} to hand the notifications to the service
+     *                       again
+     * @throws IllegalStateException if a {@link GattNotificationPublisher} has subscribers for
+     *                               the characteristic
      */
-    @NonNull
-    public List<BluetoothGattService> getServices(@NonNull UUID uuid) {
-        final ArrayList<tw.idv.palatis.ble.services.BluetoothGattService> services = new ArrayList<>(mGattServices.size());
-        for (final BluetoothGattService service : mGattServices)
-            if (service.getUuid().equals(uuid))
-                services.add(service);
-        return services;
+    public void setNotificationChannel(@NonNull BluetoothGattCharacteristic characteristic, @Nullable GattNotificationChannel channel) {
+        synchronized (mGattServices) {
+            final GattNotificationSink attached = getNotificationSink(characteristic);
+            if (attached != null && !(attached instanceof GattNotificationChannel))
+                throw new IllegalStateException("a publisher has subscribers for " + characteristic.getUuid() + ", cancel them first.");
+            replaceNotificationSink(characteristic, attached, channel);
+        }
     }
 
     /**
-     * return all services discovered for this device
+     * must hold {@link #mGattServices}.
      *
-     * @return all services discovered for this device
+     * @return the sink attached to the characteristic, under whichever instance it was attached
+     */
+    @Nullable
+    private GattNotificationSink getNotificationSink(@NonNull BluetoothGattCharacteristic characteristic) {
+        final BluetoothGattCharacteristic resolved = resolve(characteristic);
+        for (final Map.Entry<BluetoothGattCharacteristic, GattNotificationSink> entry : mSinks.entrySet())
+            if (resolve(entry.getKey()) == resolved)
+                return entry.getValue();
+        return null;
+    }
+
+    /**
+     * swap the sink of a characteristic, unless another one than {@code expected} is attached.
+     *
+     * @param sink the new sink, {@code null} to hand the notifications to the service again
+     * @return {@code false} if the sink attached isn't {@code expected}, nothing has changed
+     */
+    boolean replaceNotificationSink(@NonNull BluetoothGattCharacteristic characteristic, @Nullable GattNotificationSink expected, @Nullable GattNotificationSink sink) {
+        synchronized (mGattServices) {
+            final GattNotificationSink attached = getNotificationSink(characteristic);
+            if (attached != expected)
+                return false;
+            if (attached != null) {
+                final BluetoothGattCharacteristic resolved = resolve(characteristic);
+                final Iterator<BluetoothGattCharacteristic> iterator = mSinks.keySet().iterator();
+                while (iterator.hasNext())
+                    if (resolve(iterator.next()) == resolved)
+                        iterator.remove();
+            }
+            if (sink != null)
+                mSinks.put(characteristic, sink);
+            routeSinks();
+            return true;
+        }
+    }
+
+    private void forgetServices() {
+        synchronized (mGattServices) {
+            setServices(Collections.emptyList());
+            mProvisionalLayout = null;
+            mProvisionalServices = null;
+            mChangedRange = null;
+        }
+        synchronized (mResolvedAttributes) {
+            mResolvedAttributes.clear();
+        }
+        mOperationQueue.setHeld(false);
+    }
+
+    /**
+     * @return {@code true} if the services have been set up from the cache and discovery hasn't
+     * confirmed them yet
+     */
+    private boolean isProvisional() {
+        synchronized (mGattServices) {
+            return mProvisionalLayout != null;
+        }
+    }
+
+    /**
+     * the attributes set up from the cache don't carry instance IDs, take them from the cache.
      */
     @NonNull
-    public List<tw.idv.palatis.ble.services.BluetoothGattService> getServices() {
-        return new ArrayList<>(mGattServices);
+    private Subscription subscriptionOf(@NonNull BluetoothGattService service, @NonNull BluetoothGattCharacteristic characteristic) {
+        synchronized (mGattServices) {
+            final int index = mProvisionalLayout == null ? -1 : mGattServices.indexOf(service);
+            if (index >= 0) {
+                final GattAttributeCache.Service cached = mProvisionalLayout.get(index);
+                final int position = mProvisionalServices.get(index).getCharacteristics().indexOf(characteristic);
+                if (position >= 0)
+                    return new Subscription(cached.mUuid, cached.mInstanceId, characteristic.getUuid(), cached.mCharacteristics.get(position).mInstanceId);
+            }
+        }
+        final BluetoothGattCharacteristic resolved = resolve(characteristic);
+        return new Subscription(service.getUuid(), service.getInstanceId(), resolved.getUuid(), resolved.getInstanceId());
+    }
+
+    @NonNull
+    BluetoothGattCharacteristic resolve(@NonNull BluetoothGattCharacteristic characteristic) {
+        return (BluetoothGattCharacteristic) resolveAttribute(characteristic);
+    }
+
+    @NonNull
+    BluetoothGattDescriptor resolve(@NonNull BluetoothGattDescriptor descriptor) {
+        return (BluetoothGattDescriptor) resolveAttribute(descriptor);
     }
 
-    public void readCharacteristic(final BluetoothGattService service, final BluetoothGattCharacteristic characteristic) {
-        if (getConnectionState() != BluetoothProfile.STATE_CONNECTED)
+    /**
+     * follow the mapping to the latest attribute, it may have been replaced more than once
+     * (cached, then discovered, then rediscovered).
+     */
+    @NonNull
+    private Object resolveAttribute(@NonNull Object attribute) {
+        synchronized (mResolvedAttributes) {
+            Object resolved = attribute;
+            Object next;
+            while ((next = mResolvedAttributes.get(resolved)) != null)
+                resolved = next;
+            return resolved;
+        }
+    }
+
+    /**
+     * enable the Service Changed indication, unless it's among the restored subscriptions already.
+     */
+    private void subscribeServiceChanged() {
+        final BluetoothGattService service = getService(UUID_SERVICE_GENERIC_ATTRIBUTE);
+        if (service == null)
+            return;
+        final BluetoothGattCharacteristic characteristic = service.getNativeService().getCharacteristic(UUID_CHARACTERISTIC_SERVICE_CHANGED);
+        if (characteristic == null)
             return;
 
-        try {
-            mGattExecutor.execute(() -> {
-                try {
-                    synchronized (mGattLock) {
-                        mGatt.readCharacteristic(characteristic);
+        synchronized (mSubscriptions) {
+            if (mSubscriptions.contains(subscriptionOf(service, characteristic)))
+                return;
+        }
+        setCharacteristicNotification(service, characteristic, true);
+    }
 
-                        long start_ms = System.currentTimeMillis();
-                        mGattLock.wait(3000);
-                        if (System.currentTimeMillis() - start_ms >= 3000) {
-                            mOnErrorObservable.dispatchTimedOut(service);
-                            return;
-                        }
+    /**
+     * the remote device says part of its attribute table has changed, rediscover it.
+     *
+     * @param value the affected handle range, start and end handle in little-endian uint16
+     */
+    private void onServiceChanged(@Nullable byte[] value) {
+        final int start = value != null && value.length >= 4 ? (value[0] & 0xff) | (value[1] & 0xff) << 8 : 0x0001;
+        final int end = value != null && value.length >= 4 ? (value[2] & 0xff) | (value[3] & 0xff) << 8 : 0xffff;
+        Log.d(TAG, "onServiceChanged(): device = " + getAddress() + ", handles = [" + start + ", " + end + "]");
+
+        synchronized (mGattServices) {
+            // widen a rediscovery that hasn't completed yet.
+            if (mChangedRange != null) {
+                mChangedRange[0] = Math.min(mChangedRange[0], start);
+                mChangedRange[1] = Math.max(mChangedRange[1], end);
+                return;
+            }
+            mChangedRange = new int[]{start, end};
+        }
+
+        final GattAttributeCache cache;
+        synchronized (mGattServices) {
+            cache = mAttributeCache;
+        }
+        if (cache != null)
+            mGattLane.execute(() -> cache.invalidate(mId));
 
-                        service.onCharacteristicRead(characteristic);
+        mOperationQueue.enqueue(new GattOperation.DiscoverServices().setPriority(GattOperation.PRIORITY_INTERACTIVE))
+                .addOnCompleteListener(operation -> {
+                    if (operation.isSuccess())
+                        return;
+                    Log.e(TAG, "onServiceChanged(): rediscovery failed, device = " + getAddress() + ", status = " + operation.getStatus());
+                    synchronized (mGattServices) {
+                        mChangedRange = null;
                     }
-                } catch (InterruptedException ignored) {
-                    Log.v(TAG, "readCharacteristic(): thread interrupted.");
-                } catch (Exception ex) {
-                    mOnErrorObservable.dispatchFatalError(service, ex);
+                });
+    }
+
+    /**
+     * rediscovery after a Service Changed indication has completed, keep the services outside
+     * the changed handle range and those inside whose layout is the same, set up the others.
+     * <p>
+     * the instance ID of a service is its start handle on Android.
+     */
+    private void onServicesChanged(@NonNull List<android.bluetooth.BluetoothGattService> nativeServices, int start, int end, @Nullable GattAttributeCache cache) {
+        final ArrayList<BluetoothGattService> previous;
+        synchronized (mGattServices) {
+            previous = new ArrayList<>(mGattServices);
+        }
+
+        final ArrayList<BluetoothGattService> services = new ArrayList<>(nativeServices.size());
+        final ArrayList<BluetoothGattService> added = new ArrayList<>();
+        final ArrayList<BluetoothGattService> changed = new ArrayList<>();
+        for (final android.bluetooth.BluetoothGattService nativeService : nativeServices) {
+            BluetoothGattService match = null;
+            for (final BluetoothGattService service : previous) {
+                if (service.getUuid().equals(nativeService.getUuid()) && service.getInstanceId() == nativeService.getInstanceId()) {
+                    match = service;
+                    break;
                 }
-            });
-        } catch (NullPointerException ex) {
-            mOnErrorObservable.dispatchFatalError(service, ex);
+            }
+
+            if (match == null) {
+                final BluetoothGattService service = newService(nativeService, null);
+                services.add(service);
+                added.add(service);
+                continue;
+            }
+            previous.remove(match);
+
+            final android.bluetooth.BluetoothGattService oldService = match.getNativeService();
+            final boolean inRange = nativeService.getInstanceId() >= start && nativeService.getInstanceId() <= end;
+            if (!inRange || GattAttributeCache.sameLayout(
+                    GattAttributeCache.layoutOf(Collections.singletonList(oldService), null),
+                    GattAttributeCache.layoutOf(Collections.singletonList(nativeService), null))) {
+                // untouched, keep the service and its listeners.
+                synchronized (mResolvedAttributes) {
+                    mapAttributes(oldService, nativeService);
+                }
+                match.setNativeService(nativeService);
+                services.add(match);
+            } else {
+                final BluetoothGattService service = newService(nativeService, match.getClass().getName());
+                services.add(service);
+                changed.add(service);
+            }
+        }
+        // whatever is left has been removed.
+        final ArrayList<BluetoothGattService> removed = previous;
+
+        synchronized (mGattServices) {
+            setServices(services);
+        }
+        Log.d(TAG, "onServicesChanged(): device = " + getAddress() + ", added = " + added.size() + ", removed = " + removed.size() + ", changed = " + changed.size());
+
+        for (final BluetoothGattService service : added)
+            mOnServiceDiscoveredObservable.notifyServiceDiscovered(service);
+        for (final BluetoothGattService service : changed)
+            mOnServiceDiscoveredObservable.notifyServiceDiscovered(service);
+        mOnServicesChangedObservable.notifyServicesChanged(added, removed, changed);
+
+        if (cache != null) {
+            final List<GattAttributeCache.Service> layout = GattAttributeCache.layoutOf(nativeServices, services);
+            mGattLane.execute(() -> cache.store(mId, layout));
         }
     }
 
-    public void writeCharacteristic(final BluetoothGattService service, final BluetoothGattCharacteristic characteristic, final byte[] data) {
-        if (getConnectionState() != BluetoothProfile.STATE_CONNECTED)
+    /**
+     * enable the notifications again that were enabled when the link went down.
+     */
+    private void restoreSubscriptions(final int generation) {
+        final BluetoothGatt gatt = getGatt();
+        final ArrayList<GattOperation> restoring = new ArrayList<>();
+        final ArrayList<Subscription> subscriptions;
+        synchronized (mSubscriptions) {
+            subscriptions = new ArrayList<>(mSubscriptions);
+        }
+        for (final Subscription subscription : subscriptions) {
+            final BluetoothGattService service = getService(subscription.mServiceUuid, subscription.mServiceInstanceId);
+            final BluetoothGattCharacteristic characteristic = gatt == null || service == null ? null : subscription.find(gatt);
+            if (characteristic == null) {
+                Log.d(TAG, "restoreSubscriptions(): " + subscription + " is gone, device = " + getAddress());
+                synchronized (mSubscriptions) {
+                    mSubscriptions.remove(subscription);
+                }
+                continue;
+            }
+            final GattOperation operation = setCharacteristicNotification(service, characteristic, true);
+            if (operation != null)
+                restoring.add(operation);
+        }
+
+        if (restoring.isEmpty()) {
+            if (completeStage(generation, STAGE_SUBSCRIPTIONS_RESTORED))
+                completeStage(generation, STAGE_READY);
             return;
+        }
 
-        try {
-            mGattExecutor.execute(() -> {
-                try {
-                    synchronized (mGattLock) {
-                        characteristic.setValue(data);
-                        mGatt.writeCharacteristic(characteristic);
-                        long start_ms = System.currentTimeMillis();
-                        mGattLock.wait(3000);
-                        if (System.currentTimeMillis() - start_ms >= 3000) {
-                            mOnErrorObservable.dispatchTimedOut(service);
-                            return;
-                        }
-                        service.onCharacteristicWrite(characteristic);
-                    }
-                } catch (InterruptedException ignored) {
-                    Log.v(TAG, "writeCharacteristic(): thread interrupted.");
-                } catch (Exception ex) {
-                    mOnErrorObservable.dispatchFatalError(service, ex);
-                }
+        final AtomicInteger remaining = new AtomicInteger(restoring.size());
+        for (final GattOperation operation : restoring) {
+            operation.addOnCompleteListener(completed -> {
+                if (!completed.isSuccess())
+                    Log.e(TAG, "restoreSubscriptions(): failed, device = " + getAddress() + ", status = " + completed.getStatus());
+                if (remaining.decrementAndGet() == 0 && completeStage(generation, STAGE_SUBSCRIPTIONS_RESTORED))
+                    completeStage(generation, STAGE_READY);
             });
-        } catch (NullPointerException ex) {
-            mOnErrorObservable.dispatchFatalError(service, ex);
         }
     }
 
-    public void readDescriptor(final BluetoothGattService service, final BluetoothGattDescriptor descriptor) {
-        if (getConnectionState() != BluetoothProfile.STATE_CONNECTED)
-            return;
+    /**
+     * @return {@code true} if the stage belongs to the current connection and follows the last
+     * completed one
+     */
+    private boolean completeStage(int generation, @ReadinessStage int stage) {
+        final long duration = mReadiness.complete(generation, stage);
+        if (duration < 0)
+            return false;
+
+        Log.d(TAG, "completeStage(): device = " + getAddress() + ", stage = " + stage + ", took " + duration + "ms");
+        if (stage == STAGE_LINK_UP)
+            mMetrics.onConnected(duration);
+        else if (stage == STAGE_READY)
+            mMetrics.onReady(mReadiness.getElapsed());
+        mOnReadyObservable.notifyStageCompleted(stage, duration);
+        if (stage == STAGE_READY)
+            mOnReadyObservable.notifyReady(mReadiness.getElapsed());
+        return true;
+    }
+
+    /**
+     * connect to the device
+     *
+     * @param context the application's {@link Context}
+     */
+    public void connect(@NonNull Context context) {
+        mDisconnectRequested = false;
+        mHandler.removeCallbacks(mReconnectRunnable);
+        mHandler.removeCallbacks(mConnectRunnable);
+        mHandler.post(mConnectRunnable.setContext(context));
+    }
 
-        try {
-            mGattExecutor.execute(() -> {
-                try {
-                    synchronized (mGattLock) {
-                        mGatt.readDescriptor(descriptor);
+    private final ConnectRunnable mConnectRunnable = new ConnectRunnable();
 
-                        long start_ms = System.currentTimeMillis();
-                        mGattLock.wait(3000);
-                        if (System.currentTimeMillis() - start_ms >= 3000) {
-                            mOnErrorObservable.dispatchTimedOut(service);
-                            return;
-                        }
+    private final class ConnectRunnable implements Runnable {
+        private Context mContext;
+
+        public synchronized ConnectRunnable setContext(Context context) {
+            mContext = context.getApplicationContext();
+            return this;
+        }
+
+        @Override
+        public synchronized void run() {
+            if (mContext == null)
+                return;
 
-                        service.onDescriptorRead(descriptor);
+            synchronized (this) {
+                if (mGatt != null) {
+                    if (getConnectionState() == BluetoothProfile.STATE_DISCONNECTED) {
+                        // the stale connection is closed by the time this runs again.
+                        closeGatt();
+                        mHandler.post(this);
+                        return;
+                    } else {
+                        mOnConnectionStateChangedObservable.notifyConnectionStateChanged(getConnectionState());
+                        return;
                     }
-                } catch (InterruptedException ignored) {
-                    Log.v(TAG, "readCharacteristic(): thread interrupted.");
-                } catch (Exception ex) {
-                    mOnErrorObservable.dispatchFatalError(service, ex);
                 }
-            });
-        } catch (NullPointerException ex) {
-            mOnErrorObservable.dispatchFatalError(service, ex);
+                if (mNativeDevice == null) {
+                    mOnConnectionStateChangedObservable.notifyConnectionStateChanged(getConnectionState());
+                    return;
+                }
+                Log.d(TAG, "connect(): " + getAddress() + " issued.");
+                mReadiness.start();
+                mGatt = mNativeDevice.connectGatt(mContext, false, mGattCallback);
+            }
         }
     }
 
-    public void writeDescriptor(final BluetoothGattService service, final BluetoothGattDescriptor descriptor, final byte[] data) {
-        if (getConnectionState() != BluetoothProfile.STATE_CONNECTED)
+    public void disconnect() {
+        stopReconnecting();
+        mHandler.removeCallbacks(mDisconnectRunnable);
+        mHandler.post(mDisconnectRunnable);
+    }
+
+    private final Runnable mDisconnectRunnable = () -> {
+        synchronized (this) {
+            if (mGatt == null)
+                return;
+            Log.d(TAG, "disconnect(): " + getAddress() + " issued.");
+            mGatt.disconnect();
+            mOnConnectionStateChangedObservable.notifyConnectionStateChanged(getConnectionState());
+        }
+    };
+
+    public void close() {
+        stopReconnecting();
+        closeGatt();
+    }
+
+    private void closeGatt() {
+        mHandler.removeCallbacks(mCloseRunnable);
+        mHandler.post(mCloseRunnable);
+    }
+
+    private void stopReconnecting() {
+        mDisconnectRequested = true;
+        synchronized (this) {
+            mReconnecting = false;
+        }
+        mHandler.removeCallbacks(mReconnectRunnable);
+    }
+
+    /**
+     * the link went down (or an attempt to bring it up failed), schedule a reconnect unless the
+     * user asked for it.
+     */
+    private void onLinkLost() {
+        final GattReconnectPolicy policy;
+        final boolean failedAttempt;
+        synchronized (this) {
+            policy = mReconnectPolicy;
+            if (policy == null || mDisconnectRequested)
+                return;
+            failedAttempt = mReconnecting;
+            mReconnecting = true;
+        }
+
+        if (failedAttempt) {
+            policy.onAttemptFailed();
+            mOnConnectionStateChangedObservable.notifyReconnectFailed(policy.getAttempts());
+        } else {
+            policy.onLinkLost();
+        }
+
+        final long delay = policy.nextDelayMillis();
+        if (delay < 0) {
+            final boolean circuitOpen = policy.isCircuitOpen();
+            Log.d(TAG, "onLinkLost(): giving up, device = " + getAddress() + ", " + policy);
+            synchronized (this) {
+                mReconnecting = false;
+            }
+            mOnConnectionStateChangedObservable.notifyReconnectAbandoned(policy.getAttempts(), circuitOpen);
             return;
+        }
 
-        try {
-            mGattExecutor.execute(() -> {
-                try {
-                    synchronized (mGattLock) {
-                        descriptor.setValue(data);
-                        mGatt.writeDescriptor(descriptor);
-
-                        long start_ms = System.currentTimeMillis();
-                        mGattLock.wait(3000);
-                        if (System.currentTimeMillis() - start_ms >= 3000) {
-                            mOnErrorObservable.dispatchTimedOut(service);
-                            return;
-                        }
+        Log.d(TAG, "onLinkLost(): reconnect in " + delay + "ms, device = " + getAddress() + ", " + policy);
+        mHandler.removeCallbacks(mReconnectRunnable);
+        mHandler.postDelayed(mReconnectRunnable, delay);
+        mOnConnectionStateChangedObservable.notifyReconnectScheduled(policy.getAttempts(), delay);
+    }
 
-                        service.onDescriptorWrite(descriptor);
-                    }
-                } catch (InterruptedException ignored) {
-                    Log.v(TAG, "setCharacteristicNotification(): thread interrupted.");
-                } catch (Exception ex) {
-                    mOnErrorObservable.dispatchFatalError(service, ex);
-                }
-            });
-        } catch (NullPointerException ex) {
-            mOnErrorObservable.dispatchFatalError(service, ex);
+    private void onReconnected() {
+        final GattReconnectPolicy policy;
+        final boolean reconnected;
+        synchronized (this) {
+            policy = mReconnectPolicy;
+            reconnected = mReconnecting;
+            mReconnecting = false;
         }
+        if (policy == null)
+            return;
+
+        final int attempts = policy.getAttempts();
+        policy.onConnected();
+        if (reconnected)
+            mOnConnectionStateChangedObservable.notifyReconnectSucceeded(attempts);
     }
 
-    public void setCharacteristicNotification(final BluetoothGattService service, final BluetoothGattCharacteristic characteristic, final boolean enabled) {
-        if (getConnectionState() != BluetoothProfile.STATE_CONNECTED)
+    private final Runnable mReconnectRunnable = () -> {
+        if (mDisconnectRequested)
             return;
+        Log.d(TAG, "reconnect(): " + getAddress());
+        mHandler.removeCallbacks(mConnectRunnable);
+        mHandler.post(mConnectRunnable);
+    };
+
+    private final Runnable mCloseRunnable = () -> {
+        synchronized (this) {
+            if (mGatt == null)
+                return;
+            Log.d(TAG, "close(): gatt connection closed.");
+            mGatt.close();
+            mGatt = null;
+            mOnConnectionStateChangedObservable.notifyConnectionStateChanged(getConnectionState());
+        }
+    };
+
+    /**
+     * get a service with specific service {@link UUID} and instance ID equals to 0.
+     *
+     * @param uuid the UUID of the service
+     * @return the {@link BluetoothGattService}, {@code null} if not found.
+     */
+    @Nullable
+    public BluetoothGattService getService(@NonNull UUID uuid) {
+        return mServiceIndex.getService(uuid);
+    }
+
+    @Nullable
+    public BluetoothGattService getService(Class<? extends BluetoothGattService> klass) {
+        return mServiceIndex.getService(klass);
+    }
 
-        if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) == 0)
-            Log.v(TAG, "setCharacteristicNotification(): characteristic doesn't support NOTIFY.");
+    /**
+     * get a service with specific service {@link UUID} and instance ID
+     *
+     * @param uuid       the {@link UUID} of the service
+     * @param instanceId the instance ID
+     * @return the {@link BluetoothGattService}, {@code null} if not found.
+     */
+    @Nullable
+    public BluetoothGattService getService(@NonNull UUID uuid, int instanceId) {
+        return mServiceIndex.getService(uuid, instanceId);
+    }
+
+    /**
+     * get all services discovered specific {@link UUID}
+     *
+     * @param uuid the UUID of the service
+     * @return an {@link ArrayList<BluetoothGattService>} containing all services found
+     */
+    @NonNull
+    public List<BluetoothGattService> getServices(@NonNull UUID uuid) {
+        return new ArrayList<>(mServiceIndex.getServices(uuid));
+    }
 
-        mGatt.setCharacteristicNotification(characteristic, enabled);
-        final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID_DESCRIPTOR_CLIENT_CHARACTERISTIC_CONFIG);
+    /**
+     * return all services discovered for this device
+     *
+     * @return all services discovered for this device
+     */
+    @NonNull
+    public List<tw.idv.palatis.ble.services.BluetoothGattService> getServices() {
+        return new ArrayList<>(mServiceIndex.getServices());
+    }
+
+    /**
+     * queue a characteristic read, {@link BluetoothGattService#onCharacteristicRead(BluetoothGattCharacteristic)}
+     * is called when the value arrives.
+     *
+     * @param service        the service the characteristic belongs to
+     * @param characteristic the characteristic to read
+     * @return the completion handle of the queued operation
+     */
+    @NonNull
+    public GattOperation readCharacteristic(@NonNull final BluetoothGattService service, @NonNull final BluetoothGattCharacteristic characteristic) {
+        return readCharacteristic(service, characteristic, GattOperation.PRIORITY_NORMAL);
+    }
+
+    /**
+     * same as {@link #readCharacteristic(BluetoothGattService, BluetoothGattCharacteristic)},
+     * queued with the given priority class.
+     * <p>
+     * if a read of the same characteristic is already queued or in flight, no new read is issued,
+     * the returned handle completes with the result of the pending one.
+     */
+    @NonNull
+    public GattOperation readCharacteristic(@NonNull final BluetoothGattService service, @NonNull final BluetoothGattCharacteristic characteristic, @GattOperation.Priority final int priority) {
+        return readCharacteristic(service, characteristic, priority, GattOperation.NO_DEADLINE);
+    }
+
+    /**
+     * same as {@link #readCharacteristic(BluetoothGattService, BluetoothGattCharacteristic, int)},
+     * completes with {@link GattOperation#STATUS_EXPIRED} if it is still queued at the deadline.
+     *
+     * @param deadline in {@link android.os.SystemClock#elapsedRealtime()} milliseconds, or
+     *                 {@link GattOperation#NO_DEADLINE}
+     */
+    @NonNull
+    public GattOperation readCharacteristic(@NonNull final BluetoothGattService service, @NonNull final BluetoothGattCharacteristic characteristic, @GattOperation.Priority final int priority, final long deadline) {
+        return mOperationQueue.enqueue(new GattOperation.ReadCharacteristic(service, characteristic).setPriority(priority).setDeadline(deadline));
+    }
+
+    /**
+     * queue a characteristic write, {@link BluetoothGattService#onCharacteristicWrite(BluetoothGattCharacteristic)}
+     * is called when the remote device acknowledged the write.
+     *
+     * @param service        the service the characteristic belongs to
+     * @param characteristic the characteristic to write
+     * @param data           the new value
+     * @return the completion handle of the queued operation
+     */
+    @NonNull
+    public GattOperation writeCharacteristic(@NonNull final BluetoothGattService service, @NonNull final BluetoothGattCharacteristic characteristic, @NonNull final byte[] data) {
+        return writeCharacteristic(service, characteristic, data, GattOperation.PRIORITY_NORMAL);
+    }
+
+    /**
+     * same as {@link #writeCharacteristic(BluetoothGattService, BluetoothGattCharacteristic, byte[])},
+     * queued with the given priority class.
+     */
+    @NonNull
+    public GattOperation writeCharacteristic(@NonNull final BluetoothGattService service, @NonNull final BluetoothGattCharacteristic characteristic, @NonNull final byte[] data, @GattOperation.Priority final int priority) {
+        return writeCharacteristic(service, characteristic, data, priority, GattOperation.NO_DEADLINE);
+    }
+
+    /**
+     * same as {@link #writeCharacteristic(BluetoothGattService, BluetoothGattCharacteristic, byte[], int)},
+     * completes with {@link GattOperation#STATUS_EXPIRED} if it is still queued at the deadline.
+     *
+     * @param deadline in {@link android.os.SystemClock#elapsedRealtime()} milliseconds, or
+     *                 {@link GattOperation#NO_DEADLINE}
+     */
+    @NonNull
+    public GattOperation writeCharacteristic(@NonNull final BluetoothGattService service, @NonNull final BluetoothGattCharacteristic characteristic, @NonNull final byte[] data, @GattOperation.Priority final int priority, final long deadline) {
+        return mOperationQueue.enqueue(new GattOperation.WriteCharacteristic(service, characteristic, data).setPriority(priority).setDeadline(deadline));
+    }
+
+    /**
+     * queue a write-without-response stream of {@code data} into a characteristic, split into
+     * the largest packets the negotiated MTU allows.
+     *
+     * @see #streamCharacteristic(BluetoothGattService, BluetoothGattCharacteristic, byte[], int, int)
+     */
+    @NonNull
+    public GattStreamWrite streamCharacteristic(@NonNull final BluetoothGattService service, @NonNull final BluetoothGattCharacteristic characteristic, @NonNull final byte[] data) {
+        return streamCharacteristic(service, characteristic, data, GattStreamWrite.PACKET_SIZE_AUTO, GattStreamWrite.DEFAULT_WINDOW);
+    }
+
+    /**
+     * queue a write-without-response stream of {@code data} into a characteristic. the whole
+     * stream takes one slot of the operation queue, and completes once every packet has been
+     * accepted by the bluetooth stack.
+     *
+     * @param service        the service the characteristic belongs to
+     * @param characteristic the characteristic to write
+     * @param data           the payload, must not be empty
+     * @param packetSize     max bytes per packet, or {@link GattStreamWrite#PACKET_SIZE_AUTO}
+     * @param window         max packets handed to the stack without a write callback
+     * @return the completion handle, which also reports throughput and stall counts
+     */
+    @NonNull
+    public GattStreamWrite streamCharacteristic(@NonNull final BluetoothGattService service, @NonNull final BluetoothGattCharacteristic characteristic, @NonNull final byte[] data, final int packetSize, final int window) {
+        final GattStreamWrite stream = new GattStreamWrite(service, characteristic, data, packetSize, window);
+        mOperationQueue.enqueue(stream);
+        return stream;
+    }
+
+    /**
+     * start building a reliable write transaction, add the writes with
+     * {@link GattReliableWrite#write(BluetoothGattCharacteristic, byte[])} and queue it with
+     * {@link GattReliableWrite#commit()}.
+     *
+     * @param service the service the characteristics belong to
+     * @return a new, empty transaction
+     */
+    @NonNull
+    public GattReliableWrite newReliableWrite(@NonNull final BluetoothGattService service) {
+        return new GattReliableWrite(this, service);
+    }
+
+    /**
+     * queue a descriptor read, {@link BluetoothGattService#onDescriptorRead(BluetoothGattDescriptor)}
+     * is called when the value arrives.
+     *
+     * @param service    the service the descriptor belongs to
+     * @param descriptor the descriptor to read
+     * @return the completion handle of the queued operation
+     */
+    @NonNull
+    public GattOperation readDescriptor(@NonNull final BluetoothGattService service, @NonNull final BluetoothGattDescriptor descriptor) {
+        return readDescriptor(service, descriptor, GattOperation.PRIORITY_NORMAL);
+    }
+
+    /**
+     * same as {@link #readDescriptor(BluetoothGattService, BluetoothGattDescriptor)}, queued with
+     * the given priority class.
+     */
+    @NonNull
+    public GattOperation readDescriptor(@NonNull final BluetoothGattService service, @NonNull final BluetoothGattDescriptor descriptor, @GattOperation.Priority final int priority) {
+        return readDescriptor(service, descriptor, priority, GattOperation.NO_DEADLINE);
+    }
+
+    /**
+     * same as {@link #readDescriptor(BluetoothGattService, BluetoothGattDescriptor, int)},
+     * completes with {@link GattOperation#STATUS_EXPIRED} if it is still queued at the deadline.
+     *
+     * @param deadline in {@link android.os.SystemClock#elapsedRealtime()} milliseconds, or
+     *                 {@link GattOperation#NO_DEADLINE}
+     */
+    @NonNull
+    public GattOperation readDescriptor(@NonNull final BluetoothGattService service, @NonNull final BluetoothGattDescriptor descriptor, @GattOperation.Priority final int priority, final long deadline) {
+        return mOperationQueue.enqueue(new GattOperation.ReadDescriptor(service, descriptor).setPriority(priority).setDeadline(deadline));
+    }
+
+    /**
+     * queue a descriptor write, {@link BluetoothGattService#onDescriptorWrite(BluetoothGattDescriptor)}
+     * is called when the remote device acknowledged the write.
+     *
+     * @param service    the service the descriptor belongs to
+     * @param descriptor the descriptor to write
+     * @param data       the new value
+     * @return the completion handle of the queued operation
+     */
+    @NonNull
+    public GattOperation writeDescriptor(@NonNull final BluetoothGattService service, @NonNull final BluetoothGattDescriptor descriptor, @NonNull final byte[] data) {
+        return writeDescriptor(service, descriptor, data, GattOperation.PRIORITY_NORMAL);
+    }
+
+    /**
+     * same as {@link #writeDescriptor(BluetoothGattService, BluetoothGattDescriptor, byte[])},
+     * queued with the given priority class.
+     */
+    @NonNull
+    public GattOperation writeDescriptor(@NonNull final BluetoothGattService service, @NonNull final BluetoothGattDescriptor descriptor, @NonNull final byte[] data, @GattOperation.Priority final int priority) {
+        return writeDescriptor(service, descriptor, data, priority, GattOperation.NO_DEADLINE);
+    }
+
+    /**
+     * same as {@link #writeDescriptor(BluetoothGattService, BluetoothGattDescriptor, byte[], int)},
+     * completes with {@link GattOperation#STATUS_EXPIRED} if it is still queued at the deadline.
+     *
+     * @param deadline in {@link android.os.SystemClock#elapsedRealtime()} milliseconds, or
+     *                 {@link GattOperation#NO_DEADLINE}
+     */
+    @NonNull
+    public GattOperation writeDescriptor(@NonNull final BluetoothGattService service, @NonNull final BluetoothGattDescriptor descriptor, @NonNull final byte[] data, @GattOperation.Priority final int priority, final long deadline) {
+        return mOperationQueue.enqueue(new GattOperation.WriteDescriptor(service, descriptor, data).setPriority(priority).setDeadline(deadline));
+    }
+
+    /**
+     * enable or disable notification of a characteristic, and write the client characteristic
+     * configuration descriptor accordingly.
+     *
+     * @return the completion handle of the descriptor write, {@code null} if the characteristic
+     * doesn't have the config descriptor, the device is not connected, or the services have been
+     * set up from the {@link GattAttributeCache} and are not confirmed yet (the notification is
+     * enabled once the device is ready).
+     */
+    @Nullable
+    public GattOperation setCharacteristicNotification(@NonNull final BluetoothGattService service, @NonNull final BluetoothGattCharacteristic characteristic, final boolean enabled) {
+        if ((characteristic.getProperties() & (BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE)) == 0)
+            Log.v(TAG, "setCharacteristicNotification(): characteristic doesn't support NOTIFY nor INDICATE.");
+
+        final Subscription subscription = subscriptionOf(service, characteristic);
+        synchronized (mSubscriptions) {
+            mSubscriptions.remove(subscription);
+            if (enabled)
+                mSubscriptions.add(subscription);
+        }
+        // not connected, or the services come from the cache, the subscriptions are restored once
+        // the services are confirmed.
+        final BluetoothGatt gatt = getGatt();
+        if (gatt == null || isProvisional())
+            return null;
+
+        gatt.setCharacteristicNotification(resolve(characteristic), enabled);
+
+        final BluetoothGattDescriptor descriptor = resolve(characteristic).getDescriptor(UUID_DESCRIPTOR_CLIENT_CHARACTERISTIC_CONFIG);
         if (descriptor == null) {
             Log.e(TAG, "setCharacteristicNotification(): characteristic doesn't have config descriptor! notification might not work.");
-            return;
+            return null;
         }
 
-        writeDescriptor(service, descriptor, enabled ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        final byte[] value;
+        if (!enabled)
+            value = BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        else if ((characteristic.getProperties() & (BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE)) == BluetoothGattCharacteristic.PROPERTY_INDICATE)
+            value = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+        else
+            value = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        return writeDescriptor(service, descriptor, value);
+    }
+
+    @NonNull
+    GattOperation enqueue(@NonNull GattOperation operation) {
+        return mOperationQueue.enqueue(operation);
+    }
+
+    @Nullable
+    BluetoothGatt getGatt() {
+        synchronized (this) {
+            return mGatt;
+        }
+    }
+
+    void onConnectionPriorityChanged(int priority) {
+        mOnConnectionParametersChangedObservable.notifyConnectionPriorityChanged(priority);
+    }
+
+    void onOperationTimedOut(@NonNull GattOperation operation) {
+        final BluetoothGattService service = operation.getService();
+        if (service == null)
+            mOnErrorObservable.dispatchGattError(GattOperation.STATUS_TIMED_OUT);
+        else
+            mOnErrorObservable.dispatchTimedOut(service);
+    }
+
+    void onOperationFailed(@NonNull GattOperation operation, @NonNull Throwable ex) {
+        final BluetoothGattService service = operation.getService();
+        if (service == null)
+            Log.e(TAG, "onOperationFailed(): device = " + getAddress() + ", operation = " + operation, ex);
+        else
+            mOnErrorObservable.dispatchFatalError(service, ex);
     }
 
     // <editor-fold desc="Observer, Observable, and Listeners">
@@ -693,6 +1637,30 @@ public class BluetoothLeDevice {
         mOnConnectionStateChangedObservable.unregisterObserver(listener);
     }
 
+    public void addOnConnectionParametersChangedListener(@NonNull OnConnectionParametersChangedListener listener) {
+        mOnConnectionParametersChangedObservable.registerObserver(listener);
+    }
+
+    public void removeOnConnectionParametersChangedListener(@NonNull OnConnectionParametersChangedListener listener) {
+        mOnConnectionParametersChangedObservable.unregisterObserver(listener);
+    }
+
+    public void addOnServicesChangedListener(@NonNull OnServicesChangedListener listener) {
+        mOnServicesChangedObservable.registerObserver(listener);
+    }
+
+    public void removeOnServicesChangedListener(@NonNull OnServicesChangedListener listener) {
+        mOnServicesChangedObservable.unregisterObserver(listener);
+    }
+
+    public void addOnReadyListener(@NonNull OnReadyListener listener) {
+        mOnReadyObservable.registerObserver(listener);
+    }
+
+    public void removeOnReadyListener(@NonNull OnReadyListener listener) {
+        mOnReadyObservable.unregisterObserver(listener);
+    }
+
     public abstract static class HandlerOnErrorListener
             extends HandlerObserver<HandlerOnErrorListener>
             implements OnErrorListener {
@@ -700,6 +1668,13 @@ public class BluetoothLeDevice {
             super(handler);
         }
 
+        /**
+         * @param batched {@code true} to dispatch the events arriving in a burst in one message
+         */
+        public HandlerOnErrorListener(final Handler handler, final boolean batched) {
+            super(handler, batched);
+        }
+
         protected abstract void onGattError(@NonNull final BluetoothLeDevice device, final int status);
 
         protected abstract void onTimedOut(@NonNull final BluetoothLeDevice device, @NonNull final BluetoothGattService service);
@@ -751,6 +1726,13 @@ public class BluetoothLeDevice {
             super(handler);
         }
 
+        /**
+         * @param batched {@code true} to dispatch the events arriving in a burst in one message
+         */
+        public HandlerOnServiceDiscoveredListener(final Handler handler, final boolean batched) {
+            super(handler, batched);
+        }
+
         protected abstract void onServiceDiscovered(@NonNull final BluetoothLeDevice device, @NonNull final BluetoothGattService service);
 
         @Override
@@ -772,22 +1754,69 @@ public class BluetoothLeDevice {
     public abstract static class HandlerOnConnectionStateChangedListener
             extends HandlerObserver<HandlerOnConnectionStateChangedListener>
             implements OnConnectionStateChangedListener {
+        // event types, for setConflated()
+        public static final int EVENT_AVAILABILITY_CHANGED = 0;
+        public static final int EVENT_CONNECTION_STATE_CHANGED = 1;
+        public static final int EVENT_RECONNECT_SCHEDULED = 2;
+        public static final int EVENT_RECONNECT_FAILED = 3;
+        public static final int EVENT_RECONNECT_SUCCEEDED = 4;
+        public static final int EVENT_RECONNECT_ABANDONED = 5;
+
         public HandlerOnConnectionStateChangedListener(final Handler handler) {
             super(handler);
         }
 
+        /**
+         * @param batched {@code true} to dispatch the events arriving in a burst in one message
+         */
+        public HandlerOnConnectionStateChangedListener(final Handler handler, final boolean batched) {
+            super(handler, batched);
+        }
+
         protected abstract void onAvailabilityChanged(@NonNull final BluetoothLeDevice device, final boolean available);
 
         protected abstract void onConnectionStateChanged(final BluetoothLeDevice device, final int newState);
 
         @Override
         public void dispatchAvailabilityChanged(@NonNull final BluetoothLeDevice device, final boolean available) {
-            dispatchChange(observer -> observer.onAvailabilityChanged(device, available));
+            dispatchChange(EVENT_AVAILABILITY_CHANGED, device, observer -> observer.onAvailabilityChanged(device, available));
+        }
+
+        protected void onReconnectScheduled(@NonNull final BluetoothLeDevice device, final int attempt, final long delayMillis) {
+        }
+
+        protected void onReconnectFailed(@NonNull final BluetoothLeDevice device, final int attempt) {
+        }
+
+        protected void onReconnectSucceeded(@NonNull final BluetoothLeDevice device, final int attempts) {
+        }
+
+        protected void onReconnectAbandoned(@NonNull final BluetoothLeDevice device, final int attempts, final boolean circuitOpen) {
         }
 
         @Override
         public void dispatchConnectionStateChanged(@NonNull final BluetoothLeDevice device, final int newState) {
-            dispatchChange(observer -> observer.onConnectionStateChanged(device, newState));
+            dispatchChange(EVENT_CONNECTION_STATE_CHANGED, device, observer -> observer.onConnectionStateChanged(device, newState));
+        }
+
+        @Override
+        public void dispatchReconnectScheduled(@NonNull final BluetoothLeDevice device, final int attempt, final long delayMillis) {
+            dispatchChange(EVENT_RECONNECT_SCHEDULED, device, observer -> observer.onReconnectScheduled(device, attempt, delayMillis));
+        }
+
+        @Override
+        public void dispatchReconnectFailed(@NonNull final BluetoothLeDevice device, final int attempt) {
+            dispatchChange(EVENT_RECONNECT_FAILED, device, observer -> observer.onReconnectFailed(device, attempt));
+        }
+
+        @Override
+        public void dispatchReconnectSucceeded(@NonNull final BluetoothLeDevice device, final int attempts) {
+            dispatchChange(EVENT_RECONNECT_SUCCEEDED, device, observer -> observer.onReconnectSucceeded(device, attempts));
+        }
+
+        @Override
+        public void dispatchReconnectAbandoned(@NonNull final BluetoothLeDevice device, final int attempts, final boolean circuitOpen) {
+            dispatchChange(EVENT_RECONNECT_ABANDONED, device, observer -> observer.onReconnectAbandoned(device, attempts, circuitOpen));
         }
     }
 
@@ -795,6 +1824,36 @@ public class BluetoothLeDevice {
         void dispatchAvailabilityChanged(@NonNull BluetoothLeDevice device, boolean available);
 
         void dispatchConnectionStateChanged(@NonNull BluetoothLeDevice device, @ConnectionState int newState);
+
+        /**
+         * the link has been lost, the {@link GattReconnectPolicy} schedules an attempt
+         *
+         * @param attempt     the attempt number, starts from 1
+         * @param delayMillis the delay before the attempt
+         */
+        default void dispatchReconnectScheduled(@NonNull BluetoothLeDevice device, int attempt, long delayMillis) {
+        }
+
+        /**
+         * @param attempt the attempt that failed
+         */
+        default void dispatchReconnectFailed(@NonNull BluetoothLeDevice device, int attempt) {
+        }
+
+        /**
+         * @param attempts number of attempts it took
+         */
+        default void dispatchReconnectSucceeded(@NonNull BluetoothLeDevice device, int attempts) {
+        }
+
+        /**
+         * the {@link GattReconnectPolicy} gave up
+         *
+         * @param attempts    number of attempts made
+         * @param circuitOpen {@code true} if the circuit was open when it gave up
+         */
+        default void dispatchReconnectAbandoned(@NonNull BluetoothLeDevice device, int attempts, boolean circuitOpen) {
+        }
     }
 
     private class OnConnectionStateChangedObservable extends Observable<OnConnectionStateChangedListener> {
@@ -805,9 +1864,230 @@ public class BluetoothLeDevice {
         void notifyAvailabilityChanged(final boolean available) {
             notifyChange(observer -> observer.dispatchAvailabilityChanged(BluetoothLeDevice.this, available));
         }
+
+        void notifyReconnectScheduled(final int attempt, final long delayMillis) {
+            notifyChange(observer -> observer.dispatchReconnectScheduled(BluetoothLeDevice.this, attempt, delayMillis));
+        }
+
+        void notifyReconnectFailed(final int attempt) {
+            notifyChange(observer -> observer.dispatchReconnectFailed(BluetoothLeDevice.this, attempt));
+        }
+
+        void notifyReconnectSucceeded(final int attempts) {
+            notifyChange(observer -> observer.dispatchReconnectSucceeded(BluetoothLeDevice.this, attempts));
+        }
+
+        void notifyReconnectAbandoned(final int attempts, final boolean circuitOpen) {
+            notifyChange(observer -> observer.dispatchReconnectAbandoned(BluetoothLeDevice.this, attempts, circuitOpen));
+        }
+    }
+
+    public abstract static class HandlerOnConnectionParametersChangedListener
+            extends HandlerObserver<HandlerOnConnectionParametersChangedListener>
+            implements OnConnectionParametersChangedListener {
+        // event types, for setConflated()
+        public static final int EVENT_CONNECTION_PRIORITY_CHANGED = 0;
+        public static final int EVENT_PHY_CHANGED = 1;
+
+        public HandlerOnConnectionParametersChangedListener(final Handler handler) {
+            super(handler);
+        }
+
+        /**
+         * @param batched {@code true} to dispatch the events arriving in a burst in one message
+         */
+        public HandlerOnConnectionParametersChangedListener(final Handler handler, final boolean batched) {
+            super(handler, batched);
+        }
+
+        protected abstract void onConnectionPriorityChanged(@NonNull final BluetoothLeDevice device, final int priority);
+
+        protected abstract void onPhyChanged(@NonNull final BluetoothLeDevice device, final int txPhy, final int rxPhy);
+
+        @Override
+        public void dispatchConnectionPriorityChanged(@NonNull final BluetoothLeDevice device, final int priority) {
+            dispatchChange(EVENT_CONNECTION_PRIORITY_CHANGED, device, observer -> observer.onConnectionPriorityChanged(device, priority));
+        }
+
+        @Override
+        public void dispatchPhyChanged(@NonNull final BluetoothLeDevice device, final int txPhy, final int rxPhy) {
+            dispatchChange(EVENT_PHY_CHANGED, device, observer -> observer.onPhyChanged(device, txPhy, rxPhy));
+        }
+    }
+
+    public interface OnConnectionParametersChangedListener {
+        /**
+         * @param priority one of {@code BluetoothGatt.CONNECTION_PRIORITY_*}
+         */
+        void dispatchConnectionPriorityChanged(@NonNull BluetoothLeDevice device, int priority);
+
+        /**
+         * @param txPhy one of {@code BluetoothDevice.PHY_LE_*}
+         * @param rxPhy one of {@code BluetoothDevice.PHY_LE_*}
+         */
+        void dispatchPhyChanged(@NonNull BluetoothLeDevice device, int txPhy, int rxPhy);
+    }
+
+    private class OnConnectionParametersChangedObservable extends Observable<OnConnectionParametersChangedListener> {
+        void notifyConnectionPriorityChanged(final int priority) {
+            notifyChange(observer -> observer.dispatchConnectionPriorityChanged(BluetoothLeDevice.this, priority));
+        }
+
+        void notifyPhyChanged(final int txPhy, final int rxPhy) {
+            notifyChange(observer -> observer.dispatchPhyChanged(BluetoothLeDevice.this, txPhy, rxPhy));
+        }
+    }
+
+    public abstract static class HandlerOnReadyListener
+            extends HandlerObserver<HandlerOnReadyListener>
+            implements OnReadyListener {
+        // event types, for setConflated()
+        public static final int EVENT_STAGE_COMPLETED = 0;
+        public static final int EVENT_READY = 1;
+
+        public HandlerOnReadyListener(final Handler handler) {
+            super(handler);
+        }
+
+        /**
+         * @param batched {@code true} to dispatch the events arriving in a burst in one message
+         */
+        public HandlerOnReadyListener(final Handler handler, final boolean batched) {
+            super(handler, batched);
+        }
+
+        protected abstract void onStageCompleted(@NonNull final BluetoothLeDevice device, final int stage, final long durationMillis);
+
+        protected abstract void onReady(@NonNull final BluetoothLeDevice device, final long elapsedMillis);
+
+        @Override
+        public void dispatchStageCompleted(@NonNull final BluetoothLeDevice device, final int stage, final long durationMillis) {
+            dispatchChange(EVENT_STAGE_COMPLETED, device, observer -> observer.onStageCompleted(device, stage, durationMillis));
+        }
+
+        @Override
+        public void dispatchReady(@NonNull final BluetoothLeDevice device, final long elapsedMillis) {
+            dispatchChange(EVENT_READY, device, observer -> observer.onReady(device, elapsedMillis));
+        }
+    }
+
+    public interface OnReadyListener {
+        /**
+         * @param stage          one of the {@code STAGE_*} constants
+         * @param durationMillis how long the stage took
+         */
+        void dispatchStageCompleted(@NonNull BluetoothLeDevice device, @ReadinessStage int stage, long durationMillis);
+
+        /**
+         * @param elapsedMillis time from the connection attempt to ready
+         */
+        void dispatchReady(@NonNull BluetoothLeDevice device, long elapsedMillis);
+    }
+
+    private class OnReadyObservable extends Observable<OnReadyListener> {
+        void notifyStageCompleted(@ReadinessStage final int stage, final long durationMillis) {
+            notifyChange(observer -> observer.dispatchStageCompleted(BluetoothLeDevice.this, stage, durationMillis));
+        }
+
+        void notifyReady(final long elapsedMillis) {
+            notifyChange(observer -> observer.dispatchReady(BluetoothLeDevice.this, elapsedMillis));
+        }
+    }
+
+    public abstract static class HandlerOnServicesChangedListener
+            extends HandlerObserver<HandlerOnServicesChangedListener>
+            implements OnServicesChangedListener {
+        public HandlerOnServicesChangedListener(final Handler handler) {
+            super(handler);
+        }
+
+        /**
+         * @param batched {@code true} to dispatch the events arriving in a burst in one message
+         */
+        public HandlerOnServicesChangedListener(final Handler handler, final boolean batched) {
+            super(handler, batched);
+        }
+
+        protected abstract void onServicesChanged(@NonNull final BluetoothLeDevice device, @NonNull final List<BluetoothGattService> added, @NonNull final List<BluetoothGattService> removed, @NonNull final List<BluetoothGattService> changed);
+
+        @Override
+        public void dispatchServicesChanged(@NonNull final BluetoothLeDevice device, @NonNull final List<BluetoothGattService> added, @NonNull final List<BluetoothGattService> removed, @NonNull final List<BluetoothGattService> changed) {
+            dispatchChange(observer -> observer.onServicesChanged(device, added, removed, changed));
+        }
+    }
+
+    public interface OnServicesChangedListener {
+        /**
+         * the attribute table of the device has changed, services not listed are kept as they were,
+         * along with their listeners.
+         *
+         * @param added   services that are new
+         * @param removed services that are gone
+         * @param changed new services replacing ones whose characteristics have changed, the old
+         *                ones are gone
+         */
+        void dispatchServicesChanged(@NonNull BluetoothLeDevice device, @NonNull List<BluetoothGattService> added, @NonNull List<BluetoothGattService> removed, @NonNull List<BluetoothGattService> changed);
+    }
+
+    private class OnServicesChangedObservable extends Observable<OnServicesChangedListener> {
+        void notifyServicesChanged(@NonNull final List<BluetoothGattService> added, @NonNull final List<BluetoothGattService> removed, @NonNull final List<BluetoothGattService> changed) {
+            notifyChange(observer -> observer.dispatchServicesChanged(BluetoothLeDevice.this, added, removed, changed));
+        }
     }
     // </editor-fold>
 
+    /**
+     * a notification enabled by the user, identified by UUIDs and instance IDs so it can be found
+     * again in the attribute table of the next connection.
+     */
+    private static final class Subscription {
+        final UUID mServiceUuid;
+        final int mServiceInstanceId;
+        final UUID mCharacteristicUuid;
+        final int mCharacteristicInstanceId;
+
+        Subscription(@NonNull UUID serviceUuid, int serviceInstanceId, @NonNull UUID characteristicUuid, int characteristicInstanceId) {
+            mServiceUuid = serviceUuid;
+            mServiceInstanceId = serviceInstanceId;
+            mCharacteristicUuid = characteristicUuid;
+            mCharacteristicInstanceId = characteristicInstanceId;
+        }
+
+        @Nullable
+        BluetoothGattCharacteristic find(@NonNull BluetoothGatt gatt) {
+            for (final android.bluetooth.BluetoothGattService nativeService : gatt.getServices()) {
+                if (!nativeService.getUuid().equals(mServiceUuid) || nativeService.getInstanceId() != mServiceInstanceId)
+                    continue;
+                for (final BluetoothGattCharacteristic characteristic : nativeService.getCharacteristics())
+                    if (characteristic.getUuid().equals(mCharacteristicUuid) && characteristic.getInstanceId() == mCharacteristicInstanceId)
+                        return characteristic;
+            }
+            return null;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Subscription))
+                return false;
+            final Subscription other = (Subscription) obj;
+            return mServiceUuid.equals(other.mServiceUuid) && mServiceInstanceId == other.mServiceInstanceId &&
+                    mCharacteristicUuid.equals(other.mCharacteristicUuid) && mCharacteristicInstanceId == other.mCharacteristicInstanceId;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = mServiceUuid.hashCode();
+            hash = hash * 31 + mServiceInstanceId;
+            hash = hash * 31 + mCharacteristicUuid.hashCode();
+            return hash * 31 + mCharacteristicInstanceId;
+        }
+
+        @Override
+        public String toString() {
+            return mServiceUuid + "#" + mServiceInstanceId + "/" + mCharacteristicUuid + "#" + mCharacteristicInstanceId;
+        }
+    }
+
     protected static String stringFromConnectionState(@ConnectionState int state) {
         switch (state) {
             case BluetoothProfile.STATE_CONNECTED:
@@ -0,0 +1,285 @@
+package tw.idv.palatis.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import tw.idv.palatis.ble.services.BluetoothGattService;
+
+/**
+ * remembers the attribute table of the devices, so a reconnecting device can have its
+ * {@link BluetoothGattService}s set up before service discovery completes.
+ * <p>
+ * one small binary file per device, named after {@link BluetoothLeDevice#getId()}, holding the
+ * services, characteristics and descriptors in discovery order and the class each service
+ * resolved to. attach the cache with
+ * {@link BluetoothLeDevice#setAttributeCache(GattAttributeCache)}.
+ */
+public final class GattAttributeCache {
+    private static final String TAG = "GattAttributeCache";
+
+    private static final int MAGIC = 0x47415443; // "GATC"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".gatt";
+
+    @NonNull
+    private final File mDirectory;
+
+    /**
+     * keep the cache in the cache directory of the application
+     */
+    public GattAttributeCache(@NonNull Context context) {
+        this(new File(context.getCacheDir(), "gatt"));
+    }
+
+    public GattAttributeCache(@NonNull File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * forget the attribute table of a device
+     *
+     * @param deviceId the {@link BluetoothLeDevice#getId()} of the device
+     */
+    public void invalidate(long deviceId) {
+        final File file = fileOf(deviceId);
+        if (file.exists() && !file.delete())
+            Log.e(TAG, "invalidate(): unable to delete " + file);
+    }
+
+    /**
+     * forget every device
+     */
+    public void clear() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null)
+            return;
+        for (final File file : files)
+            if (file.getName().endsWith(SUFFIX) && !file.delete())
+                Log.e(TAG, "clear(): unable to delete " + file);
+    }
+
+    @NonNull
+    private File fileOf(long deviceId) {
+        return new File(mDirectory, Long.toHexString(deviceId) + SUFFIX);
+    }
+
+    /**
+     * @return the cached table of the device, {@code null} if there's none or it can't be read
+     */
+    @Nullable
+    synchronized List<Service> load(long deviceId) {
+        final File file = fileOf(deviceId);
+        if (!file.exists())
+            return null;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                Log.d(TAG, "load(): unknown format, " + file);
+                return null;
+            }
+
+            final int numServices = in.readUnsignedShort();
+            final ArrayList<Service> services = new ArrayList<>(numServices);
+            for (int i = 0; i < numServices; ++i) {
+                final Service service = new Service(readUuid(in), in.readInt(), in.readUnsignedByte(), in.readUTF());
+                final int numCharacteristics = in.readUnsignedShort();
+                for (int j = 0; j < numCharacteristics; ++j) {
+                    final Characteristic characteristic = new Characteristic(readUuid(in), in.readInt(), in.readInt(), in.readInt());
+                    final int numDescriptors = in.readUnsignedShort();
+                    for (int k = 0; k < numDescriptors; ++k)
+                        characteristic.mDescriptors.add(new Descriptor(readUuid(in), in.readInt()));
+                    service.mCharacteristics.add(characteristic);
+                }
+                services.add(service);
+            }
+            return services;
+        } catch (IOException ex) {
+            Log.e(TAG, "load(): " + file, ex);
+            return null;
+        }
+    }
+
+    synchronized void store(long deviceId, @NonNull List<Service> services) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "store(): unable to create " + mDirectory);
+            return;
+        }
+
+        // write aside and rename, a reader never sees a half-written table.
+        final File file = fileOf(deviceId);
+        final File temp = new File(mDirectory, file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeShort(services.size());
+            for (final Service service : services) {
+                writeUuid(out, service.mUuid);
+                out.writeInt(service.mInstanceId);
+                out.writeByte(service.mType);
+                out.writeUTF(service.mClassName);
+                out.writeShort(service.mCharacteristics.size());
+                for (final Characteristic characteristic : service.mCharacteristics) {
+                    writeUuid(out, characteristic.mUuid);
+                    out.writeInt(characteristic.mInstanceId);
+                    out.writeInt(characteristic.mProperties);
+                    out.writeInt(characteristic.mPermissions);
+                    out.writeShort(characteristic.mDescriptors.size());
+                    for (final Descriptor descriptor : characteristic.mDescriptors) {
+                        writeUuid(out, descriptor.mUuid);
+                        out.writeInt(descriptor.mPermissions);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            Log.e(TAG, "store(): " + file, ex);
+            if (!temp.delete())
+                Log.e(TAG, "store(): unable to delete " + temp);
+            return;
+        }
+        if (!temp.renameTo(file))
+            Log.e(TAG, "store(): unable to rename " + temp + " to " + file);
+    }
+
+    @NonNull
+    private static UUID readUuid(@NonNull DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    private static void writeUuid(@NonNull DataOutputStream out, @NonNull UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * @param nativeServices the discovered services
+     * @param services       the wrappers the services resolved to, in the same order
+     * @return the layout of the discovered table
+     */
+    @NonNull
+    static List<Service> layoutOf(@NonNull List<android.bluetooth.BluetoothGattService> nativeServices, @Nullable List<BluetoothGattService> services) {
+        final ArrayList<Service> layout = new ArrayList<>(nativeServices.size());
+        for (int i = 0; i < nativeServices.size(); ++i) {
+            final android.bluetooth.BluetoothGattService nativeService = nativeServices.get(i);
+            final String className = services == null ? "" : services.get(i).getClass().getName();
+            final Service service = new Service(nativeService.getUuid(), nativeService.getInstanceId(), nativeService.getType(), className);
+            for (final BluetoothGattCharacteristic nativeCharacteristic : nativeService.getCharacteristics()) {
+                final Characteristic characteristic = new Characteristic(nativeCharacteristic.getUuid(), nativeCharacteristic.getInstanceId(), nativeCharacteristic.getProperties(), nativeCharacteristic.getPermissions());
+                for (final BluetoothGattDescriptor nativeDescriptor : nativeCharacteristic.getDescriptors())
+                    characteristic.mDescriptors.add(new Descriptor(nativeDescriptor.getUuid(), nativeDescriptor.getPermissions()));
+                service.mCharacteristics.add(characteristic);
+            }
+            layout.add(service);
+        }
+        return layout;
+    }
+
+    /**
+     * @return {@code true} if both tables have the same attributes in the same order, the
+     * resolved classes are not compared.
+     */
+    static boolean sameLayout(@NonNull List<Service> a, @NonNull List<Service> b) {
+        if (a.size() != b.size())
+            return false;
+        for (int i = 0; i < a.size(); ++i)
+            if (!a.get(i).sameLayout(b.get(i)))
+                return false;
+        return true;
+    }
+
+    static final class Service {
+        @NonNull
+        final UUID mUuid;
+        final int mInstanceId;
+        final int mType;
+        /**
+         * the {@link BluetoothGattService} subclass the service resolved to, empty if unknown
+         */
+        @NonNull
+        final String mClassName;
+        final ArrayList<Characteristic> mCharacteristics = new ArrayList<>();
+
+        Service(@NonNull UUID uuid, int instanceId, int type, @NonNull String className) {
+            mUuid = uuid;
+            mInstanceId = instanceId;
+            mType = type;
+            mClassName = className;
+        }
+
+        /**
+         * @return a detached copy of the service, good for setting up the wrappers but not for
+         * issuing requests.
+         */
+        @NonNull
+        android.bluetooth.BluetoothGattService toNative() {
+            final android.bluetooth.BluetoothGattService service = new android.bluetooth.BluetoothGattService(mUuid, mType);
+            for (final Characteristic characteristic : mCharacteristics) {
+                final BluetoothGattCharacteristic nativeCharacteristic = new BluetoothGattCharacteristic(characteristic.mUuid, characteristic.mProperties, characteristic.mPermissions);
+                for (final Descriptor descriptor : characteristic.mDescriptors)
+                    nativeCharacteristic.addDescriptor(new BluetoothGattDescriptor(descriptor.mUuid, descriptor.mPermissions));
+                service.addCharacteristic(nativeCharacteristic);
+            }
+            return service;
+        }
+
+        boolean sameLayout(@NonNull Service other) {
+            if (!mUuid.equals(other.mUuid) || mInstanceId != other.mInstanceId || mType != other.mType || mCharacteristics.size() != other.mCharacteristics.size())
+                return false;
+            for (int i = 0; i < mCharacteristics.size(); ++i)
+                if (!mCharacteristics.get(i).sameLayout(other.mCharacteristics.get(i)))
+                    return false;
+            return true;
+        }
+    }
+
+    static final class Characteristic {
+        @NonNull
+        final UUID mUuid;
+        final int mInstanceId;
+        final int mProperties;
+        final int mPermissions;
+        final ArrayList<Descriptor> mDescriptors = new ArrayList<>();
+
+        Characteristic(@NonNull UUID uuid, int instanceId, int properties, int permissions) {
+            mUuid = uuid;
+            mInstanceId = instanceId;
+            mProperties = properties;
+            mPermissions = permissions;
+        }
+
+        boolean sameLayout(@NonNull Characteristic other) {
+            if (!mUuid.equals(other.mUuid) || mInstanceId != other.mInstanceId || mProperties != other.mProperties || mDescriptors.size() != other.mDescriptors.size())
+                return false;
+            for (int i = 0; i < mDescriptors.size(); ++i)
+                if (!mDescriptors.get(i).mUuid.equals(other.mDescriptors.get(i).mUuid))
+                    return false;
+            return true;
+        }
+    }
+
+    static final class Descriptor {
+        @NonNull
+        final UUID mUuid;
+        final int mPermissions;
+
+        Descriptor(@NonNull UUID uuid, int permissions) {
+            mUuid = uuid;
+            mPermissions = permissions;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package tw.idv.palatis.ble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+/**
+ * switches the connection to {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH} (and the 2M PHY where
+ * available) while the operation queue is busy, and back to
+ * {@link BluetoothGatt#CONNECTION_PRIORITY_BALANCED} after it has been idle for a while.
+ * <p>
+ * the policy keeps per-connection state, attach one instance to one device with
+ * {@link BluetoothLeDevice#setConnectionPolicy(GattConnectionPolicy)}.
+ */
+public class GattConnectionPolicy {
+    private static final String TAG = "GattConnectionPolicy";
+
+    public static final int DEFAULT_QUEUE_DEPTH_THRESHOLD = 4;
+    public static final long DEFAULT_THROUGHPUT_THRESHOLD = 2048;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 2000;
+
+    private final int mQueueDepthThreshold;
+    private final long mThroughputThreshold;
+    private final long mIdleTimeoutMs;
+    private final boolean mUse2MPhy;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mIdleRunnable = this::onIdleCheck;
+
+    private BluetoothLeDevice mDevice = null;
+    private boolean mHighPriority = false;
+    private int mQueueDepth = 0;
+    private long mLastActiveAt = 0;
+
+    public GattConnectionPolicy() {
+        this(DEFAULT_QUEUE_DEPTH_THRESHOLD, DEFAULT_THROUGHPUT_THRESHOLD, DEFAULT_IDLE_TIMEOUT_MS, true);
+    }
+
+    /**
+     * @param queueDepthThreshold switch to high priority when this many operations are queued
+     * @param throughputThreshold switch to high priority when a stream goes faster than this, in
+     *                            bytes per second
+     * @param idleTimeoutMs       fall back to balanced after the queue has been empty for this long
+     * @param use2MPhy            also prefer the LE 2M PHY while in high priority, if supported
+     */
+    public GattConnectionPolicy(int queueDepthThreshold, long throughputThreshold, long idleTimeoutMs, boolean use2MPhy) {
+        mQueueDepthThreshold = queueDepthThreshold;
+        mThroughputThreshold = throughputThreshold;
+        mIdleTimeoutMs = idleTimeoutMs;
+        mUse2MPhy = use2MPhy;
+    }
+
+    /**
+     * @return {@code true} if the connection is currently in high priority
+     */
+    public synchronized boolean isHighPriority() {
+        return mHighPriority;
+    }
+
+    synchronized void attach(@NonNull BluetoothLeDevice device) {
+        if (mDevice != null && mDevice != device)
+            throw new IllegalStateException("policy is attached to " + mDevice + " already.");
+        mDevice = device;
+    }
+
+    synchronized void detach() {
+        mHandler.removeCallbacks(mIdleRunnable);
+        mDevice = null;
+        mHighPriority = false;
+        mQueueDepth = 0;
+    }
+
+    /**
+     * the connection has been (re-)established, the controller starts at balanced again.
+     */
+    synchronized void onConnected() {
+        mHandler.removeCallbacks(mIdleRunnable);
+        mHighPriority = false;
+        mQueueDepth = 0;
+    }
+
+    void onQueueDepthChanged(int depth) {
+        final boolean boost;
+        synchronized (this) {
+            mQueueDepth = depth;
+            mLastActiveAt = SystemClock.uptimeMillis();
+            boost = depth >= mQueueDepthThreshold && !mHighPriority;
+            if (depth == 0) {
+                mHandler.removeCallbacks(mIdleRunnable);
+                mHandler.postDelayed(mIdleRunnable, mIdleTimeoutMs);
+            }
+        }
+        if (boost)
+            switchPriority(true, "queue depth " + depth);
+    }
+
+    void onStreamThroughput(long bytesPerSecond) {
+        final boolean boost;
+        synchronized (this) {
+            mLastActiveAt = SystemClock.uptimeMillis();
+            boost = bytesPerSecond >= mThroughputThreshold && !mHighPriority;
+        }
+        if (boost)
+            switchPriority(true, "throughput " + bytesPerSecond + " B/s");
+    }
+
+    private void onIdleCheck() {
+        final boolean fallback;
+        synchronized (this) {
+            final long idle = SystemClock.uptimeMillis() - mLastActiveAt;
+            if (mQueueDepth == 0 && idle < mIdleTimeoutMs) {
+                mHandler.postDelayed(mIdleRunnable, mIdleTimeoutMs - idle);
+                return;
+            }
+            fallback = mQueueDepth == 0 && mHighPriority;
+        }
+        if (fallback)
+            switchPriority(false, "idle");
+    }
+
+    private void switchPriority(boolean high, @NonNull String reason) {
+        final BluetoothLeDevice device;
+        synchronized (this) {
+            device = mDevice;
+            if (device == null || mHighPriority == high)
+                return;
+            mHighPriority = high;
+        }
+
+        final BluetoothGatt gatt = device.getGatt();
+        if (gatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return;
+
+        final int priority = high ? BluetoothGatt.CONNECTION_PRIORITY_HIGH : BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        if (!gatt.requestConnectionPriority(priority)) {
+            Log.e(TAG, "switchPriority(): requestConnectionPriority(" + priority + ") refused, device = " + device.getAddress());
+            synchronized (this) {
+                mHighPriority = !high;
+            }
+            return;
+        }
+        Log.d(TAG, "switchPriority(): device = " + device.getAddress() + ", priority = " + priority + ", reason = " + reason);
+        device.onConnectionPriorityChanged(priority);
+
+        if (mUse2MPhy && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            if (adapter != null && adapter.isLe2MPhySupported()) {
+                final int phy = high ? BluetoothDevice.PHY_LE_2M_MASK : BluetoothDevice.PHY_LE_1M_MASK;
+                gatt.setPreferredPhy(phy, phy, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+            }
+        }
+    }
+}
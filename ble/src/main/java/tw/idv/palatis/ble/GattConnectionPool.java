@@ -0,0 +1,439 @@
+package tw.idv.palatis.ble;
+
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * keeps at most a fixed number of GATT connections alive, and hands them out as leases.
+ * <p>
+ * a device stays connected after its last lease has been released, so the next lease on it is
+ * a hit. when a lease needs a slot and the pool is full, the idle connection that has been used
+ * least recently is evicted. if every connection is leased, the request waits in line until a
+ * lease is released.
+ * <p>
+ * the pool follows the connection state of its devices. an idle connection that goes down is
+ * closed and its slot freed. a leased one keeps its slot, the next lease on it connects it again
+ * and counts as a miss.
+ * <p>
+ * basic usage:
+ * <pre>
+ * pool.acquire(device, lease -> {
+ *     // the device is connecting or connected, wait for it to be ready
+ *     ...
+ *     lease.release();
+ * });
+ * </pre>
+ */
+public class GattConnectionPool {
+    private static final String TAG = "GattConnectionPool";
+
+    @NonNull
+    private final Context mContext;
+    private final int mMaxConnections;
+
+    // access ordered, the eldest entry is the least recently leased connection
+    private final LinkedHashMap<BluetoothLeDevice, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ArrayDeque<Lease> mWaiting = new ArrayDeque<>();
+
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mEvictions = 0;
+    private long mWaits = 0;
+    private long mTotalWaitMillis = 0;
+    private long mMaxWaitMillis = 0;
+
+    private final BluetoothLeDevice.OnConnectionStateChangedListener mConnectionStateListener = new BluetoothLeDevice.OnConnectionStateChangedListener() {
+        @Override
+        public void dispatchAvailabilityChanged(@NonNull BluetoothLeDevice device, boolean available) {
+        }
+
+        @Override
+        public void dispatchConnectionStateChanged(@NonNull BluetoothLeDevice device, int newState) {
+            onConnectionStateChanged(device, newState);
+        }
+    };
+
+    /**
+     * @param context        the application's {@link Context}
+     * @param maxConnections the max number of live GATT connections, check the limit of the
+     *                       controller (often between 4 and 7)
+     */
+    public GattConnectionPool(@NonNull Context context, int maxConnections) {
+        if (maxConnections <= 0)
+            throw new IllegalArgumentException("maxConnections must be positive, got " + maxConnections);
+        mContext = context.getApplicationContext();
+        mMaxConnections = maxConnections;
+    }
+
+    public int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    /**
+     * lease a device, connecting it if it's not in the pool yet. the listener is called right away
+     * if a slot is available, otherwise on the thread that releases the lease making room.
+     *
+     * @param device   the device to lease
+     * @param listener called once the lease has been granted
+     * @return the lease, release it when done, also cancels it while it's still waiting.
+     */
+    @NonNull
+    public Lease acquire(@NonNull BluetoothLeDevice device, @Nullable OnLeaseGrantedListener listener) {
+        final Lease lease = new Lease(this, device, listener);
+        final BluetoothLeDevice evicted;
+        synchronized (this) {
+            final Entry entry = mEntries.get(device);
+            if (entry != null) {
+                countLease(entry);
+                ++entry.mLeases;
+                lease.mGranted = true;
+                evicted = null;
+            } else {
+                if (!hasRoom()) {
+                    lease.mWaitingSince = SystemClock.elapsedRealtime();
+                    mWaiting.addLast(lease);
+                    Log.d(TAG, "acquire(): pool is full, " + device.getAddress() + " waits, " + mWaiting.size() + " in line.");
+                    return lease;
+                }
+                evicted = evictEldestIdle();
+                addEntry(device);
+                lease.mGranted = true;
+            }
+        }
+
+        if (evicted != null)
+            evict(evicted);
+        device.connect(mContext);
+        if (listener != null)
+            listener.onLeaseGranted(lease);
+        return lease;
+    }
+
+    /**
+     * must hold the lock, count a lease granted on a device already in the pool.
+     */
+    private void countLease(@NonNull Entry entry) {
+        // a connection that went down has to be brought up again, as if it wasn't pooled.
+        if (entry.mLinkLost)
+            ++mMisses;
+        else
+            ++mHits;
+    }
+
+    /**
+     * must hold the lock, put a device that isn't in the pool yet in with one lease.
+     */
+    private void addEntry(@NonNull BluetoothLeDevice device) {
+        ++mMisses;
+        mEntries.put(device, new Entry(1));
+        device.addOnConnectionStateChangedListener(mConnectionStateListener);
+    }
+
+    /**
+     * must hold the lock, the device is disconnected and closed by {@link #evict(BluetoothLeDevice)}
+     * after the lock has been released.
+     */
+    private void removeEntry(@NonNull BluetoothLeDevice device) {
+        mEntries.remove(device);
+        device.removeOnConnectionStateChangedListener(mConnectionStateListener);
+    }
+
+    /**
+     * must hold the lock.
+     *
+     * @return {@code true} if there's a free slot, or an idle connection to evict
+     */
+    private boolean hasRoom() {
+        if (mEntries.size() < mMaxConnections)
+            return true;
+        for (final Entry entry : mEntries.values())
+            if (entry.mLeases == 0)
+                return true;
+        return false;
+    }
+
+    /**
+     * must hold the lock, take the least recently used idle connection out of the pool if the
+     * pool is full.
+     *
+     * @return the device to evict, {@code null} if there's a free slot
+     */
+    @Nullable
+    private BluetoothLeDevice evictEldestIdle() {
+        if (mEntries.size() < mMaxConnections)
+            return null;
+
+        final Iterator<Map.Entry<BluetoothLeDevice, Entry>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<BluetoothLeDevice, Entry> eldest = it.next();
+            if (eldest.getValue().mLeases == 0) {
+                it.remove();
+                eldest.getKey().removeOnConnectionStateChangedListener(mConnectionStateListener);
+                ++mEvictions;
+                return eldest.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * disconnect a device taken out of the pool, and close it to free the client interface of the
+     * stack as well.
+     */
+    private void evict(@NonNull BluetoothLeDevice device) {
+        Log.d(TAG, "evict(): " + device.getAddress());
+        device.disconnect();
+        device.close();
+    }
+
+    void release(@NonNull Lease lease) {
+        final ArrayList<Lease> granted = new ArrayList<>();
+        final ArrayList<BluetoothLeDevice> evicted = new ArrayList<>();
+        synchronized (this) {
+            if (lease.mReleased)
+                return;
+            lease.mReleased = true;
+
+            if (!lease.mGranted) {
+                mWaiting.remove(lease);
+                return;
+            }
+
+            final Entry entry = mEntries.get(lease.mDevice);
+            if (entry != null && entry.mLeases > 0 && --entry.mLeases == 0 && entry.mLinkLost) {
+                // nobody brought it back, it's not worth a slot.
+                removeEntry(lease.mDevice);
+                evicted.add(lease.mDevice);
+            }
+            serveWaiting(granted, evicted);
+        }
+        deliver(granted, evicted);
+    }
+
+    /**
+     * must hold the lock, grant the waiting leases in order, as far as the slots go.
+     *
+     * @param granted the leases granted
+     * @param evicted the devices evicted to make room
+     */
+    private void serveWaiting(@NonNull ArrayList<Lease> granted, @NonNull ArrayList<BluetoothLeDevice> evicted) {
+        while (!mWaiting.isEmpty()) {
+            final Lease waiting = mWaiting.peekFirst();
+            final Entry existing = mEntries.get(waiting.mDevice);
+            if (existing != null) {
+                countLease(existing);
+                ++existing.mLeases;
+            } else {
+                if (!hasRoom())
+                    break;
+                final BluetoothLeDevice victim = evictEldestIdle();
+                if (victim != null)
+                    evicted.add(victim);
+                addEntry(waiting.mDevice);
+            }
+
+            mWaiting.pollFirst();
+            waiting.mGranted = true;
+            final long waited = SystemClock.elapsedRealtime() - waiting.mWaitingSince;
+            ++mWaits;
+            mTotalWaitMillis += waited;
+            mMaxWaitMillis = Math.max(mMaxWaitMillis, waited);
+            granted.add(waiting);
+        }
+    }
+
+    private void deliver(@NonNull ArrayList<Lease> granted, @NonNull ArrayList<BluetoothLeDevice> evicted) {
+        for (final BluetoothLeDevice device : evicted)
+            evict(device);
+        for (final Lease waiting : granted) {
+            waiting.mDevice.connect(mContext);
+            if (waiting.mListener != null)
+                waiting.mListener.onLeaseGranted(waiting);
+        }
+    }
+
+    private void onConnectionStateChanged(@NonNull BluetoothLeDevice device, int newState) {
+        final ArrayList<Lease> granted = new ArrayList<>();
+        final ArrayList<BluetoothLeDevice> evicted = new ArrayList<>();
+        synchronized (this) {
+            final Entry entry = mEntries.get(device);
+            if (entry == null)
+                return;
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                entry.mLinkLost = false;
+                return;
+            }
+            if (newState != BluetoothProfile.STATE_DISCONNECTED)
+                return;
+
+            entry.mLinkLost = true;
+            // a leased connection is up to the lease holder.
+            if (entry.mLeases != 0)
+                return;
+            Log.d(TAG, "onConnectionStateChanged(): idle " + device.getAddress() + " went down, freeing its slot.");
+            removeEntry(device);
+            evicted.add(device);
+            serveWaiting(granted, evicted);
+        }
+        deliver(granted, evicted);
+    }
+
+    /**
+     * disconnect every idle connection
+     */
+    public void evictIdle() {
+        final ArrayList<BluetoothLeDevice> evicted = new ArrayList<>();
+        synchronized (this) {
+            final Iterator<Map.Entry<BluetoothLeDevice, Entry>> it = mEntries.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<BluetoothLeDevice, Entry> entry = it.next();
+                if (entry.getValue().mLeases == 0) {
+                    it.remove();
+                    entry.getKey().removeOnConnectionStateChangedListener(mConnectionStateListener);
+                    ++mEvictions;
+                    evicted.add(entry.getKey());
+                }
+            }
+        }
+        for (final BluetoothLeDevice device : evicted)
+            evict(device);
+    }
+
+    /**
+     * @return number of devices in the pool, leased or idle
+     */
+    public synchronized int getConnectionCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return number of leases waiting for a slot
+     */
+    public synchronized int getWaitingCount() {
+        return mWaiting.size();
+    }
+
+    /**
+     * @return number of leases on devices that were in the pool and still connected
+     */
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * @return number of leases on devices that had to be connected, counted when granted
+     */
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * @return hits over all leases, {@code 0} if there was none
+     */
+    public synchronized float getHitRate() {
+        final long total = mHits + mMisses;
+        return total == 0 ? 0 : (float) mHits / total;
+    }
+
+    /**
+     * @return number of idle connections disconnected to make room
+     */
+    public synchronized long getEvictionCount() {
+        return mEvictions;
+    }
+
+    /**
+     * @return number of leases that had to wait for a slot
+     */
+    public synchronized long getWaitCount() {
+        return mWaits;
+    }
+
+    /**
+     * @return average time a waiting lease waited, in milliseconds
+     */
+    public synchronized long getAverageWaitMillis() {
+        return mWaits == 0 ? 0 : mTotalWaitMillis / mWaits;
+    }
+
+    /**
+     * @return longest time a waiting lease waited, in milliseconds
+     */
+    public synchronized long getMaxWaitMillis() {
+        return mMaxWaitMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + "@" + hashCode() + " (" + mEntries.size() + "/" + mMaxConnections + " connections, " + mWaiting.size() + " waiting, hit rate = " + getHitRate() + ", evictions = " + mEvictions + ", avg wait = " + getAverageWaitMillis() + "ms)";
+    }
+
+    private static final class Entry {
+        int mLeases;
+        // disconnected since it was last connected
+        boolean mLinkLost = false;
+
+        Entry(int leases) {
+            mLeases = leases;
+        }
+    }
+
+    /**
+     * a claim on a pooled connection, release it when done.
+     */
+    public static final class Lease {
+        @NonNull
+        private final GattConnectionPool mPool;
+        @NonNull
+        private final BluetoothLeDevice mDevice;
+        @Nullable
+        private final OnLeaseGrantedListener mListener;
+
+        // guarded by the pool
+        private boolean mGranted = false;
+        private boolean mReleased = false;
+        private long mWaitingSince = 0;
+
+        Lease(@NonNull GattConnectionPool pool, @NonNull BluetoothLeDevice device, @Nullable OnLeaseGrantedListener listener) {
+            mPool = pool;
+            mDevice = device;
+            mListener = listener;
+        }
+
+        @NonNull
+        public BluetoothLeDevice getDevice() {
+            return mDevice;
+        }
+
+        /**
+         * @return {@code true} if the lease holds a slot of the pool
+         */
+        public boolean isGranted() {
+            synchronized (mPool) {
+                return mGranted && !mReleased;
+            }
+        }
+
+        /**
+         * give the connection back to the pool, it stays connected until it's evicted. a lease
+         * still waiting for a slot is taken out of line.
+         */
+        public void release() {
+            mPool.release(this);
+        }
+    }
+
+    public interface OnLeaseGrantedListener {
+        void onLeaseGranted(@NonNull Lease lease);
+    }
+}
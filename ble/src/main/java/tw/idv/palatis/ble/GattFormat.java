@@ -0,0 +1,204 @@
+package tw.idv.palatis.ble;
+
+import android.support.annotation.NonNull;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * reads and writes the GATT value formats in little-endian, straight on a {@code byte[]}.
+ * <p>
+ * used by {@link GattValue} and by the codecs generated for
+ * {@link tw.idv.palatis.ble.annotation.GattCharacteristic} classes. the offsets are not checked
+ * beyond the array bounds.
+ */
+public final class GattFormat {
+    private static final float[] POWERS_OF_TEN = {
+            1e-8f, 1e-7f, 1e-6f, 1e-5f, 1e-4f, 1e-3f, 1e-2f, 1e-1f,
+            1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f,
+    };
+
+    private static final int SFLOAT_NAN = 0x07ff;
+    private static final int SFLOAT_POSITIVE_INFINITY = 0x07fe;
+    private static final int SFLOAT_NEGATIVE_INFINITY = 0x0802;
+    private static final int SFLOAT_MANTISSA_MAX = 0x07fd;
+
+    private static final int FLOAT_NAN = 0x007fffff;
+    private static final int FLOAT_POSITIVE_INFINITY = 0x007ffffe;
+    private static final int FLOAT_NEGATIVE_INFINITY = 0x00800002;
+    private static final int FLOAT_MANTISSA_MAX = 0x007ffffd;
+
+    private GattFormat() {
+    }
+
+    public static int getUint8(@NonNull byte[] value, int offset) {
+        return value[offset] & 0xff;
+    }
+
+    public static int getSint8(@NonNull byte[] value, int offset) {
+        return value[offset];
+    }
+
+    public static int getUint16(@NonNull byte[] value, int offset) {
+        return (value[offset] & 0xff) | (value[offset + 1] & 0xff) << 8;
+    }
+
+    public static int getSint16(@NonNull byte[] value, int offset) {
+        return (short) getUint16(value, offset);
+    }
+
+    public static int getUint24(@NonNull byte[] value, int offset) {
+        return (value[offset] & 0xff) | (value[offset + 1] & 0xff) << 8 | (value[offset + 2] & 0xff) << 16;
+    }
+
+    public static int getSint24(@NonNull byte[] value, int offset) {
+        return getUint24(value, offset) << 8 >> 8;
+    }
+
+    public static long getUint32(@NonNull byte[] value, int offset) {
+        return getSint32(value, offset) & 0xffffffffL;
+    }
+
+    public static int getSint32(@NonNull byte[] value, int offset) {
+        return (value[offset] & 0xff) | (value[offset + 1] & 0xff) << 8 | (value[offset + 2] & 0xff) << 16 | value[offset + 3] << 24;
+    }
+
+    /**
+     * @return the IEEE-11073 16-bit SFLOAT at the offset, {@link Float#NaN} for NaN, NRes and the
+     * reserved value
+     */
+    public static float getSfloat(@NonNull byte[] value, int offset) {
+        final int raw = getUint16(value, offset);
+        switch (raw) {
+            case SFLOAT_POSITIVE_INFINITY:
+                return Float.POSITIVE_INFINITY;
+            case SFLOAT_NEGATIVE_INFINITY:
+                return Float.NEGATIVE_INFINITY;
+            case SFLOAT_NAN:
+            case 0x0800:
+            case 0x0801:
+                return Float.NaN;
+        }
+        final int mantissa = raw << 20 >> 20;
+        final int exponent = raw << 16 >> 28;
+        return mantissa * POWERS_OF_TEN[exponent + 8];
+    }
+
+    /**
+     * @return the IEEE-11073 32-bit FLOAT at the offset, {@link Float#NaN} for NaN, NRes and the
+     * reserved value
+     */
+    public static float getFloat(@NonNull byte[] value, int offset) {
+        final int raw = getSint32(value, offset);
+        switch (raw) {
+            case FLOAT_POSITIVE_INFINITY:
+                return Float.POSITIVE_INFINITY;
+            case FLOAT_NEGATIVE_INFINITY:
+                return Float.NEGATIVE_INFINITY;
+            case FLOAT_NAN:
+            case 0x00800000:
+            case 0x00800001:
+                return Float.NaN;
+        }
+        final int mantissa = raw << 8 >> 8;
+        final int exponent = raw >> 24;
+        return (float) (mantissa * Math.pow(10, exponent));
+    }
+
+    /**
+     * @return the UTF-8 string from the offset to the end of the value
+     */
+    @NonNull
+    public static String getString(@NonNull byte[] value, int offset) {
+        return getString(value, offset, value.length - offset);
+    }
+
+    @NonNull
+    public static String getString(@NonNull byte[] value, int offset, int length) {
+        return new String(value, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * write the low 8 bits, for the signed and unsigned formats alike
+     */
+    public static void setInt8(@NonNull byte[] value, int offset, int v) {
+        value[offset] = (byte) v;
+    }
+
+    public static void setInt16(@NonNull byte[] value, int offset, int v) {
+        value[offset] = (byte) v;
+        value[offset + 1] = (byte) (v >> 8);
+    }
+
+    public static void setInt24(@NonNull byte[] value, int offset, int v) {
+        value[offset] = (byte) v;
+        value[offset + 1] = (byte) (v >> 8);
+        value[offset + 2] = (byte) (v >> 16);
+    }
+
+    public static void setInt32(@NonNull byte[] value, int offset, long v) {
+        value[offset] = (byte) v;
+        value[offset + 1] = (byte) (v >> 8);
+        value[offset + 2] = (byte) (v >> 16);
+        value[offset + 3] = (byte) (v >> 24);
+    }
+
+    /**
+     * write an IEEE-11073 16-bit SFLOAT with the smallest exponent that holds the mantissa,
+     * values out of range become infinity.
+     */
+    public static void setSfloat(@NonNull byte[] value, int offset, float v) {
+        setInt16(value, offset, toIeee11073(v, SFLOAT_MANTISSA_MAX, 7, 12, SFLOAT_NAN, SFLOAT_POSITIVE_INFINITY, SFLOAT_NEGATIVE_INFINITY));
+    }
+
+    /**
+     * write an IEEE-11073 32-bit FLOAT with the smallest exponent, down to -8, that holds the
+     * mantissa, values out of range become infinity.
+     */
+    public static void setFloat(@NonNull byte[] value, int offset, float v) {
+        setInt32(value, offset, toIeee11073(v, FLOAT_MANTISSA_MAX, 127, 24, FLOAT_NAN, FLOAT_POSITIVE_INFINITY, FLOAT_NEGATIVE_INFINITY));
+    }
+
+    private static int toIeee11073(float v, int mantissaMax, int exponentMax, int mantissaBits, int nan, int positiveInfinity, int negativeInfinity) {
+        if (Float.isNaN(v))
+            return nan;
+        for (int exponent = -8; exponent <= exponentMax; ++exponent) {
+            // Math.round() saturates at Long.MIN_VALUE, which Math.abs() leaves negative.
+            final long mantissa = Math.round(v / Math.pow(10, exponent));
+            if (mantissa >= -mantissaMax && mantissa <= mantissaMax)
+                return exponent << mantissaBits | (int) mantissa & (1 << mantissaBits) - 1;
+        }
+        return v > 0 ? positiveInfinity : negativeInfinity;
+    }
+
+    /**
+     * write a string in UTF-8
+     *
+     * @return the offset past the string
+     */
+    public static int setString(@NonNull byte[] value, int offset, @NonNull String v) {
+        final byte[] bytes = v.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, value, offset, bytes.length);
+        return offset + bytes.length;
+    }
+
+    /**
+     * @return the length of a string in UTF-8, without encoding it
+     */
+    public static int getUtf8Length(@NonNull String v) {
+        int length = 0;
+        for (int i = 0; i < v.length(); ++i) {
+            final char c = v.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < v.length() && Character.isLowSurrogate(v.charAt(i + 1))) {
+                length += 4;
+                ++i;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,338 @@
+package tw.idv.palatis.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * latency and throughput counters of a device, fed by the {@link BluetoothLeDevice} and its
+ * operation queue.
+ * <p>
+ * recording never locks or allocates: counters are atomics and histograms have one fixed bucket
+ * per power of two. {@link #snapshot()} copies the current values out, snapshots of several
+ * devices can be merged with {@link Snapshot#merge(Snapshot)} for a global view.
+ * <p>
+ * latencies are in microseconds, operation latency is measured from the moment the request is
+ * handed to the stack to its completion, queue wait from {@link BluetoothLeDevice} enqueueing the
+ * operation to it being handed to the stack.
+ */
+public final class GattMetrics {
+    static final int NUM_BUCKETS = 64;
+
+    private final Histogram[] mOperationLatency = new Histogram[GattOperation.NUM_TYPES];
+    private final AtomicLongArray mSucceeded = new AtomicLongArray(GattOperation.NUM_TYPES);
+    private final AtomicLongArray mFailed = new AtomicLongArray(GattOperation.NUM_TYPES);
+    private final AtomicLongArray mTimedOut = new AtomicLongArray(GattOperation.NUM_TYPES);
+    private final Histogram mConnectLatency = new Histogram();
+    private final Histogram mReadyLatency = new Histogram();
+    private final Histogram mQueueWait = new Histogram();
+    private final Histogram mQueueDepth = new Histogram();
+    private final AtomicLong mConnections = new AtomicLong();
+    private final AtomicLong mLinkLosses = new AtomicLong();
+    private final AtomicLong mNotifications = new AtomicLong();
+
+    GattMetrics() {
+        for (int i = 0; i < mOperationLatency.length; ++i)
+            mOperationLatency[i] = new Histogram();
+    }
+
+    void onOperationIssued(long queueWaitMicros) {
+        mQueueWait.record(queueWaitMicros);
+    }
+
+    void onOperationCompleted(@GattOperation.Type int type, int status, long latencyMicros) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            mSucceeded.incrementAndGet(type);
+            mOperationLatency[type].record(latencyMicros);
+        } else {
+            mFailed.incrementAndGet(type);
+            if (status == GattOperation.STATUS_TIMED_OUT)
+                mTimedOut.incrementAndGet(type);
+        }
+    }
+
+    void onQueueDepth(int depth) {
+        mQueueDepth.record(depth);
+    }
+
+    void onConnected(long latencyMillis) {
+        mConnections.incrementAndGet();
+        mConnectLatency.record(latencyMillis * 1000);
+    }
+
+    void onReady(long latencyMillis) {
+        mReadyLatency.record(latencyMillis * 1000);
+    }
+
+    void onLinkLost() {
+        mLinkLosses.incrementAndGet();
+    }
+
+    void onNotification() {
+        mNotifications.incrementAndGet();
+    }
+
+    /**
+     * @return a copy of the current values
+     */
+    @NonNull
+    public Snapshot snapshot() {
+        final HistogramSnapshot[] operations = new HistogramSnapshot[mOperationLatency.length];
+        for (int i = 0; i < operations.length; ++i)
+            operations[i] = mOperationLatency[i].snapshot();
+        return new Snapshot(
+                operations, toArray(mSucceeded), toArray(mFailed), toArray(mTimedOut),
+                mConnectLatency.snapshot(), mReadyLatency.snapshot(), mQueueWait.snapshot(), mQueueDepth.snapshot(),
+                mConnections.get(), mLinkLosses.get(), mNotifications.get()
+        );
+    }
+
+    @NonNull
+    private static long[] toArray(@NonNull AtomicLongArray array) {
+        final long[] values = new long[array.length()];
+        for (int i = 0; i < values.length; ++i)
+            values[i] = array.get(i);
+        return values;
+    }
+
+    /**
+     * @return the bucket of a value, bucket {@code b} holds {@code [2^(b-1), 2^b)}, bucket 0 holds 0
+     */
+    static int bucketOf(long value) {
+        return value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    private static final class Histogram {
+        private final AtomicLongArray mBuckets = new AtomicLongArray(NUM_BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        void record(long value) {
+            mBuckets.incrementAndGet(Math.min(bucketOf(value), NUM_BUCKETS - 1));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max;
+            while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value))
+                ;
+        }
+
+        @NonNull
+        HistogramSnapshot snapshot() {
+            return new HistogramSnapshot(toArray(mBuckets), mCount.get(), mSum.get(), mMax.get());
+        }
+    }
+
+    /**
+     * the buckets of a histogram at the time of the snapshot, the count may be slightly off the
+     * sum of the buckets if values were recorded while it was taken.
+     */
+    public static final class HistogramSnapshot {
+        private final long[] mBuckets;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        HistogramSnapshot(@NonNull long[] buckets, long count, long sum, long max) {
+            mBuckets = buckets;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public double getMean() {
+            return mCount == 0 ? 0 : (double) mSum / mCount;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the upper bound of the bucket the percentile falls into, capped by the max,
+         * at most twice the exact value.
+         */
+        public long getPercentile(double percentile) {
+            long total = 0;
+            for (final long bucket : mBuckets)
+                total += bucket;
+            if (total == 0)
+                return 0;
+
+            final long rank = (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100);
+            long seen = 0;
+            for (int b = 0; b < mBuckets.length; ++b) {
+                seen += mBuckets[b];
+                if (seen >= rank && mBuckets[b] != 0)
+                    return Math.min(b == 0 ? 0 : (1L << b) - 1, mMax);
+            }
+            return mMax;
+        }
+
+        @NonNull
+        public HistogramSnapshot merge(@NonNull HistogramSnapshot other) {
+            final long[] buckets = new long[mBuckets.length];
+            for (int b = 0; b < buckets.length; ++b)
+                buckets[b] = mBuckets[b] + other.mBuckets[b];
+            return new HistogramSnapshot(buckets, mCount + other.mCount, mSum + other.mSum, Math.max(mMax, other.mMax));
+        }
+
+        @Override
+        public String toString() {
+            return "count = " + mCount + ", mean = " + (long) getMean() + ", p50 = " + getPercentile(50) + ", p99 = " + getPercentile(99) + ", max = " + mMax;
+        }
+    }
+
+    /**
+     * the metrics of a device (or several, merged) at the time of the snapshot.
+     */
+    public static final class Snapshot {
+        private final HistogramSnapshot[] mOperationLatency;
+        private final long[] mSucceeded;
+        private final long[] mFailed;
+        private final long[] mTimedOut;
+        private final HistogramSnapshot mConnectLatency;
+        private final HistogramSnapshot mReadyLatency;
+        private final HistogramSnapshot mQueueWait;
+        private final HistogramSnapshot mQueueDepth;
+        private final long mConnections;
+        private final long mLinkLosses;
+        private final long mNotifications;
+
+        Snapshot(@NonNull HistogramSnapshot[] operationLatency, @NonNull long[] succeeded, @NonNull long[] failed, @NonNull long[] timedOut,
+                 @NonNull HistogramSnapshot connectLatency, @NonNull HistogramSnapshot readyLatency, @NonNull HistogramSnapshot queueWait, @NonNull HistogramSnapshot queueDepth,
+                 long connections, long linkLosses, long notifications) {
+            mOperationLatency = operationLatency;
+            mSucceeded = succeeded;
+            mFailed = failed;
+            mTimedOut = timedOut;
+            mConnectLatency = connectLatency;
+            mReadyLatency = readyLatency;
+            mQueueWait = queueWait;
+            mQueueDepth = queueDepth;
+            mConnections = connections;
+            mLinkLosses = linkLosses;
+            mNotifications = notifications;
+        }
+
+        /**
+         * @return latency of the successful operations of a type, in microseconds
+         */
+        @NonNull
+        public HistogramSnapshot getOperationLatency(@GattOperation.Type int type) {
+            return mOperationLatency[type];
+        }
+
+        public long getSucceededCount(@GattOperation.Type int type) {
+            return mSucceeded[type];
+        }
+
+        /**
+         * @return number of operations of a type that completed with any other status than
+         * {@link BluetoothGatt#GATT_SUCCESS}, timeouts included.
+         */
+        public long getFailedCount(@GattOperation.Type int type) {
+            return mFailed[type];
+        }
+
+        public long getTimedOutCount(@GattOperation.Type int type) {
+            return mTimedOut[type];
+        }
+
+        /**
+         * @return time from the connection attempt to the link being up, in microseconds
+         */
+        @NonNull
+        public HistogramSnapshot getConnectLatency() {
+            return mConnectLatency;
+        }
+
+        /**
+         * @return time from the connection attempt to the device being ready, in microseconds
+         */
+        @NonNull
+        public HistogramSnapshot getReadyLatency() {
+            return mReadyLatency;
+        }
+
+        /**
+         * @return time operations waited in the queue, in microseconds
+         */
+        @NonNull
+        public HistogramSnapshot getQueueWait() {
+            return mQueueWait;
+        }
+
+        /**
+         * @return number of operations in the queue, sampled whenever it changes
+         */
+        @NonNull
+        public HistogramSnapshot getQueueDepth() {
+            return mQueueDepth;
+        }
+
+        public long getConnectionCount() {
+            return mConnections;
+        }
+
+        /**
+         * @return number of times the link went down, or a connection attempt failed, without
+         * {@link BluetoothLeDevice#disconnect()} or {@link BluetoothLeDevice#close()} being called
+         */
+        public long getLinkLossCount() {
+            return mLinkLosses;
+        }
+
+        public long getNotificationCount() {
+            return mNotifications;
+        }
+
+        /**
+         * @return the sum of both snapshots
+         */
+        @NonNull
+        public Snapshot merge(@NonNull Snapshot other) {
+            final int types = mOperationLatency.length;
+            final HistogramSnapshot[] operations = new HistogramSnapshot[types];
+            final long[] succeeded = new long[types];
+            final long[] failed = new long[types];
+            final long[] timedOut = new long[types];
+            for (int i = 0; i < types; ++i) {
+                operations[i] = mOperationLatency[i].merge(other.mOperationLatency[i]);
+                succeeded[i] = mSucceeded[i] + other.mSucceeded[i];
+                failed[i] = mFailed[i] + other.mFailed[i];
+                timedOut[i] = mTimedOut[i] + other.mTimedOut[i];
+            }
+            return new Snapshot(
+                    operations, succeeded, failed, timedOut,
+                    mConnectLatency.merge(other.mConnectLatency), mReadyLatency.merge(other.mReadyLatency),
+                    mQueueWait.merge(other.mQueueWait), mQueueDepth.merge(other.mQueueDepth),
+                    mConnections + other.mConnections, mLinkLosses + other.mLinkLosses, mNotifications + other.mNotifications
+            );
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder(getClass().getSimpleName())
+                    .append(" (connections = ").append(mConnections)
+                    .append(", link losses = ").append(mLinkLosses)
+                    .append(", notifications = ").append(mNotifications)
+                    .append(", connect = [").append(mConnectLatency)
+                    .append("], queue wait = [").append(mQueueWait)
+                    .append("], queue depth = [").append(mQueueDepth).append("]");
+            for (int i = 0; i < mOperationLatency.length; ++i)
+                if (mSucceeded[i] != 0 || mFailed[i] != 0)
+                    sb.append(", type ").append(i).append(" = [").append(mOperationLatency[i])
+                            .append(", failed = ").append(mFailed[i])
+                            .append(", timed out = ").append(mTimedOut[i]).append("]");
+            return sb.append(")").toString();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package tw.idv.palatis.ble;
+
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+
+import java.lang.annotation.Retention;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+/**
+ * a bounded buffer between the notifications of a characteristic and their consumer.
+ * <p>
+ * attach it with {@link BluetoothLeDevice#setNotificationChannel(android.bluetooth.BluetoothGattCharacteristic, GattNotificationChannel)},
+ * the values are then copied into the channel on the binder thread instead of being handed to
+ * {@link tw.idv.palatis.ble.services.BluetoothGattService#onCharacteristicChanged(android.bluetooth.BluetoothGattCharacteristic)},
+ * and the consumer takes them out with {@link #poll(byte[])} at its own pace.
+ * <p>
+ * the slots are allocated up front, values longer than a slot are truncated. when the channel is
+ * full the {@link Policy} decides what gives: the oldest value, the newest one, or the binder
+ * thread waits up to a timeout for room and then drops the newest one.
+ * {@link #POLICY_CONFLATE} keeps only the latest value.
+ */
+public final class GattNotificationChannel extends GattNotificationSink {
+    /**
+     * a full channel drops its oldest value to make room
+     */
+    public static final int POLICY_DROP_OLDEST = 0;
+    /**
+     * a full channel drops the value arriving
+     */
+    public static final int POLICY_DROP_NEWEST = 1;
+    /**
+     * the channel holds a single value, the latest one
+     */
+    public static final int POLICY_CONFLATE = 2;
+    /**
+     * a full channel holds up the binder thread until there's room or the timeout elapses, then
+     * drops the value arriving
+     */
+    public static final int POLICY_BLOCK = 3;
+
+    @Retention(SOURCE)
+    @IntDef({POLICY_DROP_OLDEST, POLICY_DROP_NEWEST, POLICY_CONFLATE, POLICY_BLOCK})
+    public @interface Policy {
+    }
+
+    /**
+     * the longest attribute value allowed by the spec
+     */
+    public static final int MAX_VALUE_LENGTH = 512;
+
+    @Policy
+    private final int mPolicy;
+    private final long mBlockTimeoutMs;
+    private final byte[][] mSlots;
+    private final int[] mLengths;
+
+    // guarded by this
+    private int mHead = 0;
+    private int mSize = 0;
+    private int mHighWaterMark = 0;
+    private long mReceived = 0;
+    private long mDelivered = 0;
+    private long mDropped = 0;
+    private long mTruncated = 0;
+
+    /**
+     * a channel dropping its oldest value when full, with slots for the longest values possible
+     *
+     * @param capacity number of values buffered
+     */
+    public GattNotificationChannel(int capacity) {
+        this(capacity, MAX_VALUE_LENGTH, POLICY_DROP_OLDEST, 0);
+    }
+
+    /**
+     * @param capacity       number of values buffered, ignored by {@link #POLICY_CONFLATE}
+     * @param maxValueLength the size of a slot, longer values are truncated
+     * @param policy         what to do when the channel is full
+     * @param blockTimeoutMs how long {@link #POLICY_BLOCK} waits for room
+     */
+    public GattNotificationChannel(int capacity, int maxValueLength, @Policy int policy, long blockTimeoutMs) {
+        if (capacity <= 0 || maxValueLength <= 0)
+            throw new IllegalArgumentException("capacity and maxValueLength must be positive.");
+        if (policy < POLICY_DROP_OLDEST || policy > POLICY_BLOCK)
+            throw new IllegalArgumentException("unknown policy " + policy);
+        mPolicy = policy;
+        mBlockTimeoutMs = blockTimeoutMs;
+        final int slots = policy == POLICY_CONFLATE ? 1 : capacity;
+        mSlots = new byte[slots][maxValueLength];
+        mLengths = new int[slots];
+    }
+
+    @Override
+    void onNotification(@NonNull byte[] value) {
+        offer(value);
+    }
+
+    /**
+     * copy a value in, called on the binder thread.
+     *
+     * @return {@code false} if the value has been dropped
+     */
+    synchronized boolean offer(@NonNull byte[] value) {
+        ++mReceived;
+        if (mSize == mSlots.length) {
+            switch (mPolicy) {
+                case POLICY_DROP_OLDEST:
+                case POLICY_CONFLATE:
+                    mHead = (mHead + 1) % mSlots.length;
+                    --mSize;
+                    ++mDropped;
+                    break;
+                case POLICY_BLOCK:
+                    if (!awaitRoom())
+                        return drop();
+                    break;
+                case POLICY_DROP_NEWEST:
+                default:
+                    return drop();
+            }
+        }
+
+        final int tail = (mHead + mSize) % mSlots.length;
+        final int length = Math.min(value.length, mSlots[tail].length);
+        if (length < value.length)
+            ++mTruncated;
+        System.arraycopy(value, 0, mSlots[tail], 0, length);
+        mLengths[tail] = length;
+        if (++mSize > mHighWaterMark)
+            mHighWaterMark = mSize;
+        notifyAll();
+        return true;
+    }
+
+    private boolean drop() {
+        ++mDropped;
+        return false;
+    }
+
+    /**
+     * must hold the lock.
+     *
+     * @return {@code true} if there's room now
+     */
+    private boolean awaitRoom() {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mBlockTimeoutMs);
+        long remaining = mBlockTimeoutMs;
+        while (mSize == mSlots.length && remaining > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            remaining = remainingMillis(deadline);
+        }
+        return mSize < mSlots.length;
+    }
+
+    /**
+     * take the oldest value out without waiting.
+     *
+     * @param destination where the value is copied to, should be as large as a slot
+     * @return the length of the value, {@code -1} if the channel is empty
+     */
+    public synchronized int poll(@NonNull byte[] destination) {
+        if (mSize == 0)
+            return -1;
+
+        final int length = Math.min(mLengths[mHead], destination.length);
+        System.arraycopy(mSlots[mHead], 0, destination, 0, length);
+        mHead = (mHead + 1) % mSlots.length;
+        --mSize;
+        ++mDelivered;
+        notifyAll();
+        return length;
+    }
+
+    /**
+     * take the oldest value out, waiting for one to arrive.
+     *
+     * @param destination where the value is copied to, should be as large as a slot
+     * @param timeoutMs   how long to wait
+     * @return the length of the value, {@code -1} if none arrived in time
+     */
+    public synchronized int poll(@NonNull byte[] destination, long timeoutMs) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        long remaining = timeoutMs;
+        while (mSize == 0 && remaining > 0) {
+            wait(remaining);
+            remaining = remainingMillis(deadline);
+        }
+        return poll(destination);
+    }
+
+    /**
+     * a timed wait measures a duration, so it goes by {@link System#nanoTime()} like
+     * {@link Object#wait(long)} itself.
+     *
+     * @return milliseconds left until the deadline, rounded up so the wait doesn't end early
+     */
+    private static long remainingMillis(long deadlineNanos) {
+        final long remaining = deadlineNanos - System.nanoTime();
+        return remaining <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(remaining + 999999);
+    }
+
+    /**
+     * drop every buffered value
+     */
+    public synchronized void clear() {
+        mSize = 0;
+        notifyAll();
+    }
+
+    @Policy
+    public int getPolicy() {
+        return mPolicy;
+    }
+
+    public int getCapacity() {
+        return mSlots.length;
+    }
+
+    /**
+     * @return number of values waiting for the consumer
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the most values that have been waiting at once
+     */
+    public synchronized int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    public synchronized long getReceivedCount() {
+        return mReceived;
+    }
+
+    public synchronized long getDeliveredCount() {
+        return mDelivered;
+    }
+
+    /**
+     * @return number of values dropped by the policy, including values replaced by conflation
+     */
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    public synchronized long getTruncatedCount() {
+        return mTruncated;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + "@" + hashCode() + " (policy = " + mPolicy + ", " + mSize + "/" + mSlots.length + ", high water mark = " + mHighWaterMark + ", received = " + mReceived + ", dropped = " + mDropped + ")";
+    }
+}
@@ -0,0 +1,261 @@
+package tw.idv.palatis.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tw.idv.palatis.ble.services.BluetoothGattService;
+
+/**
+ * publishes the notifications of a characteristic to subscribers pulling at their own pace.
+ * <p>
+ * {@link Subscriber} and {@link Subscription} mirror the Reactive Streams interfaces one to one
+ * ({@code java.util.concurrent.Flow} needs API 30), so wrapping them for a Reactive Streams
+ * library is a one-liner. each subscriber only receives as many values as it has
+ * {@link Subscription#request(long)}ed, up to {@code bufferSize} values wait for demand, the
+ * oldest is dropped after that.
+ * <p>
+ * the notification is enabled when the first subscriber subscribes, and disabled when the last
+ * one cancels. the values are delivered on the binder thread, or on the thread calling
+ * {@link Subscription#request(long)} if they were waiting for demand. a value is shared by the
+ * subscribers, don't modify it.
+ * <p>
+ * while it has subscribers the publisher is the only consumer of the characteristic, a subscriber
+ * coming while a {@link GattNotificationChannel} is attached gets
+ * {@link Subscriber#onError(Throwable)} instead. after {@link #complete()} new subscribers get
+ * {@link Subscriber#onComplete()} right away.
+ */
+public final class GattNotificationPublisher extends GattNotificationSink {
+    public static final int DEFAULT_BUFFER_SIZE = 16;
+
+    @NonNull
+    private final BluetoothLeDevice mDevice;
+    @NonNull
+    private final BluetoothGattService mService;
+    @NonNull
+    private final BluetoothGattCharacteristic mCharacteristic;
+    private final int mBufferSize;
+
+    private final CopyOnWriteArrayList<SubscriptionImpl> mSubscriptions = new CopyOnWriteArrayList<>();
+    private final AtomicLong mDropped = new AtomicLong();
+    // guarded by this
+    private boolean mCompleted = false;
+
+    public GattNotificationPublisher(@NonNull BluetoothGattService service, @NonNull BluetoothGattCharacteristic characteristic) {
+        this(service, characteristic, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param service        the service the characteristic belongs to
+     * @param characteristic the characteristic to publish
+     * @param bufferSize     number of values kept per subscriber while waiting for demand
+     */
+    public GattNotificationPublisher(@NonNull BluetoothGattService service, @NonNull BluetoothGattCharacteristic characteristic, int bufferSize) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("bufferSize must be positive, got " + bufferSize);
+        mDevice = service.getDevice();
+        mService = service;
+        mCharacteristic = characteristic;
+        mBufferSize = bufferSize;
+    }
+
+    public void subscribe(@NonNull Subscriber<? super byte[]> subscriber) {
+        final SubscriptionImpl subscription = new SubscriptionImpl(subscriber);
+        final boolean completed;
+        final boolean accepted;
+        synchronized (this) {
+            completed = mCompleted;
+            accepted = !completed && (!mSubscriptions.isEmpty() || mDevice.replaceNotificationSink(mCharacteristic, null, this));
+            if (accepted) {
+                mSubscriptions.add(subscription);
+                // queued under the lock, so the descriptor writes go out in the order the
+                // subscriptions come and go.
+                if (mSubscriptions.size() == 1)
+                    mDevice.setCharacteristicNotification(mService, mCharacteristic, true);
+            }
+        }
+
+        if (!accepted)
+            subscription.cancel();
+        subscriber.onSubscribe(subscription);
+        if (completed)
+            subscriber.onComplete();
+        else if (!accepted)
+            subscriber.onError(new IllegalStateException("a channel is attached to " + mCharacteristic.getUuid() + "."));
+    }
+
+    /**
+     * signal {@link Subscriber#onComplete()} to every subscriber once they have received the
+     * values waiting, and disable the notification. later subscribers complete right away.
+     */
+    public void complete() {
+        synchronized (this) {
+            mCompleted = true;
+        }
+        for (final SubscriptionImpl subscription : mSubscriptions)
+            subscription.complete();
+    }
+
+    public int getSubscriberCount() {
+        return mSubscriptions.size();
+    }
+
+    /**
+     * @return number of values dropped because a subscriber didn't keep up
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    @Override
+    void onNotification(@NonNull byte[] value) {
+        final byte[] copy = value.clone();
+        for (final SubscriptionImpl subscription : mSubscriptions)
+            subscription.offer(copy);
+    }
+
+    private void unsubscribe(@NonNull SubscriptionImpl subscription) {
+        synchronized (this) {
+            if (mSubscriptions.remove(subscription) && mSubscriptions.isEmpty()) {
+                mDevice.replaceNotificationSink(mCharacteristic, this, null);
+                mDevice.setCharacteristicNotification(mService, mCharacteristic, false);
+            }
+        }
+    }
+
+    private final class SubscriptionImpl implements Subscription {
+        @NonNull
+        private final Subscriber<? super byte[]> mSubscriber;
+
+        // guarded by this
+        private final ArrayDeque<byte[]> mBuffer = new ArrayDeque<>();
+        private long mRequested = 0;
+        private boolean mEmitting = false;
+        private boolean mCancelled = false;
+        private boolean mCompleting = false;
+
+        SubscriptionImpl(@NonNull Subscriber<? super byte[]> subscriber) {
+            mSubscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                mSubscriber.onError(new IllegalArgumentException("request(" + n + "): the demand must be positive."));
+                return;
+            }
+            synchronized (this) {
+                if (mCancelled)
+                    return;
+                mRequested = mRequested + n < 0 ? Long.MAX_VALUE : mRequested + n;
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                if (mCancelled)
+                    return;
+                mCancelled = true;
+                mBuffer.clear();
+            }
+            unsubscribe(this);
+        }
+
+        void offer(@NonNull byte[] value) {
+            synchronized (this) {
+                if (mCancelled || mCompleting)
+                    return;
+                if (mBuffer.size() == mBufferSize) {
+                    mBuffer.pollFirst();
+                    mDropped.incrementAndGet();
+                }
+                mBuffer.addLast(value);
+            }
+            drain();
+        }
+
+        void complete() {
+            synchronized (this) {
+                if (mCancelled || mCompleting)
+                    return;
+                mCompleting = true;
+            }
+            drain();
+        }
+
+        /**
+         * deliver as much as the demand allows, on one thread at a time. a thread finding another
+         * one delivering leaves its values to it.
+         */
+        private void drain() {
+            synchronized (this) {
+                if (mEmitting)
+                    return;
+                mEmitting = true;
+            }
+
+            for (; ; ) {
+                final byte[] value;
+                synchronized (this) {
+                    if (mCancelled) {
+                        mEmitting = false;
+                        return;
+                    }
+                    if (mBuffer.isEmpty() && mCompleting) {
+                        mCancelled = true;
+                        mEmitting = false;
+                        value = null;
+                    } else if (mBuffer.isEmpty() || mRequested == 0) {
+                        mEmitting = false;
+                        return;
+                    } else {
+                        value = mBuffer.pollFirst();
+                        if (mRequested != Long.MAX_VALUE)
+                            --mRequested;
+                    }
+                }
+
+                // signal outside the lock, the subscriber may call request() or cancel() from here.
+                if (value == null) {
+                    unsubscribe(this);
+                    mSubscriber.onComplete();
+                    return;
+                }
+                mSubscriber.onNext(value);
+            }
+        }
+    }
+
+    /**
+     * receives the values, mirrors {@code org.reactivestreams.Subscriber}
+     */
+    public interface Subscriber<T> {
+        void onSubscribe(@NonNull Subscription subscription);
+
+        void onNext(@NonNull T value);
+
+        void onError(@NonNull Throwable error);
+
+        void onComplete();
+    }
+
+    /**
+     * the link between a {@link GattNotificationPublisher} and a {@link Subscriber}, mirrors
+     * {@code org.reactivestreams.Subscription}
+     */
+    public interface Subscription {
+        /**
+         * @param n number of values the subscriber is ready for, {@link Long#MAX_VALUE} for no
+         *          limit
+         */
+        void request(long n);
+
+        void cancel();
+    }
+}
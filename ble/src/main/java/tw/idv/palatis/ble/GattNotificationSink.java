@@ -0,0 +1,15 @@
+package tw.idv.palatis.ble;
+
+import android.support.annotation.NonNull;
+
+/**
+ * takes the notifications of a characteristic over from
+ * {@link tw.idv.palatis.ble.services.BluetoothGattService#onCharacteristicChanged(android.bluetooth.BluetoothGattCharacteristic)},
+ * called on the binder thread.
+ */
+abstract class GattNotificationSink {
+    /**
+     * @param value the value of the characteristic, only valid during the call
+     */
+    abstract void onNotification(@NonNull byte[] value);
+}
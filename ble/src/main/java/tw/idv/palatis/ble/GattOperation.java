@@ -0,0 +1,719 @@
+package tw.idv.palatis.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.lang.annotation.Retention;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tw.idv.palatis.ble.services.BluetoothGattService;
+
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+/**
+ * a single GATT request queued on a {@link BluetoothLeDevice}, and the completion handle
+ * returned to the caller.
+ * <p>
+ * the operation never blocks, register an {@link OnCompleteListener} to get notified when the
+ * matching {@link android.bluetooth.BluetoothGattCallback} arrives (or the operation fails).
+ */
+public abstract class GattOperation {
+    /**
+     * the operation is still waiting in the queue or in flight
+     */
+    public static final int STATUS_PENDING = -1;
+    /**
+     * the remote device didn't respond in time
+     */
+    public static final int STATUS_TIMED_OUT = -2;
+    /**
+     * the bluetooth stack refused to issue the request
+     */
+    public static final int STATUS_REQUEST_FAILED = -3;
+    /**
+     * the device is not connected
+     */
+    public static final int STATUS_DISCONNECTED = -4;
+    /**
+     * the operation has been cancelled before it was issued
+     */
+    public static final int STATUS_CANCELLED = -5;
+    /**
+     * the deadline of the operation passed before it could be issued
+     */
+    public static final int STATUS_EXPIRED = -6;
+
+    /**
+     * the operation waits in the queue for as long as it takes
+     */
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /**
+     * user-facing requests, e.g. control writes triggered from the UI
+     */
+    public static final int PRIORITY_INTERACTIVE = 0;
+    /**
+     * the default priority
+     */
+    public static final int PRIORITY_NORMAL = 1;
+    /**
+     * periodic or informational requests that can wait, e.g. polling the battery level
+     */
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    static final int NUM_PRIORITIES = 3;
+
+    @Retention(SOURCE)
+    @IntDef({PRIORITY_INTERACTIVE, PRIORITY_NORMAL, PRIORITY_BACKGROUND})
+    public @interface Priority {
+    }
+
+    public static final int TYPE_READ_CHARACTERISTIC = 0;
+    public static final int TYPE_WRITE_CHARACTERISTIC = 1;
+    public static final int TYPE_READ_DESCRIPTOR = 2;
+    public static final int TYPE_WRITE_DESCRIPTOR = 3;
+    public static final int TYPE_WRITE_NO_RESPONSE = 4;
+    public static final int TYPE_RELIABLE_WRITE = 5;
+    public static final int TYPE_REQUEST_MTU = 6;
+    public static final int TYPE_DISCOVER_SERVICES = 7;
+
+    static final int NUM_TYPES = 8;
+
+    @Retention(SOURCE)
+    @IntDef({
+            TYPE_READ_CHARACTERISTIC, TYPE_WRITE_CHARACTERISTIC, TYPE_READ_DESCRIPTOR,
+            TYPE_WRITE_DESCRIPTOR, TYPE_WRITE_NO_RESPONSE, TYPE_RELIABLE_WRITE, TYPE_REQUEST_MTU,
+            TYPE_DISCOVER_SERVICES
+    })
+    public @interface Type {
+    }
+
+    // return values of the callback hooks, tells the queue what to do with the operation
+    static final int RESULT_IGNORED = 0;
+    static final int RESULT_PENDING = 1;
+    static final int RESULT_DONE = 2;
+
+    // the callbacks of the stack, for onLateCallback()
+    static final int CALLBACK_CHARACTERISTIC_READ = 0;
+    static final int CALLBACK_CHARACTERISTIC_WRITE = 1;
+    static final int CALLBACK_DESCRIPTOR_READ = 2;
+    static final int CALLBACK_DESCRIPTOR_WRITE = 3;
+    static final int CALLBACK_RELIABLE_WRITE_COMPLETED = 4;
+    static final int CALLBACK_MTU_CHANGED = 5;
+    static final int CALLBACK_SERVICES_DISCOVERED = 6;
+
+    private static final AtomicInteger sNextTraceId = new AtomicInteger();
+
+    final BluetoothGattService mService;
+    // tells the operations apart in the GattTrace
+    final int mTraceId = sNextTraceId.incrementAndGet();
+    // elapsed realtime in nanoseconds, for the GattMetrics
+    long mQueuedAtNs = 0;
+    long mIssuedAtNs = 0;
+    long mCompletedAtNs = 0;
+    // number of times the stack refused to issue it, guarded by the queue
+    int mRefusals = 0;
+
+    @Priority
+    private int mPriority = PRIORITY_NORMAL;
+    private volatile int mStatus = STATUS_PENDING;
+    private volatile long mDeadline = NO_DEADLINE;
+    private volatile GattOperationQueue mQueue = null;
+    private byte[] mValue = null;
+    private ArrayList<OnCompleteListener> mListeners = null;
+    private ArrayList<GattOperation> mFollowers = null;
+
+    GattOperation(@Nullable BluetoothGattService service) {
+        mService = service;
+    }
+
+    /**
+     * @return the service this operation is issued for, {@code null} for device-wide operations
+     * like MTU negotiation.
+     */
+    @Nullable
+    public BluetoothGattService getService() {
+        return mService;
+    }
+
+    /**
+     * @return the kind of the operation, round-trip times and timeouts are tracked per type.
+     */
+    @Type
+    public abstract int getType();
+
+    /**
+     * @return the priority class the operation is queued with
+     */
+    @Priority
+    public int getPriority() {
+        return mPriority;
+    }
+
+    @NonNull
+    GattOperation setPriority(@Priority int priority) {
+        mPriority = priority;
+        return this;
+    }
+
+    /**
+     * set before the operation is queued, the queue arms its expiry timer when it arrives.
+     */
+    @NonNull
+    GattOperation setDeadline(long deadline) {
+        mDeadline = deadline;
+        return this;
+    }
+
+    /**
+     * an operation still waiting in the queue when its deadline passes completes with
+     * {@link #STATUS_EXPIRED} without ever reaching the radio, one that has been issued already
+     * is not affected.
+     *
+     * @return the deadline in {@link SystemClock#elapsedRealtime()} milliseconds, or
+     * {@link #NO_DEADLINE}
+     */
+    public long getDeadline() {
+        return mDeadline;
+    }
+
+    boolean isExpired(long now) {
+        return mDeadline != NO_DEADLINE && now >= mDeadline;
+    }
+
+    /**
+     * cancel the operation if it hasn't been issued yet, the listeners are notified with
+     * {@link #STATUS_CANCELLED}.
+     *
+     * @return {@code true} if the operation has been cancelled, {@code false} if it is in flight
+     * or has completed already.
+     */
+    public boolean cancel() {
+        final GattOperationQueue queue = mQueue;
+        if (queue != null)
+            return queue.cancel(this);
+
+        // not queued yet, enqueueing it later completes it right away.
+        synchronized (this) {
+            if (mStatus != STATUS_PENDING)
+                return false;
+            mStatus = STATUS_CANCELLED;
+            return true;
+        }
+    }
+
+    void setQueue(@Nullable GattOperationQueue queue) {
+        mQueue = queue;
+    }
+
+    /**
+     * @return {@code true} if the operation has completed, successfully or not.
+     */
+    public boolean isDone() {
+        return mStatus != STATUS_PENDING;
+    }
+
+    /**
+     * @return {@code true} if the operation completed with {@link BluetoothGatt#GATT_SUCCESS}
+     */
+    public boolean isSuccess() {
+        return mStatus == BluetoothGatt.GATT_SUCCESS;
+    }
+
+    /**
+     * @return one of the {@code BluetoothGatt.GATT_*} status, or one of the {@code STATUS_*}
+     * constants of this class.
+     */
+    public int getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * @return a copy of the value read or written, {@code null} if the operation hasn't completed
+     * yet or failed.
+     */
+    @Nullable
+    public synchronized byte[] getValue() {
+        // shared by every listener and follower, each caller gets its own.
+        return mValue == null ? null : mValue.clone();
+    }
+
+    /**
+     * add a listener to be notified when the operation completes, the listener is called
+     * immediately if the operation has completed already.
+     *
+     * @param listener the listener
+     * @return this operation
+     */
+    @NonNull
+    public GattOperation addOnCompleteListener(@NonNull OnCompleteListener listener) {
+        synchronized (this) {
+            if (mStatus == STATUS_PENDING) {
+                if (mListeners == null)
+                    mListeners = new ArrayList<>(1);
+                mListeners.add(listener);
+                return this;
+            }
+        }
+        listener.onComplete(this);
+        return this;
+    }
+
+    /**
+     * issue the request to the bluetooth stack
+     *
+     * @param gatt the connected {@link BluetoothGatt}
+     * @return {@code false} if the stack refused the request
+     */
+    abstract boolean issue(@NonNull BluetoothGatt gatt);
+
+    /**
+     * called right before {@link #issue(BluetoothGatt)}, swap attributes taken from services set
+     * up by the {@link GattAttributeCache} for the discovered ones.
+     */
+    void resolve(@NonNull BluetoothLeDevice device) {
+    }
+
+    /**
+     * called when the queue gives up on the operation after it has been issued (timed out or
+     * disconnected), to let multi-step operations clean up.
+     */
+    void abort() {
+    }
+
+    /**
+     * @return {@code true} if the stack still has a request of this completed operation
+     * outstanding, e.g. the abort of a transaction, the queue then holds the next operation back
+     * until {@link #onLateCallback(int)} says the stack is done.
+     */
+    boolean expectsLateCallback() {
+        return false;
+    }
+
+    /**
+     * called for the callbacks arriving after the operation timed out, or completed while
+     * {@link #expectsLateCallback()}, they belong to this operation and not to the next one.
+     *
+     * @param callback one of the {@code CALLBACK_*} constants
+     * @return {@code true} if the stack has no request of this operation outstanding anymore
+     */
+    boolean onLateCallback(int callback) {
+        return true;
+    }
+
+    /**
+     * called on the device's worker thread after a successful completion, before the
+     * {@link OnCompleteListener}s, to let the {@link BluetoothGattService} handle the result.
+     */
+    void dispatchResult() {
+    }
+
+    /**
+     * @param other the operation about to be issued next
+     * @return {@code true} if {@code other} touches the same attribute, so it must not be issued
+     * before {@link #dispatchResult()} has finished reading it.
+     */
+    boolean conflictsWith(@NonNull GattOperation other) {
+        return false;
+    }
+
+    int onCharacteristicRead(@NonNull BluetoothGattCharacteristic characteristic, int status) {
+        return RESULT_IGNORED;
+    }
+
+    int onCharacteristicWrite(@NonNull BluetoothGattCharacteristic characteristic, int status) {
+        return RESULT_IGNORED;
+    }
+
+    int onDescriptorRead(@NonNull BluetoothGattDescriptor descriptor, int status) {
+        return RESULT_IGNORED;
+    }
+
+    int onDescriptorWrite(@NonNull BluetoothGattDescriptor descriptor, int status) {
+        return RESULT_IGNORED;
+    }
+
+    int onReliableWriteCompleted(int status) {
+        return RESULT_IGNORED;
+    }
+
+    int onMtuChanged(int mtu, int status) {
+        return RESULT_IGNORED;
+    }
+
+    int onServicesDiscovered(int status) {
+        return RESULT_IGNORED;
+    }
+
+    /**
+     * @param estimated the timeout derived from the round-trip times of the device
+     * @return how long the queue waits for the callback before giving up on the operation
+     */
+    long getTimeoutMillis(long estimated) {
+        return estimated;
+    }
+
+    /**
+     * set the result of the operation, the listeners are not notified until
+     * {@link #dispatchComplete()}.
+     */
+    synchronized final void setResult(int status, @Nullable byte[] value) {
+        mValue = status == BluetoothGatt.GATT_SUCCESS && value != null ? value.clone() : null;
+        mStatus = status;
+    }
+
+    /**
+     * attach an identical operation that completes with the result of this one, instead of
+     * being issued on its own.
+     */
+    synchronized final void addFollower(@NonNull GattOperation follower) {
+        if (mFollowers == null)
+            mFollowers = new ArrayList<>(1);
+        mFollowers.add(follower);
+    }
+
+    /**
+     * @return {@code true} if the follower has been detached
+     */
+    synchronized final boolean removeFollower(@NonNull GattOperation follower) {
+        return mFollowers != null && mFollowers.remove(follower);
+    }
+
+    /**
+     * @return a copy of the followers, {@code null} if there is none
+     */
+    @Nullable
+    synchronized final ArrayList<GattOperation> getFollowers() {
+        return mFollowers == null || mFollowers.isEmpty() ? null : new ArrayList<>(mFollowers);
+    }
+
+    /**
+     * detach every follower, used when this operation won't be issued but its followers still
+     * want the result.
+     *
+     * @return the followers, {@code null} if there is none
+     */
+    @Nullable
+    synchronized final ArrayList<GattOperation> takeFollowers() {
+        final ArrayList<GattOperation> followers = mFollowers;
+        mFollowers = null;
+        return followers == null || followers.isEmpty() ? null : followers;
+    }
+
+    final void dispatchComplete() {
+        final ArrayList<OnCompleteListener> listeners;
+        final ArrayList<GattOperation> followers;
+        final byte[] value;
+        synchronized (this) {
+            listeners = mListeners;
+            followers = mFollowers;
+            value = mValue;
+            mListeners = null;
+            mFollowers = null;
+        }
+        if (listeners != null)
+            for (final OnCompleteListener listener : listeners)
+                listener.onComplete(this);
+        if (followers != null) {
+            for (final GattOperation follower : followers) {
+                follower.setResult(mStatus, value);
+                follower.dispatchComplete();
+            }
+        }
+    }
+
+    public interface OnCompleteListener {
+        void onComplete(@NonNull GattOperation operation);
+    }
+
+    static final class ReadCharacteristic extends GattOperation {
+        @NonNull
+        BluetoothGattCharacteristic mCharacteristic;
+
+        ReadCharacteristic(@NonNull BluetoothGattService service, @NonNull BluetoothGattCharacteristic characteristic) {
+            super(service);
+            mCharacteristic = characteristic;
+        }
+
+        @Override
+        public int getType() {
+            return TYPE_READ_CHARACTERISTIC;
+        }
+
+        @Override
+        void resolve(@NonNull BluetoothLeDevice device) {
+            mCharacteristic = device.resolve(mCharacteristic);
+        }
+
+        @Override
+        boolean issue(@NonNull BluetoothGatt gatt) {
+            return gatt.readCharacteristic(mCharacteristic);
+        }
+
+        @Override
+        int onCharacteristicRead(@NonNull BluetoothGattCharacteristic characteristic, int status) {
+            if (characteristic != mCharacteristic)
+                return RESULT_IGNORED;
+            setResult(status, characteristic.getValue());
+            return RESULT_DONE;
+        }
+
+        @Override
+        void dispatchResult() {
+            mService.onCharacteristicRead(mCharacteristic);
+        }
+
+        @Override
+        boolean conflictsWith(@NonNull GattOperation other) {
+            return other instanceof WriteCharacteristic && ((WriteCharacteristic) other).mCharacteristic == mCharacteristic;
+        }
+    }
+
+    /**
+     * writes a characteristic. with {@link BluetoothGattCharacteristic#WRITE_TYPE_NO_RESPONSE}
+     * payloads larger than the negotiated MTU allows are split into MTU-sized writes that complete
+     * as one operation, other write types go out whole and the stack turns a payload that doesn't
+     * fit into a long (prepared) write.
+     */
+    static final class WriteCharacteristic extends GattOperation {
+        @NonNull
+        BluetoothGattCharacteristic mCharacteristic;
+        @NonNull
+        private final byte[] mData;
+
+        private BluetoothGatt mGatt = null;
+        private int mSegmentSize = 0;
+        private int mOffset = 0;
+
+        WriteCharacteristic(@NonNull BluetoothGattService service, @NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] data) {
+            super(service);
+            mCharacteristic = characteristic;
+            mData = data;
+        }
+
+        @Override
+        public int getType() {
+            return TYPE_WRITE_CHARACTERISTIC;
+        }
+
+        @Override
+        void resolve(@NonNull BluetoothLeDevice device) {
+            mCharacteristic = device.resolve(mCharacteristic);
+        }
+
+        @Override
+        synchronized boolean issue(@NonNull BluetoothGatt gatt) {
+            mGatt = gatt;
+            // each segment of a request write would land at offset 0 and overwrite the previous
+            // one, only write-without-response payloads are streamed as packets.
+            mSegmentSize = mCharacteristic.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE ?
+                    mService.getDevice().getMaxPayloadSize() : mData.length;
+            mOffset = 0;
+            return writeSegment();
+        }
+
+        private boolean writeSegment() {
+            if (mOffset == 0 && mData.length <= mSegmentSize) {
+                // fits in one ATT packet, write as is.
+                mCharacteristic.setValue(mData);
+            } else {
+                final int length = Math.min(mSegmentSize, mData.length - mOffset);
+                mCharacteristic.setValue(Arrays.copyOfRange(mData, mOffset, mOffset + length));
+            }
+            return mGatt.writeCharacteristic(mCharacteristic);
+        }
+
+        @Override
+        synchronized int onCharacteristicWrite(@NonNull BluetoothGattCharacteristic characteristic, int status) {
+            if (characteristic != mCharacteristic)
+                return RESULT_IGNORED;
+
+            mOffset += mSegmentSize;
+            if (status == BluetoothGatt.GATT_SUCCESS && mOffset < mData.length) {
+                if (writeSegment())
+                    return RESULT_PENDING;
+                status = STATUS_REQUEST_FAILED;
+            }
+
+            setResult(status, mData);
+            return RESULT_DONE;
+        }
+
+        @Override
+        void dispatchResult() {
+            mService.onCharacteristicWrite(mCharacteristic);
+        }
+
+        @Override
+        boolean conflictsWith(@NonNull GattOperation other) {
+            // a read replaces the value as much as another write does.
+            if (other instanceof ReadCharacteristic)
+                return ((ReadCharacteristic) other).mCharacteristic == mCharacteristic;
+            return other instanceof WriteCharacteristic && ((WriteCharacteristic) other).mCharacteristic == mCharacteristic;
+        }
+    }
+
+    static final class ReadDescriptor extends GattOperation {
+        @NonNull
+        BluetoothGattDescriptor mDescriptor;
+
+        ReadDescriptor(@NonNull BluetoothGattService service, @NonNull BluetoothGattDescriptor descriptor) {
+            super(service);
+            mDescriptor = descriptor;
+        }
+
+        @Override
+        public int getType() {
+            return TYPE_READ_DESCRIPTOR;
+        }
+
+        @Override
+        void resolve(@NonNull BluetoothLeDevice device) {
+            mDescriptor = device.resolve(mDescriptor);
+        }
+
+        @Override
+        boolean issue(@NonNull BluetoothGatt gatt) {
+            return gatt.readDescriptor(mDescriptor);
+        }
+
+        @Override
+        int onDescriptorRead(@NonNull BluetoothGattDescriptor descriptor, int status) {
+            if (descriptor != mDescriptor)
+                return RESULT_IGNORED;
+            setResult(status, descriptor.getValue());
+            return RESULT_DONE;
+        }
+
+        @Override
+        void dispatchResult() {
+            mService.onDescriptorRead(mDescriptor);
+        }
+
+        @Override
+        boolean conflictsWith(@NonNull GattOperation other) {
+            return other instanceof WriteDescriptor && ((WriteDescriptor) other).mDescriptor == mDescriptor;
+        }
+    }
+
+    static final class WriteDescriptor extends GattOperation {
+        @NonNull
+        BluetoothGattDescriptor mDescriptor;
+        @NonNull
+        private final byte[] mData;
+
+        WriteDescriptor(@NonNull BluetoothGattService service, @NonNull BluetoothGattDescriptor descriptor, @NonNull byte[] data) {
+            super(service);
+            mDescriptor = descriptor;
+            mData = data;
+        }
+
+        @Override
+        public int getType() {
+            return TYPE_WRITE_DESCRIPTOR;
+        }
+
+        @Override
+        void resolve(@NonNull BluetoothLeDevice device) {
+            mDescriptor = device.resolve(mDescriptor);
+        }
+
+        @Override
+        boolean issue(@NonNull BluetoothGatt gatt) {
+            mDescriptor.setValue(mData);
+            return gatt.writeDescriptor(mDescriptor);
+        }
+
+        @Override
+        int onDescriptorWrite(@NonNull BluetoothGattDescriptor descriptor, int status) {
+            if (descriptor != mDescriptor)
+                return RESULT_IGNORED;
+            setResult(status, mData);
+            return RESULT_DONE;
+        }
+
+        @Override
+        void dispatchResult() {
+            mService.onDescriptorWrite(mDescriptor);
+        }
+
+        @Override
+        boolean conflictsWith(@NonNull GattOperation other) {
+            if (other instanceof ReadDescriptor)
+                return ((ReadDescriptor) other).mDescriptor == mDescriptor;
+            return other instanceof WriteDescriptor && ((WriteDescriptor) other).mDescriptor == mDescriptor;
+        }
+    }
+
+    static final class RequestMtu extends GattOperation {
+        private final int mMtu;
+
+        RequestMtu(int mtu) {
+            super(null);
+            mMtu = mtu;
+        }
+
+        @Override
+        public int getType() {
+            return TYPE_REQUEST_MTU;
+        }
+
+        @Override
+        boolean issue(@NonNull BluetoothGatt gatt) {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && gatt.requestMtu(mMtu);
+        }
+
+        @Override
+        int onMtuChanged(int mtu, int status) {
+            setResult(status, null);
+            return RESULT_DONE;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "@" + hashCode() + " (" + mMtu + ")";
+        }
+    }
+
+    /**
+     * discovers the attribute table of the remote device, takes a whole slot of the queue so no
+     * request is issued while the stack walks the table.
+     */
+    static final class DiscoverServices extends GattOperation {
+        // discovery is many round trips, the estimate of a single one doesn't apply.
+        private static final long MIN_TIMEOUT_MS = 10000;
+
+        DiscoverServices() {
+            super(null);
+        }
+
+        @Override
+        public int getType() {
+            return TYPE_DISCOVER_SERVICES;
+        }
+
+        @Override
+        boolean issue(@NonNull BluetoothGatt gatt) {
+            return gatt.discoverServices();
+        }
+
+        @Override
+        int onServicesDiscovered(int status) {
+            setResult(status, null);
+            return RESULT_DONE;
+        }
+
+        @Override
+        long getTimeoutMillis(long estimated) {
+            return Math.max(estimated, MIN_TIMEOUT_MS);
+        }
+    }
+}
@@ -0,0 +1,800 @@
+package tw.idv.palatis.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * the per-device state machine that serializes {@link GattOperation}s.
+ * <p>
+ * Android only allows one outstanding ATT request per {@link BluetoothGatt}, the queue issues
+ * the next request as soon as the callback of the previous one arrives, without parking any
+ * thread. callbacks from the binder thread only update the state, the service hooks and the
+ * {@link GattOperation.OnCompleteListener}s run on the {@link Executor} given.
+ * <p>
+ * pending operations wait in one FIFO per {@link GattOperation.Priority} class, higher classes
+ * go first. a lower class that has been passed over {@link #STARVATION_LIMIT} times in a row gets
+ * the next turn, so background work still trickles through under sustained interactive load.
+ * <p>
+ * a characteristic read for the same characteristic instance as a read that is already pending
+ * or in flight is not issued again, the caller is attached to the pending read instead.
+ * <p>
+ * nothing is ever dropped silently: operations that are cancelled, expire before they are
+ * issued, or are still queued when the link goes down complete with
+ * {@link GattOperation#STATUS_CANCELLED}, {@link GattOperation#STATUS_EXPIRED}, or
+ * {@link GattOperation#STATUS_DISCONNECTED} respectively.
+ * <p>
+ * while the queue is held only device-wide operations (MTU, discovery) are issued, the others
+ * wait until the services they were queued for are confirmed.
+ * <p>
+ * the stack refuses a request while it still considers an earlier one outstanding. a refused
+ * operation keeps its place at the head of the line and is issued again after a growing delay,
+ * it only fails with {@link GattOperation#STATUS_REQUEST_FAILED} once
+ * {@link #MAX_REFUSALS} tries have been refused.
+ * <p>
+ * Android can't cancel an ATT request, an operation that timed out is still outstanding in the
+ * stack. the queue issues nothing until its late callback arrives, so the callback isn't taken
+ * for the answer to the next operation, or until the link goes down.
+ */
+final class GattOperationQueue {
+    private static final String TAG = "GattOperationQueue";
+
+    static final int STARVATION_LIMIT = 8;
+    /**
+     * number of times the stack may refuse an operation before it fails
+     */
+    static final int MAX_REFUSALS = 6;
+    // doubles on every refusal of the same operation, 1.26 seconds in total
+    private static final long REFUSAL_BACKOFF_MS = 20;
+    // the ATT transaction timeout, the stack drops the link when it passes. if it didn't the
+    // late callback is lost for good and the queue moves on.
+    private static final long LATE_CALLBACK_TIMEOUT_MS = 30000;
+
+    @NonNull
+    private final BluetoothLeDevice mDevice;
+    @NonNull
+    private final Executor mExecutor;
+    @NonNull
+    private final Handler mHandler;
+    @NonNull
+    private final GattRttEstimator mEstimator;
+    @NonNull
+    private final GattTrace mTrace = GattTrace.getDefault();
+    @NonNull
+    private final GattMetrics mMetrics;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<GattOperation>[] mPending = new ArrayDeque[GattOperation.NUM_PRIORITIES];
+    private final int[] mPassedOver = new int[GattOperation.NUM_PRIORITIES];
+    private int mPendingCount = 0;
+    private final IdentityHashMap<BluetoothGattCharacteristic, GattOperation.ReadCharacteristic> mPendingReads = new IdentityHashMap<>();
+    private long mCoalescedReads = 0;
+    private GattOperation mInFlight = null;
+    private long mInFlightSinceNs = 0;
+    private long mInFlightTimeoutMs = 0;
+    private boolean mHeld = false;
+    private boolean mRetryPosted = false;
+    // timed out or aborted, the stack still has a request of it outstanding
+    private GattOperation mLate = null;
+    // the deadline the expiry timer is armed for
+    private long mExpiryArmedAt = GattOperation.NO_DEADLINE;
+
+    private volatile GattConnectionPolicy mPolicy = null;
+
+    private final Runnable mIssueRunnable = this::issueNext;
+    private final Runnable mTimeoutRunnable = this::onTimeout;
+    private final Runnable mLateTimeoutRunnable = this::onLateTimeout;
+    private final Runnable mExpireRunnable = this::onExpiryTimer;
+    private final Runnable mRetryRunnable = this::onRetry;
+
+    GattOperationQueue(@NonNull BluetoothLeDevice device, @NonNull Executor executor, @NonNull Handler handler, @NonNull GattRttEstimator estimator) {
+        mDevice = device;
+        mExecutor = executor;
+        mHandler = handler;
+        mEstimator = estimator;
+        mMetrics = device.getMetrics();
+        for (int i = 0; i < mPending.length; ++i)
+            mPending[i] = new ArrayDeque<>();
+    }
+
+    /**
+     * append an operation to the queue, fails it right away with
+     * {@link GattOperation#STATUS_DISCONNECTED} if the device is not connected.
+     */
+    @NonNull
+    GattOperation enqueue(@NonNull GattOperation operation) {
+        if (operation.isDone()) {
+            // cancelled before it got here
+            mExecutor.execute(operation::dispatchComplete);
+            return operation;
+        }
+        if (mDevice.getGatt() == null) {
+            operation.setResult(GattOperation.STATUS_DISCONNECTED, null);
+            mExecutor.execute(operation::dispatchComplete);
+            return operation;
+        }
+
+        operation.mQueuedAtNs = SystemClock.elapsedRealtimeNanos();
+        final boolean coalesced;
+        synchronized (this) {
+            operation.setQueue(this);
+            if (operation.getDeadline() != GattOperation.NO_DEADLINE)
+                armExpiry(operation.getDeadline());
+            coalesced = operation instanceof GattOperation.ReadCharacteristic && coalesce((GattOperation.ReadCharacteristic) operation);
+            if (!coalesced) {
+                mPending[operation.getPriority()].addLast(operation);
+                ++mPendingCount;
+            }
+        }
+        mTrace.recordOperation(mDevice.getId(), GattTrace.EVENT_OPERATION_QUEUED, operation, 0);
+        if (coalesced)
+            return operation;
+        mExecutor.execute(mIssueRunnable);
+        reportQueueDepth();
+        return operation;
+    }
+
+    /**
+     * must hold the lock, make sure the expiry timer goes off by the deadline.
+     */
+    private void armExpiry(long deadline) {
+        if (deadline >= mExpiryArmedAt)
+            return;
+        mExpiryArmedAt = deadline;
+        mHandler.removeCallbacks(mExpireRunnable);
+        mHandler.postDelayed(mExpireRunnable, Math.max(0, deadline - SystemClock.elapsedRealtime()));
+    }
+
+    private void onExpiryTimer() {
+        mExecutor.execute(this::expirePending);
+    }
+
+    /**
+     * complete every queued operation whose deadline has passed, even when the queue is stalled
+     * behind an operation in flight or held back, and re-arm the timer for the next deadline.
+     * must be called on the executor.
+     */
+    private void expirePending() {
+        final ArrayList<GattOperation> expired = new ArrayList<>();
+        synchronized (this) {
+            mExpiryArmedAt = GattOperation.NO_DEADLINE;
+            final ArrayList<GattOperation> waiting = new ArrayList<>(mPendingCount);
+            for (final ArrayDeque<GattOperation> pending : mPending) {
+                for (final GattOperation operation : pending) {
+                    waiting.add(operation);
+                    final ArrayList<GattOperation> followers = operation.getFollowers();
+                    if (followers != null)
+                        waiting.addAll(followers);
+                }
+            }
+
+            final long now = SystemClock.elapsedRealtime();
+            long next = GattOperation.NO_DEADLINE;
+            for (final GattOperation operation : waiting) {
+                if (!operation.isExpired(now)) {
+                    next = Math.min(next, operation.getDeadline());
+                } else if (removePending(operation)) {
+                    // an expired leader hands its place to a follower, checked further down.
+                    operation.setResult(GattOperation.STATUS_EXPIRED, null);
+                    expired.add(operation);
+                }
+            }
+            if (next != GattOperation.NO_DEADLINE)
+                armExpiry(next);
+        }
+
+        if (expired.isEmpty())
+            return;
+        for (final GattOperation operation : expired)
+            dispatch(operation);
+        reportQueueDepth();
+    }
+
+    /**
+     * must hold the lock.
+     *
+     * @return {@code true} if the read has been attached to an identical pending read
+     */
+    private boolean coalesce(@NonNull GattOperation.ReadCharacteristic read) {
+        final GattOperation.ReadCharacteristic leader = mPendingReads.get(read.mCharacteristic);
+        if (leader == null) {
+            mPendingReads.put(read.mCharacteristic, read);
+            return false;
+        }
+
+        // the leader is still waiting, let it jump to the follower's class if that's higher.
+        if (leader != mInFlight && read.getPriority() < leader.getPriority() && mPending[leader.getPriority()].remove(leader)) {
+            leader.setPriority(read.getPriority());
+            mPending[leader.getPriority()].addLast(leader);
+        }
+
+        leader.addFollower(read);
+        ++mCoalescedReads;
+        return true;
+    }
+
+    /**
+     * must hold the lock, hand the place of a coalesced read that won't be issued to its first
+     * follower, the other followers are attached to the new leader.
+     *
+     * @return the new leader, {@code null} if the read has no follower
+     */
+    private GattOperation.ReadCharacteristic promoteFollower(@NonNull GattOperation.ReadCharacteristic leader) {
+        final ArrayList<GattOperation> followers = leader.takeFollowers();
+        retire(leader);
+        if (followers == null)
+            return null;
+
+        final GattOperation.ReadCharacteristic promoted = (GattOperation.ReadCharacteristic) followers.get(0);
+        promoted.setPriority(leader.getPriority());
+        for (int i = 1; i < followers.size(); ++i)
+            promoted.addFollower(followers.get(i));
+        mPendingReads.put(promoted.mCharacteristic, promoted);
+        return promoted;
+    }
+
+    /**
+     * cancel an operation that hasn't been issued yet.
+     *
+     * @return {@code true} if the operation has been taken off the queue
+     */
+    boolean cancel(@NonNull GattOperation operation) {
+        synchronized (this) {
+            if (operation.isDone() || operation == mInFlight)
+                return false;
+
+            if (!removePending(operation))
+                return false;
+            operation.setResult(GattOperation.STATUS_CANCELLED, null);
+        }
+
+        mTrace.recordOperation(mDevice.getId(), GattTrace.EVENT_OPERATION_COMPLETED, operation, GattOperation.STATUS_CANCELLED);
+        mExecutor.execute(operation::dispatchComplete);
+        reportQueueDepth();
+        return true;
+    }
+
+    /**
+     * must hold the lock.
+     *
+     * @return {@code true} if the operation was waiting in the queue, or attached to a coalesced
+     * read, and has been removed.
+     */
+    private boolean removePending(@NonNull GattOperation operation) {
+        if (operation instanceof GattOperation.ReadCharacteristic) {
+            final GattOperation.ReadCharacteristic read = (GattOperation.ReadCharacteristic) operation;
+            final GattOperation.ReadCharacteristic leader = mPendingReads.get(read.mCharacteristic);
+            if (leader != null && leader != read)
+                return leader.removeFollower(read);
+            if (leader == read) {
+                final ArrayDeque<GattOperation> pending = mPending[read.getPriority()];
+                final GattOperation.ReadCharacteristic promoted = promoteFollower(read);
+                if (promoted == null)
+                    return remove(pending, read);
+                // keep the place in line for the followers.
+                for (int i = pending.size(); i > 0; --i) {
+                    final GattOperation queued = pending.pollFirst();
+                    pending.addLast(queued == read ? promoted : queued);
+                }
+                return true;
+            }
+        }
+        return remove(mPending[operation.getPriority()], operation);
+    }
+
+    /**
+     * must hold the lock.
+     */
+    private boolean remove(@NonNull ArrayDeque<GattOperation> pending, @NonNull GattOperation operation) {
+        if (!pending.removeFirstOccurrence(operation))
+            return false;
+        --mPendingCount;
+        return true;
+    }
+
+    /**
+     * must hold the lock, take a finished operation out of the coalescing table.
+     */
+    private void retire(@NonNull GattOperation operation) {
+        if (operation instanceof GattOperation.ReadCharacteristic) {
+            final BluetoothGattCharacteristic characteristic = ((GattOperation.ReadCharacteristic) operation).mCharacteristic;
+            if (mPendingReads.get(characteristic) == operation)
+                mPendingReads.remove(characteristic);
+        }
+    }
+
+    /**
+     * @return number of characteristic reads saved by attaching callers to a pending read
+     */
+    long getCoalescedReadCount() {
+        synchronized (this) {
+            return mCoalescedReads;
+        }
+    }
+
+    void setPolicy(GattConnectionPolicy policy) {
+        mPolicy = policy;
+    }
+
+    private void reportQueueDepth() {
+        final int depth = size();
+        mMetrics.onQueueDepth(depth);
+        final GattConnectionPolicy policy = mPolicy;
+        if (policy != null)
+            policy.onQueueDepthChanged(depth);
+    }
+
+    /**
+     * the link is gone, complete every operation waiting in the queue and the one in flight with
+     * {@link GattOperation#STATUS_DISCONNECTED}.
+     */
+    void drain() {
+        final ArrayList<GattOperation> drained = new ArrayList<>();
+        final GattOperation inFlight;
+        synchronized (this) {
+            for (int i = 0; i < mPending.length; ++i) {
+                drained.addAll(mPending[i]);
+                mPending[i].clear();
+                mPassedOver[i] = 0;
+            }
+            mPendingCount = 0;
+            mPendingReads.clear();
+            inFlight = mInFlight;
+            mInFlight = null;
+            mLate = null;
+            mRetryPosted = false;
+            mExpiryArmedAt = GattOperation.NO_DEADLINE;
+        }
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mHandler.removeCallbacks(mLateTimeoutRunnable);
+        mHandler.removeCallbacks(mExpireRunnable);
+        mHandler.removeCallbacks(mRetryRunnable);
+        if (inFlight != null) {
+            inFlight.abort();
+            drained.add(0, inFlight);
+        }
+        if (drained.isEmpty())
+            return;
+
+        // followers complete along with their leaders.
+        for (final GattOperation operation : drained)
+            operation.setResult(GattOperation.STATUS_DISCONNECTED, null);
+        mExecutor.execute(() -> {
+            for (final GattOperation operation : drained)
+                dispatch(operation);
+            reportQueueDepth();
+        });
+    }
+
+    /**
+     * hold back the operations queued for services, or release them.
+     */
+    void setHeld(boolean held) {
+        synchronized (this) {
+            if (mHeld == held)
+                return;
+            mHeld = held;
+        }
+        if (!held)
+            mExecutor.execute(mIssueRunnable);
+    }
+
+    int size() {
+        synchronized (this) {
+            return mPendingCount + (mInFlight == null ? 0 : 1);
+        }
+    }
+
+    void onCharacteristicRead(@NonNull BluetoothGattCharacteristic characteristic, int status) {
+        final GattOperation operation;
+        synchronized (this) {
+            if (consumeLate(GattOperation.CALLBACK_CHARACTERISTIC_READ))
+                return;
+            operation = mInFlight;
+            if (operation == null || !onProgress(operation.onCharacteristicRead(characteristic, status)))
+                return;
+        }
+        onComplete(operation);
+    }
+
+    void onCharacteristicWrite(@NonNull BluetoothGattCharacteristic characteristic, int status) {
+        final GattOperation operation;
+        final boolean done;
+        synchronized (this) {
+            if (consumeLate(GattOperation.CALLBACK_CHARACTERISTIC_WRITE))
+                return;
+            operation = mInFlight;
+            if (operation == null)
+                return;
+            done = onProgress(operation.onCharacteristicWrite(characteristic, status));
+        }
+
+        if (done) {
+            onComplete(operation);
+        } else if (operation instanceof GattStreamWrite) {
+            final GattConnectionPolicy policy = mPolicy;
+            if (policy != null)
+                policy.onStreamThroughput(((GattStreamWrite) operation).getBytesPerSecond());
+        }
+    }
+
+    void onDescriptorRead(@NonNull BluetoothGattDescriptor descriptor, int status) {
+        final GattOperation operation;
+        synchronized (this) {
+            if (consumeLate(GattOperation.CALLBACK_DESCRIPTOR_READ))
+                return;
+            operation = mInFlight;
+            if (operation == null || !onProgress(operation.onDescriptorRead(descriptor, status)))
+                return;
+        }
+        onComplete(operation);
+    }
+
+    void onDescriptorWrite(@NonNull BluetoothGattDescriptor descriptor, int status) {
+        final GattOperation operation;
+        synchronized (this) {
+            if (consumeLate(GattOperation.CALLBACK_DESCRIPTOR_WRITE))
+                return;
+            operation = mInFlight;
+            if (operation == null || !onProgress(operation.onDescriptorWrite(descriptor, status)))
+                return;
+        }
+        onComplete(operation);
+    }
+
+    void onReliableWriteCompleted(int status) {
+        final GattOperation operation;
+        synchronized (this) {
+            if (consumeLate(GattOperation.CALLBACK_RELIABLE_WRITE_COMPLETED))
+                return;
+            operation = mInFlight;
+            if (operation == null || !onProgress(operation.onReliableWriteCompleted(status)))
+                return;
+        }
+        onComplete(operation);
+    }
+
+    void onMtuChanged(int mtu, int status) {
+        final GattOperation operation;
+        synchronized (this) {
+            if (consumeLate(GattOperation.CALLBACK_MTU_CHANGED))
+                return;
+            operation = mInFlight;
+            if (operation == null || !onProgress(operation.onMtuChanged(mtu, status)))
+                return;
+        }
+        onComplete(operation);
+    }
+
+    void onServicesDiscovered(int status) {
+        final GattOperation operation;
+        synchronized (this) {
+            if (consumeLate(GattOperation.CALLBACK_SERVICES_DISCOVERED))
+                return;
+            operation = mInFlight;
+            if (operation == null || !onProgress(operation.onServicesDiscovered(status)))
+                return;
+        }
+        onComplete(operation);
+    }
+
+    /**
+     * must hold the lock.
+     *
+     * @return {@code true} if the in-flight operation is done and has been taken off the queue
+     */
+    private boolean onProgress(int result) {
+        switch (result) {
+            case GattOperation.RESULT_DONE:
+                mInFlight.mCompletedAtNs = SystemClock.elapsedRealtimeNanos();
+                sampleRoundTrip();
+                retire(mInFlight);
+                mHandler.removeCallbacks(mTimeoutRunnable);
+                if (mInFlight.expectsLateCallback())
+                    holdForLateCallback(mInFlight);
+                mInFlight = null;
+                return true;
+            case GattOperation.RESULT_PENDING:
+                // multi-step operation made some progress, every step is a round trip of its own.
+                sampleRoundTrip();
+                startTimer();
+                return false;
+            default:
+                Log.v(TAG, "onProgress(): unexpected callback for device " + mDevice.getAddress() + ", in flight = " + mInFlight);
+                return false;
+        }
+    }
+
+    /**
+     * must hold the lock, and there must be an operation in flight.
+     */
+    private void sampleRoundTrip() {
+        mEstimator.onSample(mInFlight.getType(), (SystemClock.elapsedRealtimeNanos() - mInFlightSinceNs) / 1000);
+    }
+
+    /**
+     * must hold the lock, and there must be an operation in flight.
+     */
+    private void startTimer() {
+        mInFlightSinceNs = SystemClock.elapsedRealtimeNanos();
+        mInFlightTimeoutMs = mInFlight.getTimeoutMillis(mEstimator.getTimeoutMillis(mInFlight.getType()));
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mHandler.postDelayed(mTimeoutRunnable, mInFlightTimeoutMs);
+    }
+
+    private void onComplete(@NonNull final GattOperation operation) {
+        mExecutor.execute(() -> {
+            // the radio is free now, keep it busy unless the next operation would overwrite the
+            // attribute value before the service gets a chance to read it.
+            final GattOperation next;
+            synchronized (this) {
+                final int priority = selectPriority();
+                next = priority < 0 ? null : mPending[priority].peekFirst();
+            }
+            final boolean deferred = next != null && operation.conflictsWith(next);
+            if (!deferred)
+                issueNext();
+
+            dispatch(operation);
+
+            if (deferred)
+                issueNext();
+            reportQueueDepth();
+        });
+    }
+
+    private void onTimeout() {
+        final GattOperation operation;
+        synchronized (this) {
+            operation = mInFlight;
+            if (operation == null)
+                return;
+            final long elapsed = (SystemClock.elapsedRealtimeNanos() - mInFlightSinceNs) / 1000000;
+            if (elapsed < mInFlightTimeoutMs) {
+                mHandler.postDelayed(mTimeoutRunnable, mInFlightTimeoutMs - elapsed);
+                return;
+            }
+            mEstimator.onTimeout(operation.getType());
+            retire(operation);
+            mInFlight = null;
+            // still outstanding in the stack, its callback must not complete the next operation.
+            holdForLateCallback(operation);
+            operation.abort();
+            operation.setResult(GattOperation.STATUS_TIMED_OUT, null);
+        }
+
+        mTrace.recordOperation(mDevice.getId(), GattTrace.EVENT_OPERATION_TIMED_OUT, operation, (int) mInFlightTimeoutMs);
+        Log.e(TAG, "onTimeout(): device = " + mDevice.getAddress() + ", operation = " + operation + ", timeout = " + mInFlightTimeoutMs + "ms");
+        mExecutor.execute(() -> {
+            dispatch(operation);
+            reportQueueDepth();
+        });
+    }
+
+    /**
+     * must hold the lock, issue nothing until the late callback of the operation arrives.
+     */
+    private void holdForLateCallback(@NonNull GattOperation operation) {
+        mLate = operation;
+        mHandler.removeCallbacks(mLateTimeoutRunnable);
+        mHandler.postDelayed(mLateTimeoutRunnable, LATE_CALLBACK_TIMEOUT_MS);
+    }
+
+    /**
+     * must hold the lock.
+     *
+     * @param callback one of the {@code GattOperation.CALLBACK_*} constants
+     * @return {@code true} if the callback is a late one, it has been consumed
+     */
+    private boolean consumeLate(int callback) {
+        final GattOperation late = mLate;
+        if (late == null)
+            return false;
+        if (!late.onLateCallback(callback))
+            return true;
+
+        // a timed-out operation that answers after all tells the real round trip.
+        if (late.getStatus() == GattOperation.STATUS_TIMED_OUT)
+            mEstimator.onSample(late.getType(), (SystemClock.elapsedRealtimeNanos() - mInFlightSinceNs) / 1000);
+        Log.d(TAG, "consumeLate(): device = " + mDevice.getAddress() + ", the stack is done with " + late);
+        mLate = null;
+        mHandler.removeCallbacks(mLateTimeoutRunnable);
+        mExecutor.execute(mIssueRunnable);
+        return true;
+    }
+
+    private void onLateTimeout() {
+        synchronized (this) {
+            if (mLate == null)
+                return;
+            Log.e(TAG, "onLateTimeout(): device = " + mDevice.getAddress() + ", no late callback for " + mLate + ", moving on.");
+            mLate = null;
+        }
+        mExecutor.execute(mIssueRunnable);
+    }
+
+    /**
+     * must hold the lock.
+     *
+     * @return the priority class to serve next, {@code -1} if nothing is pending
+     */
+    private int selectPriority() {
+        // a starving class goes first, the lowest one if more than one are starving.
+        for (int priority = mPending.length - 1; priority > 0; --priority)
+            if (mPassedOver[priority] >= STARVATION_LIMIT && !mPending[priority].isEmpty())
+                return priority;
+        for (int priority = 0; priority < mPending.length; ++priority)
+            if (!mPending[priority].isEmpty())
+                return priority;
+        return -1;
+    }
+
+    /**
+     * must hold the lock, and there must be something pending.
+     */
+    @NonNull
+    private GattOperation pollNext() {
+        final int selected = selectPriority();
+        for (int priority = 0; priority < mPending.length; ++priority) {
+            if (priority == selected)
+                mPassedOver[priority] = 0;
+            else if (!mPending[priority].isEmpty())
+                ++mPassedOver[priority];
+        }
+        --mPendingCount;
+        return mPending[selected].pollFirst();
+    }
+
+    /**
+     * must hold the lock.
+     *
+     * @return the first device-wide operation in line, {@code null} if there's none
+     */
+    private GattOperation pollDeviceWide() {
+        for (final ArrayDeque<GattOperation> pending : mPending) {
+            for (final GattOperation operation : pending) {
+                if (operation.getService() == null) {
+                    remove(pending, operation);
+                    return operation;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * must hold the lock, swap cached attributes for discovered ones right before the operation
+     * is issued, and keep the coalescing table keyed by what is actually read.
+     */
+    private void resolve(@NonNull GattOperation operation) {
+        if (!(operation instanceof GattOperation.ReadCharacteristic)) {
+            operation.resolve(mDevice);
+            return;
+        }
+
+        final GattOperation.ReadCharacteristic read = (GattOperation.ReadCharacteristic) operation;
+        final BluetoothGattCharacteristic previous = read.mCharacteristic;
+        read.resolve(mDevice);
+        if (read.mCharacteristic != previous && mPendingReads.get(previous) == read) {
+            mPendingReads.remove(previous);
+            if (!mPendingReads.containsKey(read.mCharacteristic))
+                mPendingReads.put(read.mCharacteristic, read);
+        }
+    }
+
+    /**
+     * issue the next pending operation if the radio is idle, must be called on the executor.
+     */
+    private void issueNext() {
+        ArrayList<GattOperation> failed = null;
+        synchronized (this) {
+            while (mInFlight == null && mLate == null && mPendingCount != 0) {
+                final BluetoothGatt gatt = mDevice.getGatt();
+                final GattOperation operation = mHeld ? pollDeviceWide() : pollNext();
+                if (operation == null)
+                    break;
+
+                if (operation.isExpired(SystemClock.elapsedRealtime())) {
+                    // followers of an expired read may have a later deadline, let them try.
+                    if (operation instanceof GattOperation.ReadCharacteristic) {
+                        final GattOperation.ReadCharacteristic promoted = promoteFollower((GattOperation.ReadCharacteristic) operation);
+                        if (promoted != null) {
+                            mPending[operation.getPriority()].addFirst(promoted);
+                            ++mPendingCount;
+                        }
+                    }
+                    operation.setResult(GattOperation.STATUS_EXPIRED, null);
+                    if (failed == null)
+                        failed = new ArrayList<>();
+                    failed.add(operation);
+                    continue;
+                }
+
+                boolean issued = false;
+                boolean refused = false;
+                try {
+                    resolve(operation);
+                    issued = gatt != null && operation.issue(gatt);
+                    refused = gatt != null && !issued;
+                } catch (RuntimeException ex) {
+                    Log.e(TAG, "issueNext(): device = " + mDevice.getAddress() + ", operation = " + operation, ex);
+                }
+
+                if (issued) {
+                    mInFlight = operation;
+                    startTimer();
+                    operation.mIssuedAtNs = mInFlightSinceNs;
+                    mMetrics.onOperationIssued((mInFlightSinceNs - operation.mQueuedAtNs) / 1000);
+                    mTrace.recordOperation(mDevice.getId(), GattTrace.EVENT_OPERATION_ISSUED, operation, 0);
+                } else if (refused && ++operation.mRefusals < MAX_REFUSALS) {
+                    // the stack is still busy, keep the place in line and try again later instead
+                    // of running the rest of the queue into the same refusal.
+                    mPending[operation.getPriority()].addFirst(operation);
+                    ++mPendingCount;
+                    scheduleRetry(REFUSAL_BACKOFF_MS << (operation.mRefusals - 1));
+                    break;
+                } else {
+                    retire(operation);
+                    operation.setResult(gatt == null ? GattOperation.STATUS_DISCONNECTED : GattOperation.STATUS_REQUEST_FAILED, null);
+                    if (failed == null)
+                        failed = new ArrayList<>();
+                    failed.add(operation);
+                }
+            }
+        }
+
+        if (failed != null)
+            for (final GattOperation operation : failed)
+                dispatch(operation);
+    }
+
+    /**
+     * must hold the lock.
+     */
+    private void scheduleRetry(long delayMs) {
+        if (mRetryPosted)
+            return;
+        mRetryPosted = true;
+        Log.d(TAG, "scheduleRetry(): the stack is busy, device = " + mDevice.getAddress() + ", retry in " + delayMs + "ms");
+        mHandler.postDelayed(mRetryRunnable, delayMs);
+    }
+
+    private void onRetry() {
+        synchronized (this) {
+            mRetryPosted = false;
+        }
+        mExecutor.execute(mIssueRunnable);
+    }
+
+    private void dispatch(@NonNull GattOperation operation) {
+        final int status = operation.getStatus();
+        mTrace.recordOperation(mDevice.getId(), GattTrace.EVENT_OPERATION_COMPLETED, operation, status);
+        // the followers complete with the leader, close their trace slices too.
+        final ArrayList<GattOperation> followers = operation.getFollowers();
+        if (followers != null)
+            for (final GattOperation follower : followers)
+                mTrace.recordOperation(mDevice.getId(), GattTrace.EVENT_OPERATION_COMPLETED, follower, status);
+        final long completedAtNs = operation.mCompletedAtNs != 0 ? operation.mCompletedAtNs : SystemClock.elapsedRealtimeNanos();
+        mMetrics.onOperationCompleted(operation.getType(), status, operation.mIssuedAtNs == 0 ? 0 : (completedAtNs - operation.mIssuedAtNs) / 1000);
+        try {
+            if (status == BluetoothGatt.GATT_SUCCESS)
+                operation.dispatchResult();
+            else if (status == GattOperation.STATUS_TIMED_OUT)
+                mDevice.onOperationTimedOut(operation);
+            else if (status == GattOperation.STATUS_REQUEST_FAILED)
+                mDevice.onOperationFailed(operation, new IllegalStateException("request refused by the bluetooth stack."));
+        } catch (Exception ex) {
+            mDevice.onOperationFailed(operation, ex);
+        }
+        operation.dispatchComplete();
+    }
+}
@@ -0,0 +1,79 @@
+package tw.idv.palatis.ble;
+
+import android.os.SystemClock;
+
+import static tw.idv.palatis.ble.BluetoothLeDevice.NUM_STAGES;
+import static tw.idv.palatis.ble.BluetoothLeDevice.STAGE_NONE;
+
+/**
+ * tracks the stages a connection goes through until the device is ready, and how long each of
+ * them took.
+ * <p>
+ * every connection attempt bumps the generation, completions that belong to an earlier attempt
+ * (e.g. an operation drained on disconnect) are ignored.
+ */
+final class GattReadiness {
+    private final long[] mCompletedAt = new long[NUM_STAGES];
+    private long mStartedAt = 0;
+    private int mGeneration = 0;
+    private int mStage = STAGE_NONE;
+
+    /**
+     * a connection attempt has been issued, the clock of the first stage starts now.
+     */
+    synchronized void start() {
+        ++mGeneration;
+        mStage = STAGE_NONE;
+        mStartedAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * the link is gone, nothing from the current attempt counts anymore.
+     */
+    synchronized void reset() {
+        ++mGeneration;
+        mStage = STAGE_NONE;
+    }
+
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    @BluetoothLeDevice.ReadinessStage
+    synchronized int getStage() {
+        return mStage;
+    }
+
+    /**
+     * @param generation the generation the stage belongs to
+     * @param stage      the stage that has completed, must be the one following the current
+     * @return how long the stage took in milliseconds, {@code -1} if the completion is stale or
+     * out of order.
+     */
+    synchronized long complete(int generation, @BluetoothLeDevice.ReadinessStage int stage) {
+        if (generation != mGeneration || stage != mStage + 1)
+            return -1;
+        final long now = SystemClock.elapsedRealtime();
+        final long duration = now - (stage == 0 ? mStartedAt : mCompletedAt[stage - 1]);
+        mCompletedAt[stage] = now;
+        mStage = stage;
+        return duration;
+    }
+
+    /**
+     * @return how long the stage took in milliseconds, {@code -1} if it hasn't completed in the
+     * current connection.
+     */
+    synchronized long getDuration(@BluetoothLeDevice.ReadinessStage int stage) {
+        if (stage < 0 || stage > mStage)
+            return -1;
+        return mCompletedAt[stage] - (stage == 0 ? mStartedAt : mCompletedAt[stage - 1]);
+    }
+
+    /**
+     * @return milliseconds from the connection attempt to the last completed stage
+     */
+    synchronized long getElapsed() {
+        return mStage == STAGE_NONE ? 0 : mCompletedAt[mStage] - mStartedAt;
+    }
+}
@@ -0,0 +1,149 @@
+package tw.idv.palatis.ble;
+
+import android.os.SystemClock;
+
+import java.util.Random;
+
+/**
+ * decides when a device that lost its link unexpectedly tries to connect again.
+ * <p>
+ * the delay grows exponentially from the initial delay up to the max delay, and is randomized
+ * between half and all of it, so devices that dropped together don't come back in lockstep.
+ * after {@code maxAttempts} failed attempts the device gives up until the next link loss.
+ * <p>
+ * {@code breakerThreshold} failed attempts in a row (across link losses) open the circuit, the
+ * next attempt is a single trial scheduled when {@code breakerCooldownMs} has passed. the circuit
+ * closes once it succeeds, and opens for another cooldown if it fails. the trials count towards
+ * {@code maxAttempts}, a threshold not below it never opens the circuit.
+ * <p>
+ * the policy keeps per-device state, attach one instance to one device with
+ * {@link BluetoothLeDevice#setReconnectPolicy(GattReconnectPolicy)}.
+ */
+public class GattReconnectPolicy {
+    public static final long DEFAULT_INITIAL_DELAY_MS = 1000;
+    public static final long DEFAULT_MAX_DELAY_MS = 60000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 10;
+    public static final int DEFAULT_BREAKER_THRESHOLD = 5;
+    public static final long DEFAULT_BREAKER_COOLDOWN_MS = 5 * 60 * 1000;
+
+    private final long mInitialDelayMs;
+    private final long mMaxDelayMs;
+    private final int mMaxAttempts;
+    private final int mBreakerThreshold;
+    private final long mBreakerCooldownMs;
+    private final Random mRandom = new Random();
+
+    private int mAttempts = 0;
+    private int mConsecutiveFailures = 0;
+    private long mOpenedAt = 0;
+
+    public GattReconnectPolicy() {
+        this(DEFAULT_INITIAL_DELAY_MS, DEFAULT_MAX_DELAY_MS, DEFAULT_MAX_ATTEMPTS, DEFAULT_BREAKER_THRESHOLD, DEFAULT_BREAKER_COOLDOWN_MS);
+    }
+
+    /**
+     * @param initialDelayMs    delay before the first attempt
+     * @param maxDelayMs        the delay stops growing here
+     * @param maxAttempts       give up after this many failed attempts per link loss
+     * @param breakerThreshold  open the circuit after this many failed attempts in a row
+     * @param breakerCooldownMs how long the circuit stays open
+     */
+    public GattReconnectPolicy(long initialDelayMs, long maxDelayMs, int maxAttempts, int breakerThreshold, long breakerCooldownMs) {
+        if (initialDelayMs <= 0 || maxDelayMs < initialDelayMs)
+            throw new IllegalArgumentException("invalid delays [" + initialDelayMs + ", " + maxDelayMs + "]");
+        if (maxAttempts <= 0 || breakerThreshold <= 0)
+            throw new IllegalArgumentException("maxAttempts and breakerThreshold must be positive.");
+        mInitialDelayMs = initialDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mMaxAttempts = maxAttempts;
+        mBreakerThreshold = breakerThreshold;
+        mBreakerCooldownMs = breakerCooldownMs;
+    }
+
+    /**
+     * @return number of attempts made since the link was lost
+     */
+    public synchronized int getAttempts() {
+        return mAttempts;
+    }
+
+    /**
+     * @return {@code true} if attempts are suspended after too many failures in a row
+     */
+    public boolean isCircuitOpen() {
+        return isCircuitOpen(SystemClock.elapsedRealtime());
+    }
+
+    synchronized boolean isCircuitOpen(long now) {
+        return getRemainingCooldownMillis(now) > 0;
+    }
+
+    private long getRemainingCooldownMillis(long now) {
+        return mOpenedAt == 0 ? 0 : mOpenedAt + mBreakerCooldownMs - now;
+    }
+
+    /**
+     * the link has been lost, start counting attempts from zero.
+     */
+    synchronized void onLinkLost() {
+        mAttempts = 0;
+    }
+
+    /**
+     * an attempt failed to connect
+     */
+    void onAttemptFailed() {
+        onAttemptFailed(SystemClock.elapsedRealtime());
+    }
+
+    synchronized void onAttemptFailed(long now) {
+        // also re-opens the circuit when the trial attempt after the cooldown fails.
+        if (++mConsecutiveFailures >= mBreakerThreshold)
+            mOpenedAt = now;
+    }
+
+    /**
+     * the device is connected, close the circuit.
+     */
+    synchronized void onConnected() {
+        mAttempts = 0;
+        mConsecutiveFailures = 0;
+        mOpenedAt = 0;
+    }
+
+    /**
+     * count the next attempt
+     *
+     * @return the delay before it in milliseconds, {@code -1} to give up
+     */
+    long nextDelayMillis() {
+        return nextDelayMillis(SystemClock.elapsedRealtime());
+    }
+
+    synchronized long nextDelayMillis(long now) {
+        if (mAttempts >= mMaxAttempts)
+            return -1;
+
+        // the circuit is open, the trial goes when the cooldown expires.
+        final long cooldown = getRemainingCooldownMillis(now);
+        if (cooldown > 0) {
+            ++mAttempts;
+            return cooldown;
+        }
+
+        // initial * 2 ^ attempts, capped before it can overflow
+        long delay = mInitialDelayMs;
+        for (int i = 0; i < mAttempts && delay < mMaxDelayMs; ++i)
+            delay <<= 1;
+        delay = Math.min(delay, mMaxDelayMs);
+        ++mAttempts;
+
+        final long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * (delay - half));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + "@" + hashCode() + " (attempts = " + mAttempts + "/" + mMaxAttempts + ", failures in a row = " + mConsecutiveFailures + ", circuit " + (isCircuitOpen() ? "open" : "closed") + ")";
+    }
+}
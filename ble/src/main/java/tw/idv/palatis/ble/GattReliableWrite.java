@@ -0,0 +1,191 @@
+package tw.idv.palatis.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+
+import tw.idv.palatis.ble.services.BluetoothGattService;
+
+/**
+ * a reliable (prepared) write transaction, batches many characteristic writes into a single slot
+ * of the operation queue and commits or aborts them atomically.
+ * <p>
+ * the writes are prepared one after another, the transaction is aborted on the first one that
+ * fails, otherwise all writes are committed with a single
+ * {@link BluetoothGatt#executeReliableWrite()}. the framework doesn't hand the value echoed back
+ * by the remote device to the app, so the prepared values can't be checked against it here.
+ * <p>
+ * basic usage:
+ * <pre>
+ * device.newReliableWrite(service)
+ *         .write(characteristic1, value1)
+ *         .write(characteristic2, value2)
+ *         .commit()
+ *         .addOnCompleteListener(...);
+ * </pre>
+ */
+public final class GattReliableWrite extends GattOperation {
+    @NonNull
+    private final BluetoothLeDevice mDevice;
+    private final ArrayList<BluetoothGattCharacteristic> mCharacteristics = new ArrayList<>();
+    private final ArrayList<byte[]> mValues = new ArrayList<>();
+
+    private BluetoothGatt mGatt = null;
+    private int mIndex = -1;
+    private boolean mExecuting = false;
+    private boolean mCommitted = false;
+    // the abort has been handed to the stack, its onReliableWriteCompleted() is still to come
+    private boolean mAborting = false;
+
+    GattReliableWrite(@NonNull BluetoothLeDevice device, @NonNull BluetoothGattService service) {
+        super(service);
+        mDevice = device;
+    }
+
+    /**
+     * add a prepared write to the transaction
+     *
+     * @param characteristic the characteristic to write
+     * @param data           the new value
+     * @return this transaction
+     */
+    @NonNull
+    public synchronized GattReliableWrite write(@NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] data) {
+        if (mCommitted)
+            throw new IllegalStateException("transaction has been committed already.");
+        mCharacteristics.add(characteristic);
+        mValues.add(data.clone());
+        return this;
+    }
+
+    /**
+     * queue the transaction on the device
+     *
+     * @return this transaction, also the completion handle
+     */
+    @NonNull
+    public GattReliableWrite commit() {
+        synchronized (this) {
+            if (mCommitted)
+                throw new IllegalStateException("transaction has been committed already.");
+            if (mCharacteristics.isEmpty())
+                throw new IllegalStateException("nothing to write.");
+            mCommitted = true;
+        }
+        mDevice.enqueue(this);
+        return this;
+    }
+
+    /**
+     * @return the characteristic whose prepared write failed, {@code null} if
+     * the transaction hasn't failed on a prepared write.
+     */
+    @Nullable
+    public synchronized BluetoothGattCharacteristic getFailedCharacteristic() {
+        if (isSuccess() || mExecuting || mIndex < 0 || mIndex >= mCharacteristics.size())
+            return null;
+        return mCharacteristics.get(mIndex);
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_RELIABLE_WRITE;
+    }
+
+    @Override
+    synchronized void resolve(@NonNull BluetoothLeDevice device) {
+        for (int i = 0; i < mCharacteristics.size(); ++i)
+            mCharacteristics.set(i, device.resolve(mCharacteristics.get(i)));
+    }
+
+    @Override
+    synchronized boolean issue(@NonNull BluetoothGatt gatt) {
+        mGatt = gatt;
+        if (!gatt.beginReliableWrite())
+            return false;
+        mIndex = 0;
+        if (!writeCurrent()) {
+            gatt.abortReliableWrite();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean writeCurrent() {
+        final BluetoothGattCharacteristic characteristic = mCharacteristics.get(mIndex);
+        characteristic.setValue(mValues.get(mIndex));
+        return mGatt.writeCharacteristic(characteristic);
+    }
+
+    @Override
+    synchronized int onCharacteristicWrite(@NonNull BluetoothGattCharacteristic characteristic, int status) {
+        if (mExecuting || mIndex < 0 || characteristic != mCharacteristics.get(mIndex))
+            return RESULT_IGNORED;
+
+        if (status != BluetoothGatt.GATT_SUCCESS)
+            return fail(status);
+
+        if (++mIndex < mCharacteristics.size()) {
+            if (!writeCurrent())
+                return fail(STATUS_REQUEST_FAILED);
+            return RESULT_PENDING;
+        }
+
+        mExecuting = true;
+        if (!mGatt.executeReliableWrite())
+            return fail(STATUS_REQUEST_FAILED);
+        return RESULT_PENDING;
+    }
+
+    @Override
+    synchronized int onReliableWriteCompleted(int status) {
+        if (!mExecuting)
+            return RESULT_IGNORED;
+        setResult(status, null);
+        return RESULT_DONE;
+    }
+
+    private int fail(int status) {
+        mGatt.abortReliableWrite();
+        mAborting = true;
+        setResult(status, null);
+        return RESULT_DONE;
+    }
+
+    @Override
+    synchronized void abort() {
+        if (mGatt != null && !isDone()) {
+            mGatt.abortReliableWrite();
+            mAborting = true;
+        }
+    }
+
+    @Override
+    synchronized boolean expectsLateCallback() {
+        return mAborting;
+    }
+
+    @Override
+    synchronized boolean onLateCallback(int callback) {
+        // the late answers to the prepared writes come before the one to the abort.
+        if (!mAborting || callback == CALLBACK_RELIABLE_WRITE_COMPLETED) {
+            mAborting = false;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    void dispatchResult() {
+        for (final BluetoothGattCharacteristic characteristic : mCharacteristics)
+            mService.onCharacteristicWrite(characteristic);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + hashCode() + " (" + mCharacteristics.size() + " writes, status = " + getStatus() + ")";
+    }
+}
@@ -0,0 +1,144 @@
+package tw.idv.palatis.ble;
+
+import android.support.annotation.NonNull;
+
+/**
+ * keeps a smoothed round-trip time and its variance per {@link GattOperation.Type}, and derives
+ * the operation timeouts from them the way TCP computes its retransmission timeout (RFC 6298).
+ * <p>
+ * until the first sample of a type arrives its timeout is the ceiling. a timeout doubles the
+ * current value (up to the ceiling) until the next sample.
+ */
+public final class GattRttEstimator {
+    // the minimum RTO of RFC 6298 section 2.4, a peripheral answering from a sleepy connection
+    // interval with a few retransmissions easily takes a few hundred milliseconds.
+    public static final long DEFAULT_FLOOR_MS = 1000;
+    public static final long DEFAULT_CEILING_MS = 3000;
+
+    // clock granularity of the timeout, see RFC 6298 section 2
+    private static final long GRANULARITY_US = 10_000;
+
+    private final long[] mSmoothedRttUs = new long[GattOperation.NUM_TYPES];
+    private final long[] mRttVarUs = new long[GattOperation.NUM_TYPES];
+    private final long[] mTimeoutMs = new long[GattOperation.NUM_TYPES];
+    private final long[] mSamples = new long[GattOperation.NUM_TYPES];
+    private final long[] mTimeouts = new long[GattOperation.NUM_TYPES];
+
+    private long mFloorMs = DEFAULT_FLOOR_MS;
+    private long mCeilingMs = DEFAULT_CEILING_MS;
+
+    GattRttEstimator() {
+        reset();
+    }
+
+    /**
+     * set the bounds of the derived timeouts
+     *
+     * @param floorMs   the minimum timeout
+     * @param ceilingMs the maximum timeout, also used before the first sample
+     */
+    public synchronized void setBounds(long floorMs, long ceilingMs) {
+        if (floorMs <= 0 || ceilingMs < floorMs)
+            throw new IllegalArgumentException("invalid bounds [" + floorMs + ", " + ceilingMs + "]");
+        mFloorMs = floorMs;
+        mCeilingMs = ceilingMs;
+        for (int type = 0; type < GattOperation.NUM_TYPES; ++type)
+            mTimeoutMs[type] = mSamples[type] == 0 ? mCeilingMs : clamp(mTimeoutMs[type]);
+    }
+
+    public synchronized long getFloorMillis() {
+        return mFloorMs;
+    }
+
+    public synchronized long getCeilingMillis() {
+        return mCeilingMs;
+    }
+
+    /**
+     * forget every sample, e.g. when the link is re-established
+     */
+    public synchronized void reset() {
+        for (int type = 0; type < GattOperation.NUM_TYPES; ++type) {
+            mSmoothedRttUs[type] = 0;
+            mRttVarUs[type] = 0;
+            mSamples[type] = 0;
+            mTimeoutMs[type] = mCeilingMs;
+        }
+    }
+
+    /**
+     * @return the smoothed round-trip time in microseconds, {@code 0} if there's no sample yet
+     */
+    public synchronized long getSmoothedRttMicros(@GattOperation.Type int type) {
+        return mSmoothedRttUs[type];
+    }
+
+    /**
+     * @return the round-trip time variation in microseconds, {@code 0} if there's no sample yet
+     */
+    public synchronized long getRttVariationMicros(@GattOperation.Type int type) {
+        return mRttVarUs[type];
+    }
+
+    /**
+     * @return the timeout for the next operation of the type, in milliseconds
+     */
+    public synchronized long getTimeoutMillis(@GattOperation.Type int type) {
+        return mTimeoutMs[type];
+    }
+
+    /**
+     * @return number of round-trip samples taken for the type
+     */
+    public synchronized long getSampleCount(@GattOperation.Type int type) {
+        return mSamples[type];
+    }
+
+    /**
+     * @return number of timeouts seen for the type
+     */
+    public synchronized long getTimeoutCount(@GattOperation.Type int type) {
+        return mTimeouts[type];
+    }
+
+    synchronized void onSample(@GattOperation.Type int type, long rttUs) {
+        if (rttUs < 0)
+            return;
+
+        if (mSamples[type] == 0) {
+            mSmoothedRttUs[type] = rttUs;
+            mRttVarUs[type] = rttUs / 2;
+        } else {
+            final long delta = Math.abs(mSmoothedRttUs[type] - rttUs);
+            mRttVarUs[type] = (3 * mRttVarUs[type] + delta) / 4;
+            mSmoothedRttUs[type] = (7 * mSmoothedRttUs[type] + rttUs) / 8;
+        }
+        ++mSamples[type];
+
+        final long rtoUs = mSmoothedRttUs[type] + Math.max(GRANULARITY_US, 4 * mRttVarUs[type]);
+        mTimeoutMs[type] = clamp((rtoUs + 999) / 1000);
+    }
+
+    synchronized void onTimeout(@GattOperation.Type int type) {
+        ++mTimeouts[type];
+        mTimeoutMs[type] = clamp(mTimeoutMs[type] * 2);
+    }
+
+    private long clamp(long timeoutMs) {
+        return Math.max(mFloorMs, Math.min(mCeilingMs, timeoutMs));
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder(getClass().getSimpleName()).append(" [");
+        for (int type = 0; type < GattOperation.NUM_TYPES; ++type) {
+            if (type != 0)
+                sb.append(", ");
+            sb.append(type).append(": srtt = ").append(mSmoothedRttUs[type])
+                    .append("us, rttvar = ").append(mRttVarUs[type])
+                    .append("us, rto = ").append(mTimeoutMs[type]).append("ms");
+        }
+        return sb.append("]").toString();
+    }
+}
@@ -0,0 +1,171 @@
+package tw.idv.palatis.ble;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * a process-wide scheduler that runs the operation queues of every {@link BluetoothLeDevice} on a
+ * small fixed pool of threads.
+ * <p>
+ * each device gets its own {@link Lane}, tasks in a lane run one at a time in submission order.
+ * a lane with pending tasks waits in a FIFO for a worker, and gives the worker back after at most
+ * {@link #QUANTUM} tasks, so a busy device can't starve the others.
+ */
+public final class GattScheduler {
+    private static final String TAG = "GattScheduler";
+
+    /**
+     * max number of tasks a lane runs before yielding the worker to the next waiting lane
+     */
+    static final int QUANTUM = 4;
+
+    private static volatile GattScheduler sInstance = null;
+
+    /**
+     * @return the process-wide scheduler
+     */
+    @NonNull
+    public static GattScheduler getInstance() {
+        if (sInstance == null) {
+            synchronized (GattScheduler.class) {
+                if (sInstance == null)
+                    sInstance = new GattScheduler(Runtime.getRuntime().availableProcessors(),
+                            (thread, ex) -> Log.e(TAG, "runSlice(): uncaught exception in lane task.", ex));
+            }
+        }
+        return sInstance;
+    }
+
+    private final int mPoolSize;
+    private final ExecutorService mWorkers;
+    private final Thread.UncaughtExceptionHandler mTaskFailureHandler;
+    private final AtomicInteger mActiveLanes = new AtomicInteger(0);
+    private final AtomicInteger mWaitingLanes = new AtomicInteger(0);
+
+    /**
+     * @param taskFailureHandler told about the tasks that throw, the lane goes on with the next one
+     */
+    GattScheduler(int poolSize, @NonNull Thread.UncaughtExceptionHandler taskFailureHandler) {
+        mPoolSize = Math.max(1, poolSize);
+        mTaskFailureHandler = taskFailureHandler;
+        mWorkers = Executors.newFixedThreadPool(mPoolSize, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                final Thread thread = new Thread(runnable, TAG + "-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return a new serial lane, usually one per device
+     */
+    @NonNull
+    public Lane newLane() {
+        return new Lane();
+    }
+
+    /**
+     * @return number of worker threads
+     */
+    public int getPoolSize() {
+        return mPoolSize;
+    }
+
+    /**
+     * @return number of lanes (devices) currently running on a worker
+     */
+    public int getActiveDeviceCount() {
+        return mActiveLanes.get();
+    }
+
+    /**
+     * @return number of lanes (devices) with pending tasks waiting for a worker
+     */
+    public int getWaitingDeviceCount() {
+        return mWaitingLanes.get();
+    }
+
+    /**
+     * a serial {@link Executor} multiplexed onto the scheduler's workers
+     */
+    public final class Lane implements Executor {
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+        private boolean mScheduled = false;
+
+        private final Runnable mRunner = this::runSlice;
+
+        private Lane() {
+        }
+
+        @Override
+        public void execute(@NonNull Runnable task) {
+            synchronized (this) {
+                mTasks.addLast(task);
+                if (mScheduled)
+                    return;
+                mScheduled = true;
+            }
+            schedule();
+        }
+
+        /**
+         * @return number of tasks waiting in this lane
+         */
+        public int size() {
+            synchronized (this) {
+                return mTasks.size();
+            }
+        }
+
+        private void schedule() {
+            mWaitingLanes.incrementAndGet();
+            mWorkers.execute(mRunner);
+        }
+
+        private void runSlice() {
+            mWaitingLanes.decrementAndGet();
+            mActiveLanes.incrementAndGet();
+            try {
+                for (int i = 0; i < QUANTUM; ++i) {
+                    final Runnable task;
+                    synchronized (this) {
+                        task = mTasks.pollFirst();
+                        if (task == null) {
+                            mScheduled = false;
+                            return;
+                        }
+                    }
+
+                    try {
+                        task.run();
+                    } catch (RuntimeException ex) {
+                        mTaskFailureHandler.uncaughtException(Thread.currentThread(), ex);
+                    }
+                }
+
+                synchronized (this) {
+                    if (mTasks.isEmpty()) {
+                        mScheduled = false;
+                        return;
+                    }
+                }
+            } finally {
+                mActiveLanes.decrementAndGet();
+            }
+
+            // still busy, go to the back of the line.
+            schedule();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package tw.idv.palatis.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+import tw.idv.palatis.ble.services.BluetoothGattService;
+
+/**
+ * an immutable snapshot of the services of a device, indexed for lookups.
+ * <p>
+ * a new snapshot is built whenever the services are set up or replaced, and swapped in as a
+ * whole, readers on any thread see either the old or the new table, never a mix of them.
+ */
+final class GattServiceIndex {
+    static final GattServiceIndex EMPTY = new GattServiceIndex(Collections.emptyList());
+
+    @NonNull
+    private final List<BluetoothGattService> mServices;
+    // in discovery order
+    private final HashMap<UUID, List<BluetoothGattService>> mByUuid = new HashMap<>();
+    // service UUID => instance ID => service
+    private final HashMap<UUID, SparseArray<BluetoothGattService>> mByInstance = new HashMap<>();
+    // the class and every superclass of a service => the first service assignable to it
+    private final HashMap<Class<?>, BluetoothGattService> mByClass = new HashMap<>();
+    // characteristic instance ID (its handle) => owning service
+    private final SparseArray<BluetoothGattService> mByCharacteristic = new SparseArray<>();
+
+    GattServiceIndex(@NonNull List<BluetoothGattService> services) {
+        mServices = Collections.unmodifiableList(new ArrayList<>(services));
+        for (final BluetoothGattService service : mServices) {
+            List<BluetoothGattService> sameUuid = mByUuid.get(service.getUuid());
+            if (sameUuid == null)
+                mByUuid.put(service.getUuid(), sameUuid = new ArrayList<>(1));
+            sameUuid.add(service);
+
+            SparseArray<BluetoothGattService> instances = mByInstance.get(service.getUuid());
+            if (instances == null)
+                mByInstance.put(service.getUuid(), instances = new SparseArray<>(1));
+            if (instances.get(service.getInstanceId()) == null)
+                instances.put(service.getInstanceId(), service);
+
+            for (Class<?> klass = service.getClass(); klass != null && BluetoothGattService.class.isAssignableFrom(klass); klass = klass.getSuperclass())
+                if (!mByClass.containsKey(klass))
+                    mByClass.put(klass, service);
+
+            for (final BluetoothGattCharacteristic characteristic : service.getNativeService().getCharacteristics())
+                if (mByCharacteristic.get(characteristic.getInstanceId()) == null)
+                    mByCharacteristic.put(characteristic.getInstanceId(), service);
+        }
+    }
+
+    /**
+     * @return all services, unmodifiable
+     */
+    @NonNull
+    List<BluetoothGattService> getServices() {
+        return mServices;
+    }
+
+    /**
+     * @return the services with the UUID in discovery order, unmodifiable
+     */
+    @NonNull
+    List<BluetoothGattService> getServices(@NonNull UUID uuid) {
+        final List<BluetoothGattService> services = mByUuid.get(uuid);
+        return services == null ? Collections.emptyList() : Collections.unmodifiableList(services);
+    }
+
+    @Nullable
+    BluetoothGattService getService(@NonNull UUID uuid) {
+        final List<BluetoothGattService> services = mByUuid.get(uuid);
+        return services == null ? null : services.get(0);
+    }
+
+    @Nullable
+    BluetoothGattService getService(@NonNull UUID uuid, int instanceId) {
+        final SparseArray<BluetoothGattService> instances = mByInstance.get(uuid);
+        return instances == null ? null : instances.get(instanceId);
+    }
+
+    @Nullable
+    BluetoothGattService getService(@NonNull Class<? extends BluetoothGattService> klass) {
+        return mByClass.get(klass);
+    }
+
+    /**
+     * @return the service owning the characteristic, {@code null} if it's not in the table
+     */
+    @Nullable
+    BluetoothGattService getServiceOf(@NonNull BluetoothGattCharacteristic characteristic) {
+        return mByCharacteristic.get(characteristic.getInstanceId());
+    }
+}
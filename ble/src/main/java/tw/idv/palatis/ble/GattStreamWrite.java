@@ -0,0 +1,206 @@
+package tw.idv.palatis.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+import tw.idv.palatis.ble.services.BluetoothGattService;
+
+/**
+ * streams a large payload into a characteristic with
+ * {@link BluetoothGattCharacteristic#WRITE_TYPE_NO_RESPONSE}, occupying a single slot of the
+ * operation queue.
+ * <p>
+ * up to {@code window} packets are handed to the bluetooth stack without waiting, every
+ * {@link android.bluetooth.BluetoothGattCallback#onCharacteristicWrite(BluetoothGatt, BluetoothGattCharacteristic, int)}
+ * returns a credit and refills the window. note that most Android versions accept only one
+ * outstanding write per {@link BluetoothGatt}, with larger windows the extra writes are refused
+ * and counted as stalls until the stack is ready again.
+ */
+public final class GattStreamWrite extends GattOperation {
+    public static final int DEFAULT_WINDOW = 1;
+    /**
+     * use the largest packet the negotiated MTU allows
+     */
+    public static final int PACKET_SIZE_AUTO = 0;
+
+    @NonNull
+    private BluetoothGattCharacteristic mCharacteristic;
+    @NonNull
+    private final byte[] mData;
+    private final int mWindow;
+    private int mPacketSize;
+    private byte[] mPacket = null;
+
+    private BluetoothGatt mGatt = null;
+    private int mOriginalWriteType;
+    private int mOffset = 0;
+    private int mInFlightPackets = 0;
+    private int mAckedPackets = 0;
+    private int mStalls = 0;
+    private long mStartedAt = 0;
+    private long mFinishedAt = 0;
+
+    GattStreamWrite(@NonNull BluetoothGattService service, @NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] data, int packetSize, int window) {
+        super(service);
+        if (packetSize < 0)
+            throw new IllegalArgumentException("packetSize must not be negative, got " + packetSize);
+        if (window <= 0)
+            throw new IllegalArgumentException("window must be positive, got " + window);
+        if (data.length == 0)
+            throw new IllegalArgumentException("nothing to stream.");
+        mCharacteristic = characteristic;
+        mData = data;
+        mPacketSize = packetSize;
+        mWindow = window;
+    }
+
+    /**
+     * @return number of bytes the bluetooth stack has confirmed
+     */
+    public synchronized int getBytesWritten() {
+        if (mPacketSize == PACKET_SIZE_AUTO)
+            return 0;
+        return Math.min(mData.length, mAckedPackets * mPacketSize);
+    }
+
+    /**
+     * @return total number of bytes to stream
+     */
+    public int getLength() {
+        return mData.length;
+    }
+
+    /**
+     * @return number of times the stack refused a packet or reported congestion
+     */
+    public synchronized int getStallCount() {
+        return mStalls;
+    }
+
+    /**
+     * @return the throughput since the stream has been issued, in bytes per second
+     */
+    public synchronized long getBytesPerSecond() {
+        if (mStartedAt == 0)
+            return 0;
+        final long elapsed = (mFinishedAt == 0 ? SystemClock.uptimeMillis() : mFinishedAt) - mStartedAt;
+        return elapsed <= 0 ? 0 : getBytesWritten() * 1000L / elapsed;
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_WRITE_NO_RESPONSE;
+    }
+
+    @Override
+    synchronized void resolve(@NonNull BluetoothLeDevice device) {
+        mCharacteristic = device.resolve(mCharacteristic);
+    }
+
+    @Override
+    synchronized boolean issue(@NonNull BluetoothGatt gatt) {
+        mGatt = gatt;
+        if (mPacketSize == PACKET_SIZE_AUTO)
+            mPacketSize = mService.getDevice().getMaxPayloadSize();
+        mPacket = new byte[mPacketSize];
+        mOriginalWriteType = mCharacteristic.getWriteType();
+        mCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        mStartedAt = SystemClock.uptimeMillis();
+        pump();
+        if (mInFlightPackets == 0) {
+            mCharacteristic.setWriteType(mOriginalWriteType);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * hand packets to the stack until the window is full or the stack refuses.
+     */
+    private void pump() {
+        while (mInFlightPackets < mWindow && mOffset < mData.length) {
+            final int length = Math.min(mPacketSize, mData.length - mOffset);
+            final byte[] packet;
+            if (length == mPacketSize) {
+                // the value is copied into the binder transaction, the buffer can be reused.
+                System.arraycopy(mData, mOffset, mPacket, 0, length);
+                packet = mPacket;
+            } else {
+                packet = Arrays.copyOfRange(mData, mOffset, mOffset + length);
+            }
+
+            mCharacteristic.setValue(packet);
+            if (!mGatt.writeCharacteristic(mCharacteristic)) {
+                ++mStalls;
+                return;
+            }
+            mOffset += length;
+            ++mInFlightPackets;
+        }
+    }
+
+    @Override
+    synchronized int onCharacteristicWrite(@NonNull BluetoothGattCharacteristic characteristic, int status) {
+        if (characteristic != mCharacteristic)
+            return RESULT_IGNORED;
+
+        if (status == BluetoothGatt.GATT_CONNECTION_CONGESTED) {
+            ++mStalls;
+        } else if (status != BluetoothGatt.GATT_SUCCESS) {
+            finish(status);
+            return RESULT_DONE;
+        }
+
+        --mInFlightPackets;
+        ++mAckedPackets;
+
+        if (mOffset >= mData.length && mInFlightPackets <= 0) {
+            finish(BluetoothGatt.GATT_SUCCESS);
+            return RESULT_DONE;
+        }
+
+        pump();
+        if (mInFlightPackets == 0) {
+            // the stack refused with nothing outstanding, no callback is coming to refill us.
+            finish(GattOperation.STATUS_REQUEST_FAILED);
+            return RESULT_DONE;
+        }
+        return RESULT_PENDING;
+    }
+
+    @Override
+    synchronized boolean onLateCallback(int callback) {
+        // every packet handed to the stack has its own callback.
+        if (callback == CALLBACK_CHARACTERISTIC_WRITE)
+            --mInFlightPackets;
+        return mInFlightPackets <= 0;
+    }
+
+    @Override
+    synchronized void abort() {
+        if (mFinishedAt == 0) {
+            mFinishedAt = SystemClock.uptimeMillis();
+            mCharacteristic.setWriteType(mOriginalWriteType);
+        }
+    }
+
+    private void finish(int status) {
+        mFinishedAt = SystemClock.uptimeMillis();
+        mCharacteristic.setWriteType(mOriginalWriteType);
+        setResult(status, null);
+    }
+
+    @Override
+    void dispatchResult() {
+        mService.onCharacteristicWrite(mCharacteristic);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + hashCode() + " (" + mCharacteristic.getUuid() + ", " + getBytesWritten() + "/" + mData.length + " bytes, " + getBytesPerSecond() + " B/s, stalls = " + getStallCount() + ")";
+    }
+}
@@ -0,0 +1,289 @@
+package tw.idv.palatis.ble;
+
+import android.os.SystemClock;
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.annotation.Retention;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+/**
+ * an always-on, fixed-size trace of what the devices did, for post-mortem analysis.
+ * <p>
+ * every event is a fixed-size binary record in a ring buffer preallocated up front, recording
+ * one claims a slot with an atomic increment and fills it in, no lock, no allocation and no
+ * formatting, so the binder threads of several devices don't contend. when the buffer is full
+ * the oldest records are overwritten. a dump skips the records still being written, and the
+ * ones overwritten while it copies them out.
+ * <p>
+ * dump the buffer with {@link #writeTo(OutputStream)} for a compact binary file, or with
+ * {@link #writeChromeTrace(Writer)} for the Chrome trace-event JSON format, which opens in
+ * {@code chrome://tracing} or Perfetto.
+ * <p>
+ * binary format, big-endian: the magic {@code "GTRC"}, a version byte, the record count as int,
+ * then per record: elapsed realtime in nanoseconds (long), device ID (long), event (int),
+ * and three int arguments.
+ */
+public final class GattTrace {
+    private static final int MAGIC = 0x47545243; // "GTRC"
+    private static final int VERSION = 1;
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * the connection state changed, args: new state, status
+     */
+    public static final int EVENT_CONNECTION_STATE = 0;
+    /**
+     * an operation has been queued, args: type, operation ID
+     */
+    public static final int EVENT_OPERATION_QUEUED = 1;
+    /**
+     * an operation has been handed to the stack, args: type, operation ID
+     */
+    public static final int EVENT_OPERATION_ISSUED = 2;
+    /**
+     * an operation has completed, args: type, operation ID, status
+     */
+    public static final int EVENT_OPERATION_COMPLETED = 3;
+    /**
+     * the operation in flight timed out, args: type, operation ID, timeout in milliseconds
+     */
+    public static final int EVENT_OPERATION_TIMED_OUT = 4;
+    /**
+     * a notification or indication arrived, args: characteristic instance ID, value length
+     */
+    public static final int EVENT_NOTIFICATION = 5;
+    /**
+     * service discovery completed, args: number of services, status
+     */
+    public static final int EVENT_SERVICES_DISCOVERED = 6;
+
+    @Retention(SOURCE)
+    @IntDef({
+            EVENT_CONNECTION_STATE, EVENT_OPERATION_QUEUED, EVENT_OPERATION_ISSUED,
+            EVENT_OPERATION_COMPLETED, EVENT_OPERATION_TIMED_OUT, EVENT_NOTIFICATION,
+            EVENT_SERVICES_DISCOVERED
+    })
+    public @interface Event {
+    }
+
+    private static final String[] OPERATION_NAMES = {
+            "ReadCharacteristic", "WriteCharacteristic", "ReadDescriptor", "WriteDescriptor",
+            "WriteNoResponse", "ReliableWrite", "RequestMtu", "DiscoverServices"
+    };
+
+    private static final GattTrace sDefault = new GattTrace(DEFAULT_CAPACITY);
+
+    private final int mCapacity;
+    private final AtomicLongArray mTimes;
+    private final AtomicLongArray mDevices;
+    // event << 32 | arg0
+    private final AtomicLongArray mEvents;
+    // arg1 << 32 | arg2
+    private final AtomicLongArray mArgs;
+    // ticket + 1 of the record in the slot, 0 while it is being written
+    private final AtomicLongArray mSequences;
+    // number of slots claimed so far, the next one is mWritten % mCapacity
+    private final AtomicLong mWritten = new AtomicLong();
+    // records before this ticket have been cleared
+    private volatile long mClearedAt = 0;
+    private volatile boolean mEnabled = true;
+
+    /**
+     * @param capacity number of records kept, 32 bytes each
+     */
+    public GattTrace(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive, got " + capacity);
+        mCapacity = capacity;
+        mTimes = new AtomicLongArray(capacity);
+        mDevices = new AtomicLongArray(capacity);
+        mEvents = new AtomicLongArray(capacity);
+        mArgs = new AtomicLongArray(capacity);
+        mSequences = new AtomicLongArray(capacity);
+    }
+
+    /**
+     * @return the trace every {@link BluetoothLeDevice} records to
+     */
+    @NonNull
+    public static GattTrace getDefault() {
+        return sDefault;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return number of records in the buffer
+     */
+    public int size() {
+        return (int) Math.min(mWritten.get() - mClearedAt, mCapacity);
+    }
+
+    /**
+     * @return number of records overwritten before they could be dumped
+     */
+    public long getOverwrittenCount() {
+        return Math.max(0, mWritten.get() - mClearedAt - mCapacity);
+    }
+
+    public void clear() {
+        mClearedAt = mWritten.get();
+    }
+
+    void record(long deviceId, @Event int event, int arg0, int arg1, int arg2) {
+        if (mEnabled)
+            record(SystemClock.elapsedRealtimeNanos(), deviceId, event, arg0, arg1, arg2);
+    }
+
+    /**
+     * @param now elapsed realtime in nanoseconds
+     */
+    void record(long now, long deviceId, @Event int event, int arg0, int arg1, int arg2) {
+        if (!mEnabled)
+            return;
+        final long ticket = mWritten.getAndIncrement();
+        final int index = (int) (ticket % mCapacity);
+        // the lazy sets can't be reordered before the volatile set that marks the slot busy, nor
+        // after the one that publishes it.
+        mSequences.set(index, 0);
+        mTimes.lazySet(index, now);
+        mDevices.lazySet(index, deviceId);
+        mEvents.lazySet(index, (long) event << 32 | (arg0 & 0xffffffffL));
+        mArgs.lazySet(index, (long) arg1 << 32 | (arg2 & 0xffffffffL));
+        mSequences.set(index, ticket + 1);
+    }
+
+    void recordOperation(long deviceId, @Event int event, @NonNull GattOperation operation, int arg) {
+        record(deviceId, event, operation.getType(), operation.mTraceId, arg);
+    }
+
+    /**
+     * copy the records out oldest first, so dumping doesn't hold up the devices. a record whose
+     * slot doesn't hold the same complete record before and after the copy is left out.
+     */
+    @NonNull
+    private long[][] snapshot() {
+        final long written = mWritten.get();
+        final long first = Math.max(mClearedAt, written - mCapacity);
+        final long[][] records = new long[4][(int) (written - first)];
+        int count = 0;
+        for (long ticket = first; ticket < written; ++ticket) {
+            final int index = (int) (ticket % mCapacity);
+            if (mSequences.get(index) != ticket + 1)
+                continue;
+            final long time = mTimes.get(index);
+            final long device = mDevices.get(index);
+            final long event = mEvents.get(index);
+            final long args = mArgs.get(index);
+            if (mSequences.get(index) != ticket + 1)
+                continue;
+            records[0][count] = time;
+            records[1][count] = device;
+            records[2][count] = event;
+            records[3][count] = args;
+            ++count;
+        }
+        if (count != records[0].length)
+            for (int c = 0; c < records.length; ++c)
+                records[c] = Arrays.copyOf(records[c], count);
+        return records;
+    }
+
+    /**
+     * write the buffer in the compact binary format, the stream is not closed.
+     */
+    public void writeTo(@NonNull OutputStream stream) throws IOException {
+        final long[][] records = snapshot();
+        final int count = records[0].length;
+        final DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(count);
+        for (int i = 0; i < count; ++i) {
+            out.writeLong(records[0][i]);
+            out.writeLong(records[1][i]);
+            out.writeInt((int) (records[2][i] >>> 32));
+            out.writeInt((int) records[2][i]);
+            out.writeInt((int) (records[3][i] >>> 32));
+            out.writeInt((int) records[3][i]);
+        }
+        out.flush();
+    }
+
+    /**
+     * write the buffer as Chrome trace-event JSON, the writer is not closed. each device is a
+     * thread of its own, operations are async slices from queued to completed.
+     */
+    public void writeChromeTrace(@NonNull Writer writer) throws IOException {
+        final long[][] records = snapshot();
+        final int count = records[0].length;
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        for (int i = 0; i < count; ++i) {
+            if (i != 0)
+                writer.write(",\n");
+            final long ts = records[0][i] / 1000;
+            final long device = records[1][i];
+            final int event = (int) (records[2][i] >>> 32);
+            final int arg0 = (int) records[2][i];
+            final int arg1 = (int) (records[3][i] >>> 32);
+            final int arg2 = (int) records[3][i];
+            final String common = "\"pid\":1,\"tid\":" + device + ",\"ts\":" + ts;
+            switch (event) {
+                case EVENT_CONNECTION_STATE:
+                    writer.write("{\"name\":\"ConnectionState\",\"cat\":\"connection\",\"ph\":\"i\",\"s\":\"t\"," + common + ",\"args\":{\"state\":" + arg0 + ",\"status\":" + arg1 + "}}");
+                    break;
+                case EVENT_OPERATION_QUEUED:
+                case EVENT_OPERATION_ISSUED:
+                case EVENT_OPERATION_COMPLETED:
+                case EVENT_OPERATION_TIMED_OUT:
+                    final String phase = event == EVENT_OPERATION_QUEUED ? "b" : event == EVENT_OPERATION_COMPLETED ? "e" : "n";
+                    final String args = event == EVENT_OPERATION_COMPLETED ? ",\"args\":{\"status\":" + arg2 + "}" :
+                            event == EVENT_OPERATION_TIMED_OUT ? ",\"args\":{\"timeout\":" + arg2 + "}" : "";
+                    final String name = event == EVENT_OPERATION_ISSUED ? "issued" : event == EVENT_OPERATION_TIMED_OUT ? "timed out" : operationName(arg0);
+                    writer.write("{\"name\":\"" + name + "\",\"cat\":\"" + operationName(arg0) + "\",\"ph\":\"" + phase + "\",\"id\":" + arg1 + "," + common + args + "}");
+                    break;
+                case EVENT_NOTIFICATION:
+                    writer.write("{\"name\":\"Notification\",\"cat\":\"notification\",\"ph\":\"i\",\"s\":\"t\"," + common + ",\"args\":{\"characteristic\":" + arg0 + ",\"length\":" + arg1 + "}}");
+                    break;
+                case EVENT_SERVICES_DISCOVERED:
+                    writer.write("{\"name\":\"ServicesDiscovered\",\"cat\":\"discovery\",\"ph\":\"i\",\"s\":\"t\"," + common + ",\"args\":{\"services\":" + arg0 + ",\"status\":" + arg1 + "}}");
+                    break;
+                default:
+                    writer.write("{\"name\":\"Event" + event + "\",\"ph\":\"i\",\"s\":\"t\"," + common + "}");
+                    break;
+            }
+        }
+        writer.write("]}\n");
+        writer.flush();
+    }
+
+    @NonNull
+    private static String operationName(int type) {
+        return type >= 0 && type < OPERATION_NAMES.length ? OPERATION_NAMES[type] : "Operation" + type;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + hashCode() + " (" + size() + "/" + mCapacity + " records, overwritten = " + getOverwrittenCount() + ")";
+    }
+}
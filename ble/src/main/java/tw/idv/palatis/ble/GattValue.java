@@ -0,0 +1,155 @@
+package tw.idv.palatis.ble;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * a copy of an attribute value in a buffer borrowed from the {@link GattValuePool} of a device.
+ * <p>
+ * the accessors read the GATT formats in little-endian straight out of the buffer, the same
+ * formats as {@link android.bluetooth.BluetoothGattCharacteristic#getIntValue(int, int)} and
+ * {@link android.bluetooth.BluetoothGattCharacteristic#getFloatValue(int, int)} without boxing.
+ * {@link #release()} (or {@link #close()}, with try-with-resources) hands the buffer back, the
+ * value must not be used after that.
+ */
+public final class GattValue implements AutoCloseable {
+    @NonNull
+    private final GattValuePool mPool;
+    private final byte[] mBytes;
+    private final ByteBuffer mView;
+    private int mLength = 0;
+    // guarded by mPool
+    boolean mReleased = true;
+
+    GattValue(@NonNull GattValuePool pool, int capacity) {
+        mPool = pool;
+        mBytes = new byte[capacity];
+        mView = ByteBuffer.wrap(mBytes).asReadOnlyBuffer();
+        mView.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    void set(@NonNull byte[] value) {
+        mLength = Math.min(value.length, mBytes.length);
+        System.arraycopy(value, 0, mBytes, 0, mLength);
+        mView.clear();
+        mView.limit(mLength);
+    }
+
+    /**
+     * @return the value length, truncated to the size of a pooled buffer
+     */
+    public int length() {
+        return mLength;
+    }
+
+    /**
+     * @return a read-only, little-endian view of the value, the same view for the whole life of
+     * the value
+     */
+    @NonNull
+    public ByteBuffer asByteBuffer() {
+        return mView;
+    }
+
+    public int getUint8(int offset) {
+        check(offset, 1);
+        return GattFormat.getUint8(mBytes, offset);
+    }
+
+    public int getSint8(int offset) {
+        check(offset, 1);
+        return GattFormat.getSint8(mBytes, offset);
+    }
+
+    public int getUint16(int offset) {
+        check(offset, 2);
+        return GattFormat.getUint16(mBytes, offset);
+    }
+
+    public int getSint16(int offset) {
+        check(offset, 2);
+        return GattFormat.getSint16(mBytes, offset);
+    }
+
+    public int getUint24(int offset) {
+        check(offset, 3);
+        return GattFormat.getUint24(mBytes, offset);
+    }
+
+    public int getSint24(int offset) {
+        check(offset, 3);
+        return GattFormat.getSint24(mBytes, offset);
+    }
+
+    public long getUint32(int offset) {
+        check(offset, 4);
+        return GattFormat.getUint32(mBytes, offset);
+    }
+
+    public int getSint32(int offset) {
+        check(offset, 4);
+        return GattFormat.getSint32(mBytes, offset);
+    }
+
+    /**
+     * @see GattFormat#getSfloat(byte[], int)
+     */
+    public float getSfloat(int offset) {
+        check(offset, 2);
+        return GattFormat.getSfloat(mBytes, offset);
+    }
+
+    /**
+     * @see GattFormat#getFloat(byte[], int)
+     */
+    public float getFloat(int offset) {
+        check(offset, 4);
+        return GattFormat.getFloat(mBytes, offset);
+    }
+
+    /**
+     * @return the UTF-8 string from the offset to the end of the value
+     */
+    @NonNull
+    public String getString(int offset) {
+        check(offset, 0);
+        return GattFormat.getString(mBytes, offset, mLength - offset);
+    }
+
+    /**
+     * copy a part of the value out
+     *
+     * @return number of bytes copied
+     */
+    public int getBytes(int offset, @NonNull byte[] destination) {
+        check(offset, 0);
+        final int length = Math.min(mLength - offset, destination.length);
+        System.arraycopy(mBytes, offset, destination, 0, length);
+        return length;
+    }
+
+    private void check(int offset, int size) {
+        if (offset < 0 || offset + size > mLength)
+            throw new IndexOutOfBoundsException("offset " + offset + " + " + size + " out of a " + mLength + " bytes value.");
+    }
+
+    /**
+     * hand the buffer back to the pool
+     */
+    public void release() {
+        mPool.release(this);
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + hashCode() + " " + Arrays.toString(Arrays.copyOf(mBytes, mLength));
+    }
+}
@@ -0,0 +1,85 @@
+package tw.idv.palatis.ble;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+
+/**
+ * the buffers a device lends out as {@link GattValue}s.
+ * <p>
+ * a buffer holds the longest attribute value allowed, released buffers are kept for the next
+ * value up to {@link #getMaxPooled()}, so a steady stream of notifications decoded and released
+ * one after another runs on the same few buffers.
+ */
+public final class GattValuePool {
+    public static final int DEFAULT_MAX_POOLED = 8;
+
+    private final int mMaxPooled;
+
+    // guarded by this
+    private final ArrayDeque<GattValue> mFree = new ArrayDeque<>();
+    private long mObtained = 0;
+    private long mAllocated = 0;
+
+    GattValuePool() {
+        this(DEFAULT_MAX_POOLED);
+    }
+
+    GattValuePool(int maxPooled) {
+        mMaxPooled = maxPooled;
+    }
+
+    /**
+     * copy a value into a pooled buffer, values longer than
+     * {@link GattNotificationChannel#MAX_VALUE_LENGTH} are truncated.
+     *
+     * @param value the value
+     * @return the copy, release it when done
+     */
+    @NonNull
+    public GattValue obtain(@NonNull byte[] value) {
+        GattValue pooled;
+        synchronized (this) {
+            ++mObtained;
+            pooled = mFree.pollFirst();
+            if (pooled == null) {
+                ++mAllocated;
+                pooled = new GattValue(this, GattNotificationChannel.MAX_VALUE_LENGTH);
+            }
+            pooled.mReleased = false;
+        }
+        pooled.set(value);
+        return pooled;
+    }
+
+    synchronized void release(@NonNull GattValue value) {
+        if (value.mReleased)
+            throw new IllegalStateException("the value has already been released.");
+        value.mReleased = true;
+        if (mFree.size() < mMaxPooled)
+            mFree.addFirst(value);
+    }
+
+    public int getMaxPooled() {
+        return mMaxPooled;
+    }
+
+    /**
+     * @return number of values handed out
+     */
+    public synchronized long getObtainedCount() {
+        return mObtained;
+    }
+
+    /**
+     * @return number of buffers allocated because none was free
+     */
+    public synchronized long getAllocatedCount() {
+        return mAllocated;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + "@" + hashCode() + " (free = " + mFree.size() + "/" + mMaxPooled + ", obtained = " + mObtained + ", allocated = " + mAllocated + ")";
+    }
+}
@@ -2,23 +2,159 @@ package tw.idv.palatis.ble.database;
 
 import android.os.Handler;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
+import java.util.Arrays;
+
+/**
+ * an observer that hands the events over to a {@link Handler}.
+ * <p>
+ * unbatched, every event is posted as a message of its own. batched, events arriving while a
+ * batch is waiting for the {@link Handler} join that batch, so a burst costs a single message.
+ * an event type marked with {@link #setConflated(int, boolean)} keeps only its latest event per
+ * subject (e.g. per device) in a batch, taking the place of the first one.
+ */
 public class HandlerObserver<ObserverT> {
+    /**
+     * the event is never conflated
+     */
+    public static final int EVENT_NONE = -1;
+
     private final Handler mHandler;
+    private final boolean mBatched;
+
+    // guarded by mLock
+    private final Object mLock = new Object();
+    private Batch<ObserverT> mPending = new Batch<>();
+    private Batch<ObserverT> mSpare = new Batch<>();
+    private boolean mDrainPosted = false;
+    private volatile long mConflated = 0;
+
+    private final Runnable mDrainRunnable = this::drain;
 
     public HandlerObserver(final Handler handler) {
+        this(handler, false);
+    }
+
+    /**
+     * @param handler the handler to dispatch on, {@code null} to dispatch on the calling thread
+     * @param batched {@code true} to dispatch the events arriving in a burst in one message
+     */
+    public HandlerObserver(final Handler handler, final boolean batched) {
         mHandler = handler;
+        mBatched = batched && handler != null;
+    }
+
+    public boolean isBatched() {
+        return mBatched;
+    }
+
+    /**
+     * keep only the latest event of a type per subject in a batch, no effect unbatched.
+     *
+     * @param event     the event type, 0 to 63, defined by the subclass
+     * @param conflated {@code true} for latest-value-wins
+     */
+    public void setConflated(final int event, final boolean conflated) {
+        if (event < 0 || event >= 64)
+            throw new IllegalArgumentException("event type out of range: " + event);
+        synchronized (mLock) {
+            mConflated = conflated ? mConflated | 1L << event : mConflated & ~(1L << event);
+        }
+    }
+
+    public boolean isConflated(final int event) {
+        return event >= 0 && event < 64 && (mConflated & 1L << event) != 0;
     }
 
-    @SuppressWarnings("unchecked")
     protected final void dispatchChange(@NonNull Dispatcher<ObserverT> dispatcher) {
-        if (mHandler == null)
+        dispatchChange(EVENT_NONE, null, dispatcher);
+    }
+
+    /**
+     * @param event   the type of the event, for conflation
+     * @param subject what the event is about, only events with the same subject conflate
+     */
+    @SuppressWarnings("unchecked")
+    protected final void dispatchChange(final int event, @Nullable final Object subject, @NonNull Dispatcher<ObserverT> dispatcher) {
+        if (mHandler == null) {
             dispatcher.dispatchChange((ObserverT) this);
-        else
+            return;
+        }
+        if (!mBatched) {
             mHandler.post(() -> dispatcher.dispatchChange((ObserverT) this));
+            return;
+        }
+
+        synchronized (mLock) {
+            mPending.add(isConflated(event) ? event : EVENT_NONE, subject, dispatcher);
+            if (mDrainPosted)
+                return;
+            mDrainPosted = true;
+        }
+        mHandler.post(mDrainRunnable);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void drain() {
+        final Batch<ObserverT> batch;
+        synchronized (mLock) {
+            batch = mPending;
+            // drains run one after another on the handler, the spare is back by the next one.
+            mPending = mSpare != null ? mSpare : new Batch<>();
+            mSpare = null;
+            mDrainPosted = false;
+        }
+
+        for (int i = 0; i < batch.mSize; ++i)
+            batch.mDispatchers[i].dispatchChange((ObserverT) this);
+        batch.clear();
+
+        synchronized (mLock) {
+            mSpare = batch;
+        }
     }
 
     public interface Dispatcher<ObserverT> {
         void dispatchChange(@NonNull final ObserverT observer);
     }
+
+    /**
+     * the events waiting for the handler, in parallel arrays that are reused from batch to batch.
+     */
+    private static final class Batch<ObserverT> {
+        int[] mEvents = new int[8];
+        Object[] mSubjects = new Object[8];
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Dispatcher<ObserverT>[] mDispatchers = new Dispatcher[8];
+        int mSize = 0;
+
+        void add(int event, @Nullable Object subject, @NonNull Dispatcher<ObserverT> dispatcher) {
+            if (event != EVENT_NONE) {
+                for (int i = 0; i < mSize; ++i) {
+                    if (mEvents[i] == event && mSubjects[i] == subject) {
+                        mDispatchers[i] = dispatcher;
+                        return;
+                    }
+                }
+            }
+
+            if (mSize == mEvents.length) {
+                final int capacity = mSize * 2;
+                mEvents = Arrays.copyOf(mEvents, capacity);
+                mSubjects = Arrays.copyOf(mSubjects, capacity);
+                mDispatchers = Arrays.copyOf(mDispatchers, capacity);
+            }
+            mEvents[mSize] = event;
+            mSubjects[mSize] = subject;
+            mDispatchers[mSize] = dispatcher;
+            ++mSize;
+        }
+
+        void clear() {
+            Arrays.fill(mSubjects, 0, mSize, null);
+            Arrays.fill(mDispatchers, 0, mSize, null);
+            mSize = 0;
+        }
+    }
 }
@@ -2,14 +2,31 @@ package tw.idv.palatis.ble.database;
 
 import android.support.annotation.NonNull;
 
-import java.util.ArrayList;
-
+/**
+ * a copy-on-write list of observers.
+ * <p>
+ * registering and unregistering update {@code mObservers} and replace a snapshot array of it
+ * under the lock of {@code mObservers}, notifying reads the current snapshot and takes no lock
+ * nor allocates. observers are notified in reverse order of registration, an observer
+ * registered twice is only kept once. subclasses must not modify {@code mObservers} directly,
+ * the notifiers wouldn't see it.
+ * <p>
+ * to keep the notification free of allocation, pass a non-capturing lambda and the value to
+ * {@link #notifyChange(ValueNotifier, Object)} or {@link #notifyChange(IntNotifier, int)},
+ * instead of capturing the value in the lambda given to {@link #notifyChange(Notifier)}.
+ */
 public abstract class Observable<ObserverT> extends android.database.Observable<ObserverT> {
+    private static final Object[] EMPTY = new Object[0];
+
+    // a snapshot of mObservers for the notifiers, replaced whenever it changes
+    private volatile Object[] mSnapshot = EMPTY;
+
     @Override
     public void registerObserver(@NonNull ObserverT observer) {
         try {
             synchronized (mObservers) {
                 super.registerObserver(observer);
+                mSnapshot = mObservers.toArray();
             }
         } catch (IllegalStateException ignored) {
         }
@@ -20,27 +37,54 @@ public abstract class Observable<ObserverT> extends android.database.Observable<
         try {
             synchronized (mObservers) {
                 super.unregisterObserver(observer);
+                mSnapshot = mObservers.isEmpty() ? EMPTY : mObservers.toArray();
             }
         } catch (IllegalStateException ignored) {
         }
     }
 
-    public int numObservers() {
+    @Override
+    public void unregisterAll() {
         synchronized (mObservers) {
-            return mObservers.size();
+            super.unregisterAll();
+            mSnapshot = EMPTY;
         }
     }
 
+    public int numObservers() {
+        return mSnapshot.length;
+    }
+
+    @SuppressWarnings("unchecked")
     protected void notifyChange(@NonNull Notifier<ObserverT> notifier) {
-        final ArrayList<ObserverT> observers;
-        synchronized (mObservers) {
-            observers = new ArrayList<>(mObservers);
-        }
-        for (int i = observers.size() - 1; i >= 0; --i)
-            notifier.notifyChange(observers.get(i));
+        final Object[] observers = mSnapshot;
+        for (int i = observers.length - 1; i >= 0; --i)
+            notifier.notifyChange((ObserverT) observers[i]);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected <V> void notifyChange(@NonNull ValueNotifier<ObserverT, V> notifier, V value) {
+        final Object[] observers = mSnapshot;
+        for (int i = observers.length - 1; i >= 0; --i)
+            notifier.notifyChange((ObserverT) observers[i], value);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void notifyChange(@NonNull IntNotifier<ObserverT> notifier, int value) {
+        final Object[] observers = mSnapshot;
+        for (int i = observers.length - 1; i >= 0; --i)
+            notifier.notifyChange((ObserverT) observers[i], value);
     }
 
     public interface Notifier<ObserverT> {
         void notifyChange(@NonNull final ObserverT observer);
     }
+
+    public interface ValueNotifier<ObserverT, V> {
+        void notifyChange(@NonNull final ObserverT observer, V value);
+    }
+
+    public interface IntNotifier<ObserverT> {
+        void notifyChange(@NonNull final ObserverT observer, int value);
+    }
 }
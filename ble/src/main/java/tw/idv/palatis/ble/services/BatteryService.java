@@ -6,6 +6,9 @@ import android.support.annotation.NonNull;
 import java.util.UUID;
 
 import tw.idv.palatis.ble.BluetoothLeDevice;
+import tw.idv.palatis.ble.GattOperation;
+import tw.idv.palatis.ble.annotation.GattCharacteristic;
+import tw.idv.palatis.ble.annotation.GattField;
 import tw.idv.palatis.ble.annotation.GattService;
 import tw.idv.palatis.ble.database.Observable;
 
@@ -45,12 +48,17 @@ public class BatteryService extends BluetoothGattService {
 
     @Override
     public void onCharacteristicChanged(@NonNull BluetoothGattCharacteristic characteristic) {
-        mOnBatteryLevelChangedObservable.notifyBatteryLevelChanged(characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0));
+        final byte[] value = characteristic.getValue();
+        if (value == null || value.length < BatteryLevelCodec.LENGTH) {
+            mOnBatteryLevelChangedObservable.notifyBatteryLevelChanged(LEVEL_UNKNOWN);
+            return;
+        }
+        mOnBatteryLevelChangedObservable.notifyBatteryLevelChanged(BatteryLevelCodec.getLevel(value));
     }
 
     public boolean getBatteryLevel() {
         if (ensureCharacteristics(true)) {
-            mDevice.readCharacteristic(this, mBatteryLevelCharacteristic);
+            mDevice.readCharacteristic(this, mBatteryLevelCharacteristic, GattOperation.PRIORITY_BACKGROUND);
             return true;
         }
         return true;
@@ -79,10 +87,16 @@ public class BatteryService extends BluetoothGattService {
 
     private class OnBatteryLevelChangedObservable extends Observable<OnBatteryLevelChangedListener> {
         void notifyBatteryLevelChanged(final int newLevel) {
-            notifyChange(observer -> observer.dispatchBatteryLevelChanged(newLevel));
+            notifyChange((observer, value) -> observer.dispatchBatteryLevelChanged(value), newLevel);
         }
     }
 
+    @GattCharacteristic
+    static final class BatteryLevel {
+        @GattField(format = GattField.FORMAT_UINT8, offset = 0)
+        int level;
+    }
+
     public interface OnBatteryLevelChangedListener {
         void dispatchBatteryLevelChanged(int newLevel);
     }
@@ -2,11 +2,14 @@ package tw.idv.palatis.ble.services;
 
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
+import android.support.annotation.CallSuper;
 import android.support.annotation.NonNull;
 
 import java.util.UUID;
 
 import tw.idv.palatis.ble.BluetoothLeDevice;
+import tw.idv.palatis.ble.GattStreamWrite;
+import tw.idv.palatis.ble.GattValue;
 
 /**
  * A delegate service to wrap around the native {@link android.bluetooth.BluetoothGattService}
@@ -16,8 +19,10 @@ import tw.idv.palatis.ble.BluetoothLeDevice;
 public class BluetoothGattService {
     private static final String TAG = "BluetoothGattService";
 
+    private static final byte[] EMPTY_VALUE = new byte[0];
+
     @NonNull
-    final android.bluetooth.BluetoothGattService mNativeService;
+    volatile android.bluetooth.BluetoothGattService mNativeService;
     @NonNull
     protected final BluetoothLeDevice mDevice;
 
@@ -26,6 +31,29 @@ public class BluetoothGattService {
         mNativeService = nativeService;
     }
 
+    /**
+     * bind the wrapper to another native service with the same layout, e.g. when the service
+     * has been set up from the attribute cache and discovery has confirmed it.
+     * <p>
+     * characteristics obtained from the previous native service still work with the
+     * {@link BluetoothLeDevice} operations, override to refresh them if they're compared by
+     * identity.
+     *
+     * @param nativeService the new native service
+     */
+    @CallSuper
+    public void setNativeService(@NonNull android.bluetooth.BluetoothGattService nativeService) {
+        mNativeService = nativeService;
+    }
+
+    /**
+     * @return the native service currently behind this wrapper
+     */
+    @NonNull
+    public android.bluetooth.BluetoothGattService getNativeService() {
+        return mNativeService;
+    }
+
     public int getType() {
         return mNativeService.getType();
     }
@@ -58,6 +86,43 @@ public class BluetoothGattService {
         return mDevice;
     }
 
+    /**
+     * stream a large payload into one of this service's characteristics with write-without-response
+     *
+     * @param characteristic the characteristic to write
+     * @param data           the payload
+     * @param window         max packets handed to the stack without a write callback
+     * @return the completion handle
+     * @see BluetoothLeDevice#streamCharacteristic(BluetoothGattService, BluetoothGattCharacteristic, byte[], int, int)
+     */
+    @NonNull
+    public GattStreamWrite streamCharacteristic(@NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] data, int window) {
+        return mDevice.streamCharacteristic(this, characteristic, data, GattStreamWrite.PACKET_SIZE_AUTO, window);
+    }
+
+    /**
+     * copy the current value of a characteristic into a buffer of the device's pool, to decode it
+     * without allocating. call from the callbacks, where the value is the one just read or
+     * notified.
+     *
+     * @param characteristic the characteristic
+     * @return the value, {@link GattValue#release()} it when done
+     */
+    @NonNull
+    public GattValue obtainValue(@NonNull BluetoothGattCharacteristic characteristic) {
+        final byte[] value = characteristic.getValue();
+        return mDevice.getValuePool().obtain(value == null ? EMPTY_VALUE : value);
+    }
+
+    /**
+     * @see #obtainValue(BluetoothGattCharacteristic)
+     */
+    @NonNull
+    public GattValue obtainValue(@NonNull BluetoothGattDescriptor descriptor) {
+        final byte[] value = descriptor.getValue();
+        return mDevice.getValuePool().obtain(value == null ? EMPTY_VALUE : value);
+    }
+
     public void onDescriptorRead(@NonNull BluetoothGattDescriptor descriptor) {
     }
 
@@ -8,6 +8,7 @@ import android.util.Log;
 import java.util.UUID;
 
 import tw.idv.palatis.ble.BluetoothLeDevice;
+import tw.idv.palatis.ble.GattOperation;
 import tw.idv.palatis.ble.annotation.GattService;
 import tw.idv.palatis.ble.database.Observable;
 
@@ -91,7 +92,7 @@ public class DeviceInformationService extends BluetoothGattService {
 
     public boolean getSystemId() {
         if (mSystemIdCharacteristic != null) {
-            mDevice.readCharacteristic(this, mSystemIdCharacteristic);
+            mDevice.readCharacteristic(this, mSystemIdCharacteristic, GattOperation.PRIORITY_BACKGROUND);
             return true;
         }
         return false;
@@ -99,7 +100,7 @@ public class DeviceInformationService extends BluetoothGattService {
 
     public boolean getModelNumber() {
         if (mModelNumberCharacteristic != null) {
-            mDevice.readCharacteristic(this, mModelNumberCharacteristic);
+            mDevice.readCharacteristic(this, mModelNumberCharacteristic, GattOperation.PRIORITY_BACKGROUND);
             return true;
         }
         return false;
@@ -107,7 +108,7 @@ public class DeviceInformationService extends BluetoothGattService {
 
     public boolean getSerialNumber() {
         if (mSerialNumberCharacteristic != null) {
-            mDevice.readCharacteristic(this, mSerialNumberCharacteristic);
+            mDevice.readCharacteristic(this, mSerialNumberCharacteristic, GattOperation.PRIORITY_BACKGROUND);
             return true;
         }
         return false;
@@ -115,7 +116,7 @@ public class DeviceInformationService extends BluetoothGattService {
 
     public boolean getFirmwareRevision() {
         if (mFirmwareRevisionCharacteristic != null) {
-            mDevice.readCharacteristic(this, mFirmwareRevisionCharacteristic);
+            mDevice.readCharacteristic(this, mFirmwareRevisionCharacteristic, GattOperation.PRIORITY_BACKGROUND);
             return true;
         }
         return false;
@@ -123,7 +124,7 @@ public class DeviceInformationService extends BluetoothGattService {
 
     public boolean getHardwareRevision() {
         if (mHardwareRevisionCharacteristic != null) {
-            mDevice.readCharacteristic(this, mHardwareRevisionCharacteristic);
+            mDevice.readCharacteristic(this, mHardwareRevisionCharacteristic, GattOperation.PRIORITY_BACKGROUND);
             return true;
         }
         return false;
@@ -131,7 +132,7 @@ public class DeviceInformationService extends BluetoothGattService {
 
     public boolean getSoftwareRevision() {
         if (mSoftwareRevisionCharacteristic != null) {
-            mDevice.readCharacteristic(this, mSoftwareRevisionCharacteristic);
+            mDevice.readCharacteristic(this, mSoftwareRevisionCharacteristic, GattOperation.PRIORITY_BACKGROUND);
             return true;
         }
         return false;
@@ -139,7 +140,7 @@ public class DeviceInformationService extends BluetoothGattService {
 
     public boolean getManufacturerName() {
         if (mManufacturerNameCharacteristic != null) {
-            mDevice.readCharacteristic(this, mManufacturerNameCharacteristic);
+            mDevice.readCharacteristic(this, mManufacturerNameCharacteristic, GattOperation.PRIORITY_BACKGROUND);
             return true;
         }
         return false;
@@ -172,31 +173,31 @@ public class DeviceInformationService extends BluetoothGattService {
 
     private class OnDeviceInformationChangedObservable extends Observable<OnDeviceInformationChangedListener> {
         void notifySystemIdChanged(final byte[] newSystemId) {
-            notifyChange(observer -> observer.dispatchSystemIdChanged(newSystemId));
+            notifyChange((observer, value) -> observer.dispatchSystemIdChanged(value), newSystemId);
         }
 
         void notifyModelNumberChanged(final String newModelNumber) {
-            notifyChange(observer -> observer.dispatchModelNumberChanged(newModelNumber));
+            notifyChange((observer, value) -> observer.dispatchModelNumberChanged(value), newModelNumber);
         }
 
         void notifySerialNumberChanged(final String newSerialNumber) {
-            notifyChange(observer -> observer.dispatchSerialNumberChanged(newSerialNumber));
+            notifyChange((observer, value) -> observer.dispatchSerialNumberChanged(value), newSerialNumber);
         }
 
         void notifyFirmwareRevisionChanged(final String newFirmwareRevision) {
-            notifyChange(observer -> observer.dispatchFirmwareRevisionChanged(newFirmwareRevision));
+            notifyChange((observer, value) -> observer.dispatchFirmwareRevisionChanged(value), newFirmwareRevision);
         }
 
         void notifySoftwareRevisionChanged(final String newSoftwareRevision) {
-            notifyChange(observer -> observer.dispatchSoftwareRevisionChanged(newSoftwareRevision));
+            notifyChange((observer, value) -> observer.dispatchSoftwareRevisionChanged(value), newSoftwareRevision);
         }
 
         void notifyHardwareRevisionChanged(final String newHardwareRevision) {
-            notifyChange(observer -> observer.dispatchHardwareRevisionChanged(newHardwareRevision));
+            notifyChange((observer, value) -> observer.dispatchHardwareRevisionChanged(value), newHardwareRevision);
         }
 
         void notifyManufacturerNameChanged(final String newManufacturerName) {
-            notifyChange(observer -> observer.dispatchManufacturerNameChanged(newManufacturerName));
+            notifyChange((observer, value) -> observer.dispatchManufacturerNameChanged(value), newManufacturerName);
         }
     }
     // </editor-fold>
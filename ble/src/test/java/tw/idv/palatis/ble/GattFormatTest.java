@@ -0,0 +1,117 @@
+package tw.idv.palatis.ble;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the little-endian GATT formats of {@link GattFormat}.
+ */
+public class GattFormatTest {
+    @Test
+    public void integers_roundTrip() {
+        final byte[] value = new byte[4];
+        GattFormat.setInt8(value, 0, 0xfe);
+        assertEquals(0xfe, GattFormat.getUint8(value, 0));
+        assertEquals(-2, GattFormat.getSint8(value, 0));
+
+        GattFormat.setInt16(value, 0, -300);
+        assertEquals(-300, GattFormat.getSint16(value, 0));
+        assertEquals(0x10000 - 300, GattFormat.getUint16(value, 0));
+
+        GattFormat.setInt24(value, 0, -70000);
+        assertEquals(-70000, GattFormat.getSint24(value, 0));
+        assertEquals(0x1000000 - 70000, GattFormat.getUint24(value, 0));
+
+        GattFormat.setInt32(value, 0, 0xfffffffeL);
+        assertEquals(0xfffffffeL, GattFormat.getUint32(value, 0));
+        assertEquals(-2, GattFormat.getSint32(value, 0));
+    }
+
+    @Test
+    public void integers_areLittleEndian() {
+        final byte[] value = new byte[4];
+        GattFormat.setInt32(value, 0, 0x12345678);
+        assertArrayEquals(new byte[]{0x78, 0x56, 0x34, 0x12}, value);
+        assertEquals(0x345678, GattFormat.getUint24(value, 0));
+        assertEquals(0x1234, GattFormat.getUint16(value, 2));
+    }
+
+    @Test
+    public void sfloat_decodesKnownValues() {
+        // exponent -1, mantissa 366
+        assertEquals(36.6f, GattFormat.getSfloat(new byte[]{0x6e, (byte) 0xf1}, 0), 1e-4f);
+        // exponent 2, mantissa -1
+        assertEquals(-100f, GattFormat.getSfloat(new byte[]{(byte) 0xff, 0x2f}, 0), 0f);
+        assertEquals(Float.POSITIVE_INFINITY, GattFormat.getSfloat(new byte[]{(byte) 0xfe, 0x07}, 0), 0f);
+        assertEquals(Float.NEGATIVE_INFINITY, GattFormat.getSfloat(new byte[]{0x02, 0x08}, 0), 0f);
+        assertTrue(Float.isNaN(GattFormat.getSfloat(new byte[]{(byte) 0xff, 0x07}, 0)));
+        assertTrue(Float.isNaN(GattFormat.getSfloat(new byte[]{0x00, 0x08}, 0)));
+    }
+
+    @Test
+    public void sfloat_roundTrips() {
+        final byte[] value = new byte[2];
+        for (final float v : new float[]{0f, 1f, -1f, 36.6f, -40.3f, 2045f, 0.00125f, 120000f}) {
+            GattFormat.setSfloat(value, 0, v);
+            assertEquals(v, GattFormat.getSfloat(value, 0), Math.abs(v) * 1e-3f);
+        }
+
+        GattFormat.setSfloat(value, 0, 36.6f);
+        assertArrayEquals(new byte[]{0x6e, (byte) 0xf1}, value);
+    }
+
+    @Test
+    public void sfloat_outOfRange_isInfinity() {
+        final byte[] value = new byte[2];
+        GattFormat.setSfloat(value, 0, 1e20f);
+        assertEquals(Float.POSITIVE_INFINITY, GattFormat.getSfloat(value, 0), 0f);
+        GattFormat.setSfloat(value, 0, -1e20f);
+        assertEquals(Float.NEGATIVE_INFINITY, GattFormat.getSfloat(value, 0), 0f);
+        GattFormat.setSfloat(value, 0, Float.NaN);
+        assertTrue(Float.isNaN(GattFormat.getSfloat(value, 0)));
+    }
+
+    @Test
+    public void float_decodesKnownValues() {
+        // exponent -1, mantissa 366
+        assertEquals(36.6f, GattFormat.getFloat(new byte[]{0x6e, 0x01, 0x00, (byte) 0xff}, 0), 1e-4f);
+        assertEquals(Float.POSITIVE_INFINITY, GattFormat.getFloat(new byte[]{(byte) 0xfe, (byte) 0xff, 0x7f, 0x00}, 0), 0f);
+        assertEquals(Float.NEGATIVE_INFINITY, GattFormat.getFloat(new byte[]{0x02, 0x00, (byte) 0x80, 0x00}, 0), 0f);
+        assertTrue(Float.isNaN(GattFormat.getFloat(new byte[]{(byte) 0xff, (byte) 0xff, 0x7f, 0x00}, 0)));
+    }
+
+    @Test
+    public void float_roundTrips() {
+        final byte[] value = new byte[4];
+        for (final float v : new float[]{0f, 1f, -1f, 36.6f, -273.15f, 8388605f, 1.5e-7f, 6.02e23f}) {
+            GattFormat.setFloat(value, 0, v);
+            assertEquals(v, GattFormat.getFloat(value, 0), Math.abs(v) * 1e-6f);
+        }
+        GattFormat.setFloat(value, 0, Float.NaN);
+        assertTrue(Float.isNaN(GattFormat.getFloat(value, 0)));
+    }
+
+    @Test
+    public void float_coversTheWholeFloatRange() {
+        final byte[] value = new byte[4];
+        for (final float v : new float[]{Float.MAX_VALUE, -Float.MAX_VALUE, -1e30f}) {
+            GattFormat.setFloat(value, 0, v);
+            assertEquals(v, GattFormat.getFloat(value, 0), Math.abs(v) * 1e-6f);
+        }
+    }
+
+    @Test
+    public void string_roundTrips() {
+        final String s = "a\u00e9\u4e2d\ud83d\ude00";
+        assertEquals(s.getBytes(StandardCharsets.UTF_8).length, GattFormat.getUtf8Length(s));
+
+        final byte[] value = new byte[2 + GattFormat.getUtf8Length(s)];
+        assertEquals(value.length, GattFormat.setString(value, 2, s));
+        assertEquals(s, GattFormat.getString(value, 2));
+    }
+}
@@ -0,0 +1,119 @@
+package tw.idv.palatis.ble;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * the histograms and counters of {@link GattMetrics}.
+ */
+public class GattMetricsTest {
+    private static final int READ = GattOperation.TYPE_READ_CHARACTERISTIC;
+    private static final int WRITE = GattOperation.TYPE_WRITE_CHARACTERISTIC;
+
+    @Test
+    public void bucketOf_isTheBitLength() {
+        assertEquals(0, GattMetrics.bucketOf(-5));
+        assertEquals(0, GattMetrics.bucketOf(0));
+        assertEquals(1, GattMetrics.bucketOf(1));
+        assertEquals(2, GattMetrics.bucketOf(2));
+        assertEquals(2, GattMetrics.bucketOf(3));
+        assertEquals(3, GattMetrics.bucketOf(4));
+        assertEquals(10, GattMetrics.bucketOf(1023));
+        assertEquals(11, GattMetrics.bucketOf(1024));
+        assertEquals(63, GattMetrics.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void completions_areCountedByStatus() {
+        final GattMetrics metrics = new GattMetrics();
+        metrics.onOperationCompleted(READ, BluetoothGatt.GATT_SUCCESS, 100);
+        metrics.onOperationCompleted(READ, BluetoothGatt.GATT_SUCCESS, 300);
+        metrics.onOperationCompleted(READ, GattOperation.STATUS_TIMED_OUT, 5000);
+        metrics.onOperationCompleted(WRITE, BluetoothGatt.GATT_FAILURE, 50);
+
+        final GattMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(2, snapshot.getSucceededCount(READ));
+        assertEquals(1, snapshot.getFailedCount(READ));
+        assertEquals(1, snapshot.getTimedOutCount(READ));
+        assertEquals(0, snapshot.getSucceededCount(WRITE));
+        assertEquals(1, snapshot.getFailedCount(WRITE));
+        assertEquals(0, snapshot.getTimedOutCount(WRITE));
+
+        // only the successful ones make it into the latency
+        final GattMetrics.HistogramSnapshot latency = snapshot.getOperationLatency(READ);
+        assertEquals(2, latency.getCount());
+        assertEquals(300, latency.getMax());
+        assertEquals(200.0, latency.getMean(), 0.0);
+        assertEquals(0, snapshot.getOperationLatency(WRITE).getCount());
+    }
+
+    @Test
+    public void percentile_isTheBucketUpperBound_cappedByTheMax() {
+        final GattMetrics metrics = new GattMetrics();
+        for (int i = 0; i < 99; ++i)
+            metrics.onOperationIssued(10);
+        metrics.onOperationIssued(1000);
+
+        final GattMetrics.HistogramSnapshot wait = metrics.snapshot().getQueueWait();
+        assertEquals(15, wait.getPercentile(0));
+        assertEquals(15, wait.getPercentile(50));
+        assertEquals(15, wait.getPercentile(99));
+        assertEquals(1000, wait.getPercentile(99.5));
+        assertEquals(1000, wait.getPercentile(100));
+        assertEquals(1000, wait.getPercentile(1000));
+    }
+
+    @Test
+    public void percentile_ofNothing_isZero() {
+        final GattMetrics.HistogramSnapshot empty = new GattMetrics().snapshot().getQueueDepth();
+        assertEquals(0, empty.getCount());
+        assertEquals(0, empty.getPercentile(50));
+        assertEquals(0.0, empty.getMean(), 0.0);
+    }
+
+    @Test
+    public void connected_isRecordedInMicroseconds() {
+        final GattMetrics metrics = new GattMetrics();
+        metrics.onConnected(250);
+        metrics.onReady(400);
+        metrics.onLinkLost();
+        metrics.onNotification();
+        metrics.onNotification();
+
+        final GattMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.getConnectionCount());
+        assertEquals(250000, snapshot.getConnectLatency().getMax());
+        assertEquals(400000, snapshot.getReadyLatency().getMax());
+        assertEquals(1, snapshot.getLinkLossCount());
+        assertEquals(2, snapshot.getNotificationCount());
+    }
+
+    @Test
+    public void merge_sumsCountsAndKeepsTheMax() {
+        final GattMetrics a = new GattMetrics();
+        a.onOperationCompleted(READ, BluetoothGatt.GATT_SUCCESS, 10);
+        a.onOperationCompleted(READ, GattOperation.STATUS_TIMED_OUT, 0);
+        a.onConnected(100);
+        final GattMetrics b = new GattMetrics();
+        b.onOperationCompleted(READ, BluetoothGatt.GATT_SUCCESS, 30);
+        b.onOperationCompleted(READ, BluetoothGatt.GATT_SUCCESS, 2000);
+        b.onNotification();
+
+        final GattMetrics.Snapshot merged = a.snapshot().merge(b.snapshot());
+        assertEquals(3, merged.getSucceededCount(READ));
+        assertEquals(1, merged.getTimedOutCount(READ));
+        assertEquals(1, merged.getConnectionCount());
+        assertEquals(1, merged.getNotificationCount());
+
+        final GattMetrics.HistogramSnapshot latency = merged.getOperationLatency(READ);
+        assertEquals(3, latency.getCount());
+        assertEquals(2000, latency.getMax());
+        assertEquals(680.0, latency.getMean(), 0.0);
+        // 10 and 30 in the lower buckets, 2000 in bucket 11
+        assertEquals(31, latency.getPercentile(50));
+        assertEquals(2000, latency.getPercentile(100));
+    }
+}
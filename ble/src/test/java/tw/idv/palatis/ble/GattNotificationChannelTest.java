@@ -0,0 +1,147 @@
+package tw.idv.palatis.ble;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the overflow policies of {@link GattNotificationChannel}.
+ */
+public class GattNotificationChannelTest {
+    @Test
+    public void dropOldest_keepsTheNewestValues() {
+        final GattNotificationChannel channel = new GattNotificationChannel(2, 4, GattNotificationChannel.POLICY_DROP_OLDEST, 0);
+        assertTrue(channel.offer(new byte[]{1}));
+        assertTrue(channel.offer(new byte[]{2}));
+        assertTrue(channel.offer(new byte[]{3}));
+
+        assertEquals(2, channel.size());
+        assertEquals(1, channel.getDroppedCount());
+        assertPolls(channel, 2);
+        assertPolls(channel, 3);
+        assertEquals(-1, channel.poll(new byte[4]));
+    }
+
+    @Test
+    public void dropNewest_keepsTheOldestValues() {
+        final GattNotificationChannel channel = new GattNotificationChannel(2, 4, GattNotificationChannel.POLICY_DROP_NEWEST, 0);
+        assertTrue(channel.offer(new byte[]{1}));
+        assertTrue(channel.offer(new byte[]{2}));
+        assertFalse(channel.offer(new byte[]{3}));
+
+        assertEquals(1, channel.getDroppedCount());
+        assertPolls(channel, 1);
+        assertPolls(channel, 2);
+        assertEquals(3, channel.getReceivedCount());
+        assertEquals(2, channel.getDeliveredCount());
+    }
+
+    @Test
+    public void conflate_keepsOnlyTheLatestValue() {
+        final GattNotificationChannel channel = new GattNotificationChannel(8, 4, GattNotificationChannel.POLICY_CONFLATE, 0);
+        assertEquals(1, channel.getCapacity());
+        for (byte b = 1; b <= 5; ++b)
+            assertTrue(channel.offer(new byte[]{b}));
+
+        assertEquals(1, channel.size());
+        assertEquals(4, channel.getDroppedCount());
+        assertPolls(channel, 5);
+    }
+
+    @Test
+    public void block_withoutRoomInTime_dropsTheNewest() {
+        final GattNotificationChannel channel = new GattNotificationChannel(1, 4, GattNotificationChannel.POLICY_BLOCK, 0);
+        assertTrue(channel.offer(new byte[]{1}));
+        assertFalse(channel.offer(new byte[]{2}));
+        assertEquals(1, channel.getDroppedCount());
+        assertPolls(channel, 1);
+    }
+
+    @Test
+    public void block_waitsForTheConsumer() throws InterruptedException {
+        final GattNotificationChannel channel = new GattNotificationChannel(1, 4, GattNotificationChannel.POLICY_BLOCK, 60000);
+        assertTrue(channel.offer(new byte[]{1}));
+
+        final AtomicBoolean offered = new AtomicBoolean();
+        final Thread binder = new Thread(() -> offered.set(channel.offer(new byte[]{2})));
+        binder.start();
+        // the binder thread is held up until the consumer takes a value out
+        binder.join(100);
+        assertTrue(binder.isAlive());
+
+        assertPolls(channel, 1);
+        binder.join(10000);
+        assertFalse(binder.isAlive());
+        assertTrue(offered.get());
+        assertEquals(0, channel.getDroppedCount());
+        assertPolls(channel, 2);
+    }
+
+    @Test
+    public void block_givesUpAfterTheTimeout() {
+        final GattNotificationChannel channel = new GattNotificationChannel(1, 4, GattNotificationChannel.POLICY_BLOCK, 50);
+        assertTrue(channel.offer(new byte[]{1}));
+
+        final long startedAt = System.nanoTime();
+        assertFalse(channel.offer(new byte[]{2}));
+        assertTrue(System.nanoTime() - startedAt >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(1, channel.getDroppedCount());
+    }
+
+    @Test
+    public void timedPoll_waitsForAValue() throws InterruptedException {
+        final GattNotificationChannel channel = new GattNotificationChannel(4);
+        final byte[] destination = new byte[4];
+
+        final long startedAt = System.nanoTime();
+        assertEquals(-1, channel.poll(destination, 50));
+        assertTrue(System.nanoTime() - startedAt >= TimeUnit.MILLISECONDS.toNanos(50));
+
+        final Thread binder = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            channel.offer(new byte[]{7});
+        });
+        binder.start();
+        assertEquals(1, channel.poll(destination, 10000));
+        assertEquals(7, destination[0]);
+        binder.join();
+    }
+
+    @Test
+    public void longValues_areTruncated() {
+        final GattNotificationChannel channel = new GattNotificationChannel(4, 2, GattNotificationChannel.POLICY_DROP_OLDEST, 0);
+        assertTrue(channel.offer(new byte[]{1, 2, 3}));
+        assertEquals(1, channel.getTruncatedCount());
+
+        final byte[] destination = new byte[4];
+        assertEquals(2, channel.poll(destination));
+        assertEquals(1, destination[0]);
+        assertEquals(2, destination[1]);
+    }
+
+    @Test
+    public void highWaterMark_tracksTheFullestPoint() {
+        final GattNotificationChannel channel = new GattNotificationChannel(4);
+        channel.offer(new byte[]{1});
+        channel.offer(new byte[]{2});
+        channel.offer(new byte[]{3});
+        channel.poll(new byte[1]);
+        channel.clear();
+        assertEquals(0, channel.size());
+        assertEquals(3, channel.getHighWaterMark());
+    }
+
+    private static void assertPolls(GattNotificationChannel channel, int expected) {
+        final byte[] destination = new byte[GattNotificationChannel.MAX_VALUE_LENGTH];
+        assertEquals(1, channel.poll(destination));
+        assertEquals(expected, destination[0]);
+    }
+}
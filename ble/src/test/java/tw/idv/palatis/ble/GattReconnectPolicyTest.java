@@ -0,0 +1,113 @@
+package tw.idv.palatis.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the backoff and the circuit breaker of {@link GattReconnectPolicy}, on a clock of its own.
+ */
+public class GattReconnectPolicyTest {
+    private static final long NOW = 1000000;
+
+    @Test
+    public void delay_growsExponentiallyWithJitter() {
+        final GattReconnectPolicy policy = new GattReconnectPolicy(1000, 8000, 10, 100, 60000);
+        policy.onLinkLost();
+
+        final long[] expected = {1000, 2000, 4000, 8000, 8000, 8000};
+        for (final long delay : expected) {
+            final long actual = policy.nextDelayMillis(NOW);
+            assertTrue(actual + " not in [" + delay / 2 + ", " + delay + "]", actual >= delay / 2 && actual <= delay);
+            policy.onAttemptFailed(NOW);
+        }
+        assertEquals(expected.length, policy.getAttempts());
+    }
+
+    @Test
+    public void givesUp_afterMaxAttempts_untilNextLinkLoss() {
+        final GattReconnectPolicy policy = new GattReconnectPolicy(1000, 8000, 3, 100, 60000);
+        policy.onLinkLost();
+        for (int i = 0; i < 3; ++i) {
+            assertTrue(policy.nextDelayMillis(NOW) >= 0);
+            policy.onAttemptFailed(NOW);
+        }
+        assertEquals(-1, policy.nextDelayMillis(NOW));
+
+        policy.onLinkLost();
+        assertEquals(0, policy.getAttempts());
+        assertTrue(policy.nextDelayMillis(NOW) >= 0);
+    }
+
+    @Test
+    public void breaker_opensAfterThreshold_andSchedulesTrialAtCooldown() {
+        final GattReconnectPolicy policy = new GattReconnectPolicy(1000, 60000, 10, 3, 30000);
+        policy.onLinkLost();
+        for (int i = 0; i < 3; ++i) {
+            assertFalse(policy.isCircuitOpen(NOW));
+            policy.nextDelayMillis(NOW);
+            policy.onAttemptFailed(NOW);
+        }
+
+        assertTrue(policy.isCircuitOpen(NOW));
+        assertEquals(29000, policy.nextDelayMillis(NOW + 1000));
+        assertFalse(policy.isCircuitOpen(NOW + 30000));
+    }
+
+    @Test
+    public void breaker_reopensWhenTrialFails() {
+        final GattReconnectPolicy policy = new GattReconnectPolicy(1000, 60000, 10, 1, 30000);
+        policy.onLinkLost();
+        policy.nextDelayMillis(NOW);
+        policy.onAttemptFailed(NOW);
+        assertEquals(30000, policy.nextDelayMillis(NOW));
+
+        // the trial fails when the cooldown is over
+        policy.onAttemptFailed(NOW + 30000);
+        assertTrue(policy.isCircuitOpen(NOW + 30000));
+        assertEquals(30000, policy.nextDelayMillis(NOW + 30000));
+    }
+
+    @Test
+    public void breaker_closesWhenConnected() {
+        final GattReconnectPolicy policy = new GattReconnectPolicy(1000, 60000, 10, 2, 30000);
+        policy.onLinkLost();
+        policy.onAttemptFailed(NOW);
+        policy.onAttemptFailed(NOW);
+        assertTrue(policy.isCircuitOpen(NOW));
+
+        policy.onConnected();
+        assertFalse(policy.isCircuitOpen(NOW));
+        assertEquals(0, policy.getAttempts());
+
+        // the failures in a row start over too
+        policy.onLinkLost();
+        policy.onAttemptFailed(NOW);
+        assertFalse(policy.isCircuitOpen(NOW));
+    }
+
+    @Test
+    public void breaker_countsFailuresAcrossLinkLosses() {
+        final GattReconnectPolicy policy = new GattReconnectPolicy(1000, 60000, 2, 3, 30000);
+        policy.onLinkLost();
+        policy.onAttemptFailed(NOW);
+        policy.onAttemptFailed(NOW);
+        assertFalse(policy.isCircuitOpen(NOW));
+
+        policy.onLinkLost();
+        policy.onAttemptFailed(NOW);
+        assertTrue(policy.isCircuitOpen(NOW));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsMaxDelayBelowInitialDelay() {
+        new GattReconnectPolicy(1000, 999, 1, 1, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsNonPositiveAttempts() {
+        new GattReconnectPolicy(1000, 1000, 0, 1, 0);
+    }
+}
@@ -0,0 +1,121 @@
+package tw.idv.palatis.ble;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * the timeouts of {@link GattRttEstimator} follow RFC 6298, with the bounds applied on top.
+ */
+public class GattRttEstimatorTest {
+    private static final int READ = GattOperation.TYPE_READ_CHARACTERISTIC;
+    private static final int WRITE = GattOperation.TYPE_WRITE_CHARACTERISTIC;
+
+    private GattRttEstimator mEstimator;
+
+    @Before
+    public void setUp() {
+        mEstimator = new GattRttEstimator();
+    }
+
+    @Test
+    public void timeout_isCeilingBeforeFirstSample() {
+        assertEquals(GattRttEstimator.DEFAULT_CEILING_MS, mEstimator.getTimeoutMillis(READ));
+        assertEquals(0, mEstimator.getSmoothedRttMicros(READ));
+        assertEquals(0, mEstimator.getSampleCount(READ));
+    }
+
+    @Test
+    public void firstSample_setsSrttAndHalfVariation() {
+        mEstimator.setBounds(1, 100000);
+        mEstimator.onSample(READ, 100000);
+
+        assertEquals(100000, mEstimator.getSmoothedRttMicros(READ));
+        assertEquals(50000, mEstimator.getRttVariationMicros(READ));
+        // srtt + 4 * rttvar
+        assertEquals(300, mEstimator.getTimeoutMillis(READ));
+    }
+
+    @Test
+    public void laterSamples_areSmoothed() {
+        mEstimator.setBounds(1, 100000);
+        mEstimator.onSample(READ, 100000);
+        mEstimator.onSample(READ, 200000);
+
+        // rttvar = 3/4 * 50000 + 1/4 * |100000 - 200000|, srtt = 7/8 * 100000 + 1/8 * 200000
+        assertEquals(62500, mEstimator.getRttVariationMicros(READ));
+        assertEquals(112500, mEstimator.getSmoothedRttMicros(READ));
+        // 362.5ms, rounded up
+        assertEquals(363, mEstimator.getTimeoutMillis(READ));
+        assertEquals(2, mEstimator.getSampleCount(READ));
+    }
+
+    @Test
+    public void variation_isAtLeastClockGranularity() {
+        mEstimator.setBounds(1, 100000);
+        mEstimator.onSample(READ, 1000);
+        mEstimator.onSample(READ, 1000);
+        mEstimator.onSample(READ, 1000);
+
+        // 4 * rttvar is below the 10ms granularity
+        assertEquals(11, mEstimator.getTimeoutMillis(READ));
+    }
+
+    @Test
+    public void timeout_isClampedToFloor() {
+        mEstimator.onSample(READ, 1000);
+        assertEquals(GattRttEstimator.DEFAULT_FLOOR_MS, mEstimator.getTimeoutMillis(READ));
+        assertEquals(1000, GattRttEstimator.DEFAULT_FLOOR_MS);
+    }
+
+    @Test
+    public void timeout_isClampedToCeiling() {
+        mEstimator.onSample(READ, 10000000);
+        assertEquals(GattRttEstimator.DEFAULT_CEILING_MS, mEstimator.getTimeoutMillis(READ));
+    }
+
+    @Test
+    public void onTimeout_doublesUpToCeiling() {
+        mEstimator.setBounds(1, 1000);
+        mEstimator.onSample(READ, 100000);
+        mEstimator.onTimeout(READ);
+        assertEquals(600, mEstimator.getTimeoutMillis(READ));
+        mEstimator.onTimeout(READ);
+        assertEquals(1000, mEstimator.getTimeoutMillis(READ));
+        assertEquals(2, mEstimator.getTimeoutCount(READ));
+
+        // the next sample starts over from the estimate, rttvar = 3/4 * 50000
+        mEstimator.onSample(READ, 100000);
+        assertEquals(250, mEstimator.getTimeoutMillis(READ));
+    }
+
+    @Test
+    public void types_areTrackedSeparately() {
+        mEstimator.setBounds(1, 100000);
+        mEstimator.onSample(READ, 100000);
+
+        assertEquals(0, mEstimator.getSampleCount(WRITE));
+        assertEquals(100000, mEstimator.getTimeoutMillis(WRITE));
+    }
+
+    @Test
+    public void negativeSample_isIgnored() {
+        mEstimator.onSample(READ, -1);
+        assertEquals(0, mEstimator.getSampleCount(READ));
+    }
+
+    @Test
+    public void reset_forgetsSamples() {
+        mEstimator.onSample(READ, 100000);
+        mEstimator.reset();
+
+        assertEquals(0, mEstimator.getSampleCount(READ));
+        assertEquals(GattRttEstimator.DEFAULT_CEILING_MS, mEstimator.getTimeoutMillis(READ));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setBounds_rejectsCeilingBelowFloor() {
+        mEstimator.setBounds(1000, 999);
+    }
+}
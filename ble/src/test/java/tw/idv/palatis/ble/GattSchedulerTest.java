@@ -0,0 +1,81 @@
+package tw.idv.palatis.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the lanes of {@link GattScheduler} run their tasks one at a time, in submission order.
+ */
+public class GattSchedulerTest {
+    private static final int TASKS = 1000;
+
+    @Test
+    public void lane_runsTasksInSubmissionOrder() throws InterruptedException {
+        final GattScheduler.Lane lane = GattScheduler.getInstance().newLane();
+        final List<Integer> ran = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(1);
+        for (int i = 0; i < TASKS; ++i) {
+            final int task = i;
+            lane.execute(() -> ran.add(task));
+        }
+        lane.execute(done::countDown);
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(TASKS, ran.size());
+        for (int i = 0; i < TASKS; ++i)
+            assertEquals(i, (int) ran.get(i));
+    }
+
+    @Test
+    public void lane_neverRunsTwoTasksAtOnce() throws InterruptedException {
+        final GattScheduler scheduler = GattScheduler.getInstance();
+        final GattScheduler.Lane[] lanes = {scheduler.newLane(), scheduler.newLane(), scheduler.newLane()};
+        final AtomicInteger[] running = new AtomicInteger[lanes.length];
+        final AtomicInteger overlaps = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(lanes.length * TASKS);
+        for (int l = 0; l < lanes.length; ++l)
+            running[l] = new AtomicInteger();
+
+        // interleave the submissions, the lanes compete for the workers.
+        for (int i = 0; i < TASKS; ++i) {
+            for (int l = 0; l < lanes.length; ++l) {
+                final AtomicInteger counter = running[l];
+                lanes[l].execute(() -> {
+                    if (counter.incrementAndGet() != 1)
+                        overlaps.incrementAndGet();
+                    Thread.yield();
+                    counter.decrementAndGet();
+                    done.countDown();
+                });
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+    }
+
+    @Test
+    public void lane_keepsGoingAfterTaskThrows() throws InterruptedException {
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        final GattScheduler.Lane lane = new GattScheduler(1, (thread, ex) -> failures.add(ex)).newLane();
+        final IllegalStateException thrown = new IllegalStateException("thrown on purpose");
+        final CountDownLatch done = new CountDownLatch(1);
+        lane.execute(() -> {
+            throw thrown;
+        });
+        lane.execute(done::countDown);
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, lane.size());
+        assertEquals(Collections.singletonList(thrown), failures);
+    }
+}
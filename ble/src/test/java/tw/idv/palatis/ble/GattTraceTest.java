@@ -0,0 +1,119 @@
+package tw.idv.palatis.ble;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the ring buffer of {@link GattTrace} and its dumps.
+ */
+public class GattTraceTest {
+    private static final int MAGIC = 0x47545243;
+    private static final long TIME = 5000000;
+
+    @Test
+    public void ring_keepsNewestRecords_oldestFirst() throws IOException {
+        final GattTrace trace = new GattTrace(4);
+        for (int i = 0; i < 6; ++i)
+            trace.record(TIME + i, i, GattTrace.EVENT_NOTIFICATION, i, i * 10, i * 100);
+
+        assertEquals(4, trace.size());
+        assertEquals(2, trace.getOverwrittenCount());
+
+        final DataInputStream in = dump(trace);
+        assertEquals(4, in.readInt());
+        for (int i = 2; i < 6; ++i) {
+            assertEquals(TIME + i, in.readLong());
+            assertEquals(i, in.readLong());
+            assertEquals(GattTrace.EVENT_NOTIFICATION, in.readInt());
+            assertEquals(i, in.readInt());
+            assertEquals(i * 10, in.readInt());
+            assertEquals(i * 100, in.readInt());
+        }
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void clear_dropsRecords() throws IOException {
+        final GattTrace trace = new GattTrace(4);
+        trace.record(TIME, 1, GattTrace.EVENT_NOTIFICATION, 0, 0, 0);
+        trace.record(TIME, 1, GattTrace.EVENT_NOTIFICATION, 0, 0, 0);
+        trace.clear();
+        assertEquals(0, trace.size());
+
+        trace.record(TIME, 2, GattTrace.EVENT_NOTIFICATION, 0, 0, 0);
+        final DataInputStream in = dump(trace);
+        assertEquals(1, in.readInt());
+        in.readLong();
+        assertEquals(2, in.readLong());
+    }
+
+    @Test
+    public void disabled_recordsNothing() {
+        final GattTrace trace = new GattTrace(4);
+        trace.setEnabled(false);
+        trace.record(TIME, 1, GattTrace.EVENT_NOTIFICATION, 0, 0, 0);
+        assertEquals(0, trace.size());
+    }
+
+    @Test
+    public void concurrentRecords_areNeverTorn() throws Exception {
+        final GattTrace trace = new GattTrace(256);
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; ++t) {
+            final int id = t + 1;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100000; ++i)
+                    trace.record(TIME, id, GattTrace.EVENT_NOTIFICATION, id, id * 2, id * 3);
+            });
+            threads[t].start();
+        }
+        for (final Thread thread : threads)
+            thread.join();
+
+        final DataInputStream in = dump(trace);
+        final int count = in.readInt();
+        assertEquals(256, count);
+        for (int i = 0; i < count; ++i) {
+            in.readLong();
+            final long id = in.readLong();
+            assertEquals(GattTrace.EVENT_NOTIFICATION, in.readInt());
+            assertEquals(id, in.readInt());
+            assertEquals(id * 2, in.readInt());
+            assertEquals(id * 3, in.readInt());
+        }
+    }
+
+    @Test
+    public void chromeTrace_pairsQueuedAndCompleted() throws IOException {
+        final GattTrace trace = new GattTrace(16);
+        trace.record(TIME, 7, GattTrace.EVENT_OPERATION_QUEUED, GattOperation.TYPE_READ_CHARACTERISTIC, 42, 0);
+        trace.record(TIME, 7, GattTrace.EVENT_OPERATION_ISSUED, GattOperation.TYPE_READ_CHARACTERISTIC, 42, 0);
+        trace.record(TIME, 7, GattTrace.EVENT_OPERATION_COMPLETED, GattOperation.TYPE_READ_CHARACTERISTIC, 42, 0);
+
+        final StringWriter writer = new StringWriter();
+        trace.writeChromeTrace(writer);
+        final String json = writer.toString();
+        assertTrue(json, json.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":["));
+        assertTrue(json, json.contains("\"name\":\"ReadCharacteristic\",\"cat\":\"ReadCharacteristic\",\"ph\":\"b\",\"id\":42,\"pid\":1,\"tid\":7"));
+        assertTrue(json, json.contains("\"name\":\"issued\",\"cat\":\"ReadCharacteristic\",\"ph\":\"n\",\"id\":42"));
+        assertTrue(json, json.contains("\"ph\":\"e\",\"id\":42,\"pid\":1,\"tid\":7,\"ts\":5000,\"args\":{\"status\":0}"));
+        assertTrue(json, json.endsWith("]}\n"));
+    }
+
+    private static DataInputStream dump(GattTrace trace) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.writeTo(out);
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(MAGIC, in.readInt());
+        assertEquals(1, in.readByte());
+        return in;
+    }
+}
@@ -0,0 +1,114 @@
+package tw.idv.palatis.ble.annotation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * the codec generated by the annotation processor for a value class using every format.
+ */
+public class GattCharacteristicCodecTest {
+    @GattCharacteristic
+    static final class Sample {
+        @GattField(format = GattField.FORMAT_UINT8, offset = 0)
+        int uint8;
+        @GattField(format = GattField.FORMAT_SINT8, offset = 1)
+        int sint8;
+        @GattField(format = GattField.FORMAT_UINT16, offset = 2)
+        int uint16;
+        @GattField(format = GattField.FORMAT_SINT16, offset = 4)
+        long sint16;
+        @GattField(format = GattField.FORMAT_UINT24, offset = 6)
+        int uint24;
+        @GattField(format = GattField.FORMAT_SINT24, offset = 9)
+        int sint24;
+        @GattField(format = GattField.FORMAT_UINT32, offset = 12)
+        long uint32;
+        @GattField(format = GattField.FORMAT_SINT32, offset = 16)
+        int sint32;
+        @GattField(format = GattField.FORMAT_SFLOAT, offset = 20)
+        float sfloat;
+        @GattField(format = GattField.FORMAT_FLOAT, offset = 22)
+        double ieeeFloat;
+        @GattField(format = GattField.FORMAT_UTF8S, offset = 26)
+        String name;
+    }
+
+    @GattCharacteristic(codecClass = "tw.idv.palatis.ble.annotation.FixedCodec")
+    static final class Fixed {
+        @GattField(format = GattField.FORMAT_UINT16, offset = 1)
+        int value;
+        @GattField(format = GattField.FORMAT_UINT8, offset = 0)
+        int flags;
+    }
+
+    @Test
+    public void codec_roundTripsEveryFormat() {
+        final Sample in = new Sample();
+        in.uint8 = 200;
+        in.sint8 = -100;
+        in.uint16 = 60000;
+        in.sint16 = -30000;
+        in.uint24 = 0xfedcba;
+        in.sint24 = -8000000;
+        in.uint32 = 0xfedcba98L;
+        in.sint32 = Integer.MIN_VALUE;
+        in.sfloat = 36.6f;
+        in.ieeeFloat = -273.15;
+        in.name = "thermometer \u00b0C";
+
+        assertEquals(26, SampleCodec.LENGTH);
+        assertEquals(26 + 15, SampleCodec.getLength(in));
+        final byte[] value = SampleCodec.encode(in);
+        assertEquals(SampleCodec.getLength(in), value.length);
+
+        final Sample out = new Sample();
+        SampleCodec.decode(value, out);
+        assertEquals(in.uint8, out.uint8);
+        assertEquals(in.sint8, out.sint8);
+        assertEquals(in.uint16, out.uint16);
+        assertEquals(in.sint16, out.sint16);
+        assertEquals(in.uint24, out.uint24);
+        assertEquals(in.sint24, out.sint24);
+        assertEquals(in.uint32, out.uint32);
+        assertEquals(in.sint32, out.sint32);
+        assertEquals(in.sfloat, out.sfloat, 1e-4f);
+        assertEquals(in.ieeeFloat, out.ieeeFloat, 1e-4);
+        assertEquals(in.name, out.name);
+    }
+
+    @Test
+    public void getters_readSingleFields() {
+        final Sample in = new Sample();
+        in.uint16 = 60000;
+        in.sint24 = -8000000;
+        in.uint32 = 0xfedcba98L;
+        in.sfloat = -40.5f;
+        in.name = "probe";
+        final byte[] value = SampleCodec.encode(in);
+
+        assertEquals(in.uint16, SampleCodec.getUint16(value));
+        assertEquals(in.sint24, SampleCodec.getSint24(value));
+        assertEquals(in.uint32, SampleCodec.getUint32(value));
+        assertEquals(in.sfloat, SampleCodec.getSfloat(value), 1e-4f);
+        assertEquals(in.name, SampleCodec.getName(value));
+    }
+
+    @Test
+    public void codec_withoutString_hasAFixedLength() {
+        final Fixed in = new Fixed();
+        in.flags = 0x01;
+        in.value = 0x1234;
+
+        assertEquals(3, FixedCodec.LENGTH);
+        final byte[] value = new byte[FixedCodec.LENGTH];
+        assertEquals(3, FixedCodec.encode(in, value));
+        assertArrayEquals(new byte[]{0x01, 0x34, 0x12}, value);
+
+        final Fixed out = new Fixed();
+        FixedCodec.decode(value, out);
+        assertEquals(0x01, out.flags);
+        assertEquals(0x1234, out.value);
+    }
+}